@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves mail older than {@code archive.afterDays} (0, the default, turns this off) out of each
+ * inbox shard into the {@link MailArchive}, then gives the freed pages back with incremental
+ * vacuum.
+ *
+ * Every {@code archive.intervalMs} it reads old rows, oldest first, in batches of
+ * {@code archive.batchRows} through a reader connection and appends them to a segment (new one
+ * every {@code archive.segmentBytes}). Once a segment is in place, the rows are deleted from
+ * the shard in transactions of the same size, with unreferenced bodies and recipient lists.
+ * Search entries stay, so archived mail can still be found (see {@link SearchIndex}). Between batches it sleeps {@code archive.pauseMs}, and while the shard's
+ * group-commit writer has mail queued it waits for it (up to {@code archive.maxYieldMs}), so
+ * the writer lock is never held for more than one small delete. Segments whose rows are not yet
+ * all deleted are listed in the shard's archived_segments table, and deleting them resumes
+ * after a restart; until then readers see such rows in both tiers and drop the duplicate.
+ *
+ * Only one process archives at a time (archive/archiver.lock).
+ */
+final class Archiver {
+    private static final int AFTER_DAYS = Integer.getInteger("archive.afterDays", 0);
+    private static final long INTERVAL_MS = Long.getLong("archive.intervalMs", 10 * 60_000);
+    private static final int BATCH_ROWS = Integer.getInteger("archive.batchRows", 500);
+    private static final long PAUSE_MS = Long.getLong("archive.pauseMs", 50);
+    private static final long MAX_YIELD_MS = Long.getLong("archive.maxYieldMs", 2_000);
+    private static final int SEGMENT_BYTES = Integer.getInteger("archive.segmentBytes", 64 * 1024 * 1024);
+    private static final int VACUUM_PAGES = Integer.getInteger("archive.vacuumPages", 256);
+
+    private static final java.time.format.DateTimeFormatter SQL_TIME =
+        java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(java.time.ZoneOffset.UTC);
+
+    private static final String SELECT_OLD =
+        "SELECT id, sender, receiver, subject, preview, body, body_hash, timestamp, list_id FROM inbox " +
+        "WHERE timestamp < ? AND (timestamp, id) > (?, ?) ORDER BY timestamp, id LIMIT ?";
+
+    private final InboxShard[] shards;
+    private final MailArchive archive;
+    private volatile boolean closed;
+    private Thread thread;
+
+    private final LongAdder archived = new LongAdder();
+    private final LongAdder segmentsWritten = new LongAdder();
+    private final LongAdder pagesVacuumed = new LongAdder();
+    private final LongAdder yields = new LongAdder();
+    private volatile long lastRunMs = -1;
+
+    Archiver(InboxShard[] shards, MailArchive archive) {
+        this.shards = shards;
+        this.archive = archive;
+    }
+
+    void start() {
+        if (AFTER_DAYS <= 0) return;
+        thread = new Thread(this::run, "archiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        closed = true;
+        if (thread != null) thread.interrupt();
+    }
+
+    String statsJson() {
+        return "{\"enabled\":" + (AFTER_DAYS > 0) + ",\"afterDays\":" + AFTER_DAYS + ",\"archived\":" + archived.sum() +
+            ",\"segmentsWritten\":" + segmentsWritten.sum() + ",\"pagesVacuumed\":" + pagesVacuumed.sum() +
+            ",\"yields\":" + yields.sum() + ",\"lastRunMs\":" + lastRunMs + ",\"archive\":" + archive.statsJson() + "}";
+    }
+
+    private void run() {
+        File dir = archive.dir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Archiver off: cannot create " + dir);
+            return;
+        }
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(dir, "archiver.lock"), "rw");
+             FileLock lock = lockFile.getChannel().tryLock()) {
+            if (lock == null) {
+                System.out.println("Archiver off: another process is archiving into " + dir);
+                return;
+            }
+            // left by a run that died before renaming its segment into place
+            File[] stale = dir.listFiles((d, n) -> n.startsWith("seg-") && n.endsWith(".tmp"));
+            if (stale != null) for (File f : stale) f.delete();
+            System.out.println("Archiving mail older than " + AFTER_DAYS + " days into " + dir);
+            while (!closed) {
+                long start = System.currentTimeMillis();
+                String cutoff = SQL_TIME.format(java.time.Instant.now().minus(AFTER_DAYS, java.time.temporal.ChronoUnit.DAYS));
+                for (InboxShard shard : shards) {
+                    if (closed) break;
+                    try {
+                        finishPending(shard);
+                        archiveOlderThan(shard, cutoff);
+                        vacuum(shard);
+                    } catch (SQLException | IOException e) {
+                        if (!closed) System.err.println("Archiving shard " + shard.index + " stopped: " + e);
+                    }
+                }
+                lastRunMs = System.currentTimeMillis() - start;
+                Thread.sleep(INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Archiver off: " + e.getMessage());
+        }
+    }
+
+    // Rows whose segment is in place but which were not all deleted before a restart
+    private void finishPending(InboxShard shard) throws SQLException, IOException, InterruptedException {
+        List<String> pending = new ArrayList<>();
+        try (ConnectionPool.Lease lease = shard.pool.reader();
+             ResultSet rs = lease.prepare("SELECT name FROM archived_segments WHERE deleted = 0").executeQuery()) {
+            while (rs.next()) pending.add(rs.getString(1));
+        }
+        for (String name : pending) {
+            long[] ids = archive.ids(name);
+            if (ids == null) {
+                // never renamed into place: the rows were not archived, forget the run
+                try (ConnectionPool.Lease lease = shard.pool.writer()) {
+                    PreparedStatement ps = lease.prepare("DELETE FROM archived_segments WHERE name = ?");
+                    ps.setString(1, name);
+                    ps.executeUpdate();
+                }
+                continue;
+            }
+            List<Long> list = new ArrayList<>(ids.length);
+            for (long id : ids) list.add(id);
+            delete(shard, name, list);
+        }
+    }
+
+    private void archiveOlderThan(InboxShard shard, String cutoff) throws SQLException, IOException, InterruptedException {
+        String afterTime = "";
+        long afterId = 0;
+        MailArchive.SegmentWriter segment = null;
+        List<Long> ids = new ArrayList<>();
+        try {
+            while (!closed) {
+                yieldToWriter(shard);
+                int n = 0;
+                try (ConnectionPool.Lease lease = shard.pool.reader()) {
+                    PreparedStatement ps = lease.prepare(SELECT_OLD);
+                    ps.setString(1, cutoff);
+                    ps.setString(2, afterTime);
+                    ps.setLong(3, afterId);
+                    ps.setInt(4, BATCH_ROWS);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            n++;
+                            if (segment == null) segment = archive.newSegment();
+                            append(lease, segment, rs);
+                            afterId = rs.getLong("id");
+                            afterTime = rs.getString("timestamp");
+                            ids.add(afterId);
+                        }
+                    }
+                }
+                if (segment != null && (n < BATCH_ROWS || segment.size() >= SEGMENT_BYTES)) {
+                    publish(shard, segment, ids);
+                    segment = null;
+                    ids.clear();
+                }
+                if (n < BATCH_ROWS) return;
+                Thread.sleep(PAUSE_MS);
+            }
+        } finally {
+            if (segment != null) segment.close(); // discards an unfinished segment
+        }
+    }
+
+    // Bodies and lists are fetched once per segment, not joined into every row: a fan-out's
+    // rows share both, and its list can hold thousands of addresses
+    private static void append(ConnectionPool.Lease lease, MailArchive.SegmentWriter segment, ResultSet rs) throws SQLException, IOException {
+        byte[] hash = rs.getBytes("body_hash");
+        if (hash == null) {
+            // written before bodies moved out of inbox
+            MessageBodies.Encoded e = MessageBodies.encode(rs.getString("body"));
+            hash = e.hash;
+            if (!segment.hasBody(hash)) segment.addBody(e.hash, e.codec, e.size, e.data);
+        } else if (!segment.hasBody(hash)) {
+            PreparedStatement body = lease.prepare("SELECT codec, size, data FROM bodies WHERE hash = ?");
+            body.setBytes(1, hash);
+            try (ResultSet b = body.executeQuery()) {
+                if (b.next()) segment.addBody(hash, b.getInt(1), b.getInt(2), b.getBytes(3));
+                else hash = null;
+            }
+        }
+        long id = rs.getLong("id");
+        long listId = rs.getLong("list_id");
+        String summary = null;
+        if (listId != 0) {
+            PreparedStatement list = lease.prepare("SELECT to_list, cc_list, bcc_list, summary FROM recipient_lists WHERE id = ?");
+            list.setLong(1, listId);
+            try (ResultSet l = list.executeQuery()) {
+                if (l.next()) {
+                    if (!segment.hasList(listId)) segment.addList(listId, l.getString(1), l.getString(2), l.getString(3));
+                    summary = l.getString(4);
+                } else {
+                    listId = 0;
+                }
+            }
+        }
+        String preview = rs.getString("preview");
+        if (preview == null) preview = MessageBodies.preview(rs.getString("body"));
+        segment.addMail(id, listId, hash, rs.getString("sender"), rs.getString("receiver"), rs.getString("subject"),
+            preview, rs.getString("timestamp"), summary);
+    }
+
+    private void publish(InboxShard shard, MailArchive.SegmentWriter segment, List<Long> ids)
+            throws SQLException, IOException, InterruptedException {
+        // recorded before the rename: a crash in between leaves a record without a file, which
+        // finishPending forgets, rather than a file whose rows nobody deletes
+        try (ConnectionPool.Lease lease = shard.pool.writer()) {
+            PreparedStatement ps = lease.prepare("INSERT INTO archived_segments (name, rows) VALUES (?, ?)");
+            ps.setString(1, segment.name);
+            ps.setInt(2, ids.size());
+            ps.executeUpdate();
+        }
+        segment.finish();
+        segmentsWritten.increment();
+        delete(shard, segment.name, ids);
+    }
+
+    private void delete(InboxShard shard, String name, List<Long> ids) throws SQLException, InterruptedException {
+        for (int from = 0; from < ids.size() && !closed; from += BATCH_ROWS) {
+            yieldToWriter(shard);
+            List<Long> batch = ids.subList(from, Math.min(ids.size(), from + BATCH_ROWS));
+            try (ConnectionPool.Lease lease = shard.pool.writer()) {
+                Connection conn = lease.connection();
+                conn.setAutoCommit(false);
+                try {
+                    archived.add(deleteRows(lease, batch));
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            Thread.sleep(PAUSE_MS);
+        }
+        if (closed) return;
+        try (ConnectionPool.Lease lease = shard.pool.writer()) {
+            PreparedStatement ps = lease.prepare("UPDATE archived_segments SET deleted = 1 WHERE name = ?");
+            ps.setString(1, name);
+            ps.executeUpdate();
+        }
+    }
+
+    // The rows, then whatever only they referenced; their search entries are kept (schema migration 11)
+    private static int deleteRows(ConnectionPool.Lease lease, List<Long> batch) throws SQLException {
+        Map<String, byte[]> hashes = new HashMap<>();
+        Set<Long> lists = new HashSet<>();
+        int deleted = 0;
+        PreparedStatement row = lease.prepare("DELETE FROM inbox WHERE id = ? RETURNING body_hash, list_id");
+        for (long id : batch) {
+            row.setLong(1, id);
+            try (ResultSet rs = row.executeQuery()) {
+                if (!rs.next()) continue;
+                deleted++;
+                byte[] hash = rs.getBytes(1);
+                if (hash != null) hashes.put(HexFormat.of().formatHex(hash), hash);
+                long listId = rs.getLong(2);
+                if (listId != 0) lists.add(listId);
+            }
+        }
+        PreparedStatement body = lease.prepare(
+            "DELETE FROM bodies WHERE hash = ? AND NOT EXISTS (SELECT 1 FROM inbox WHERE body_hash = ?)");
+        for (byte[] hash : hashes.values()) {
+            body.setBytes(1, hash);
+            body.setBytes(2, hash);
+            body.executeUpdate();
+        }
+        PreparedStatement list = lease.prepare(
+            "DELETE FROM recipient_lists WHERE id = ? AND NOT EXISTS (SELECT 1 FROM inbox WHERE list_id = ?)");
+        for (long listId : lists) {
+            list.setLong(1, listId);
+            list.setLong(2, listId);
+            list.executeUpdate();
+        }
+        return deleted;
+    }
+
+    // Incremental vacuum only works on files created with auto_vacuum=INCREMENTAL (ConnectionPool
+    // asks for it on new files); older ones keep their free pages for reuse until a full VACUUM
+    private void vacuum(InboxShard shard) throws SQLException, InterruptedException {
+        while (!closed) {
+            yieldToWriter(shard);
+            try (ConnectionPool.Lease lease = shard.pool.writer()) {
+                long mode, free;
+                try (ResultSet rs = lease.prepare("PRAGMA auto_vacuum").executeQuery()) {
+                    mode = rs.next() ? rs.getLong(1) : 0;
+                }
+                if (mode != 2) return;
+                try (ResultSet rs = lease.prepare("PRAGMA freelist_count").executeQuery()) {
+                    free = rs.next() ? rs.getLong(1) : 0;
+                }
+                if (free == 0) return;
+                try (Statement stmt = lease.connection().createStatement()) {
+                    stmt.execute("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")");
+                }
+                pagesVacuumed.add(Math.min(free, VACUUM_PAGES));
+            }
+            Thread.sleep(PAUSE_MS);
+        }
+    }
+
+    // Foreground inserts go first: wait while the shard's writer has a queue, but not forever
+    private void yieldToWriter(InboxShard shard) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_YIELD_MS);
+        while (shard.writer.queued() > 0 && System.nanoTime() < deadline && !closed) {
+            yields.increment();
+            Thread.sleep(PAUSE_MS);
+        }
+    }
+}
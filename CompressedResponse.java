@@ -0,0 +1,181 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Response body stream that compresses according to Accept-Encoding (gzip, else deflate).
+ *
+ * Nothing is sent until {@code compress.minBytes} (default 1 KB) have been written: a body that
+ * ends below that goes out uncompressed with a Content-Length, a larger one switches to a
+ * chunked, compressed response and is compressed as it is written, so streamed bodies are
+ * never held in memory. Deflaters come from a small pool ({@code compress.poolSize}) because
+ * each one owns native zlib memory that is slow to allocate and only freed by end().
+ */
+public class CompressedResponse extends OutputStream {
+    private static final int MIN_BYTES = Integer.getInteger("compress.minBytes", 1024);
+    private static final int LEVEL = Integer.getInteger("compress.level", 6);
+    private static final int POOL_SIZE = Integer.getInteger("compress.poolSize", 2 * Runtime.getRuntime().availableProcessors());
+
+    // gzip wraps raw deflate data itself (header + CRC trailer); HTTP "deflate" means zlib format
+    private static final BlockingQueue<Deflater> RAW_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Deflater> ZLIB_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final HttpExchange ex;
+    private final int code;
+    private final String encoding; // "gzip", "deflate" or null
+    private byte[] pending = new byte[MIN_BYTES];
+    private int pendingLength;
+
+    private OutputStream out;      // set once headers are sent
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] deflateBuffer;
+    private boolean closed;
+
+    private CompressedResponse(HttpExchange ex, int code, String encoding) {
+        this.ex = ex;
+        this.code = code;
+        this.encoding = encoding;
+    }
+
+    /** A body stream for ex; headers are sent lazily. The caller adds Content-Type first and must close it. */
+    public static CompressedResponse open(HttpExchange ex, int code) {
+        String encoding = null;
+        if (WebServer.acceptsEncoding(ex, "gzip")) encoding = "gzip";
+        else if (WebServer.acceptsEncoding(ex, "deflate")) encoding = "deflate";
+        ex.getResponseHeaders().add("Vary", "Accept-Encoding");
+        return new CompressedResponse(ex, code, encoding);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Response already closed");
+        if (out == null) {
+            if (pendingLength + len <= pending.length) {
+                System.arraycopy(b, off, pending, pendingLength, len);
+                pendingLength += len;
+                return;
+            }
+            if (encoding == null) {
+                ex.sendResponseHeaders(code, 0); // too big to wait for: stream it chunked as is
+                out = ex.getResponseBody();
+            } else {
+                startCompressed();
+            }
+            int buffered = pendingLength;
+            pendingLength = 0;
+            writeThrough(pending, 0, buffered);
+            pending = null;
+        }
+        writeThrough(b, off, len);
+    }
+
+    // Below the threshold flushing would commit the headers too early, so it only applies afterwards
+    @Override
+    public void flush() throws IOException {
+        if (out == null) return;
+        if (deflater != null) {
+            drain(Deflater.SYNC_FLUSH);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (out == null) {
+                // small body: plain response with an exact length
+                ex.sendResponseHeaders(code, pendingLength == 0 ? -1 : pendingLength);
+                if (pendingLength > 0) {
+                    try (OutputStream os = ex.getResponseBody()) {
+                        os.write(pending, 0, pendingLength);
+                    }
+                } else {
+                    ex.close();
+                }
+                return;
+            }
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+                    out.write(deflateBuffer, 0, n);
+                }
+                if (crc != null) writeGzipTrailer();
+            }
+            out.close();
+        } finally {
+            releaseDeflater();
+        }
+    }
+
+    private void startCompressed() throws IOException {
+        ex.getResponseHeaders().add("Content-Encoding", encoding);
+        ex.sendResponseHeaders(code, 0);
+        out = ex.getResponseBody();
+        boolean gzip = encoding.equals("gzip");
+        deflater = acquire(gzip ? RAW_POOL : ZLIB_POOL, gzip);
+        deflateBuffer = new byte[8192];
+        if (gzip) {
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        }
+    }
+
+    private void writeThrough(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        if (deflater == null) {
+            out.write(b, off, len);
+            return;
+        }
+        if (crc != null) crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.NO_FLUSH);
+            if (n > 0) out.write(deflateBuffer, 0, n);
+        }
+    }
+
+    private void drain(int flushMode) throws IOException {
+        int n;
+        do {
+            n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, flushMode);
+            if (n > 0) out.write(deflateBuffer, 0, n);
+        } while (n == deflateBuffer.length);
+    }
+
+    private void writeGzipTrailer() throws IOException {
+        long c = crc.getValue();
+        long size = deflater.getBytesRead();
+        byte[] t = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            t[i] = (byte) (c >>> (8 * i));
+            t[4 + i] = (byte) (size >>> (8 * i)); // ISIZE is the input length mod 2^32
+        }
+        out.write(t);
+    }
+
+    private static Deflater acquire(BlockingQueue<Deflater> pool, boolean raw) {
+        Deflater d = pool.poll();
+        return d != null ? d : new Deflater(LEVEL, raw);
+    }
+
+    private void releaseDeflater() {
+        if (deflater == null) return;
+        Deflater d = deflater;
+        deflater = null;
+        d.reset();
+        if (!(crc != null ? RAW_POOL : ZLIB_POOL).offer(d)) d.end();
+    }
+}
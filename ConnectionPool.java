@@ -0,0 +1,255 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived SQLite connections shared by {@link Database}.
+ *
+ * SQLite allows a single writer at a time, so there is exactly one writer connection
+ * guarded by a fair lock, plus a bounded set of read-only connections that WAL lets run
+ * alongside it. Every connection is opened once at startup, tuned with pragmas and keeps
+ * its own cache of prepared statements keyed by SQL text.
+ *
+ * Usage:
+ * <pre>
+ *   try (ConnectionPool.Lease lease = pool.reader()) {
+ *       PreparedStatement ps = lease.prepare("SELECT ...");
+ *       ...
+ *   }
+ * </pre>
+ * Statements returned by {@link Lease#prepare} belong to the pool and must not be closed
+ * by the caller (result sets still should be).
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final long BORROW_TIMEOUT_MS = Long.getLong("db.borrowTimeoutMs", 30_000);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("db.statementCache", 64);
+
+    private final String url;
+    private final int readerCount;
+    private final BlockingQueue<PooledConnection> idleReaders;
+    private final PooledConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+
+    // Stats
+    private final LongAdder readerBorrows = new LongAdder();
+    private final LongAdder writerBorrows = new LongAdder();
+    private final LongAdder readerWaitNanos = new LongAdder();
+    private final LongAdder writerWaitNanos = new LongAdder();
+    private final LongAccumulator maxReaderWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxWriterWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder borrowTimeouts = new LongAdder();
+
+    public ConnectionPool(String url, int readerCount) throws SQLException {
+        if (readerCount < 1) throw new IllegalArgumentException("readerCount must be >= 1");
+        this.url = url;
+        this.readerCount = readerCount;
+        this.idleReaders = new ArrayBlockingQueue<>(readerCount);
+        // Open the writer first so WAL mode is switched on before any reader attaches
+        this.writer = open(false);
+        for (int i = 0; i < readerCount; i++) idleReaders.add(open(true));
+    }
+
+    private PooledConnection open(boolean readOnly) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            // only takes effect on a new, empty file; lets Archiver hand freed pages back
+            if (!readOnly) stmt.execute("PRAGMA auto_vacuum=INCREMENTAL");
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");      // safe with WAL, fsync only at checkpoints
+            stmt.execute("PRAGMA busy_timeout=5000");
+            stmt.execute("PRAGMA temp_store=MEMORY");
+            stmt.execute("PRAGMA cache_size=-8000");        // ~8 MB page cache per connection
+            stmt.execute("PRAGMA mmap_size=268435456");     // 256 MB memory-mapped reads
+            if (readOnly) stmt.execute("PRAGMA query_only=ON");
+        }
+        return new PooledConnection(conn, readOnly);
+    }
+
+    /** Borrow one of the reader connections, waiting if all are in use. */
+    public Lease reader() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection pc;
+        try {
+            pc = idleReaders.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        if (pc == null) {
+            borrowTimeouts.increment();
+            throw new SQLException("Timed out waiting for a reader connection after " + BORROW_TIMEOUT_MS + " ms");
+        }
+        readerBorrows.increment();
+        readerWaitNanos.add(waited);
+        maxReaderWaitNanos.accumulate(waited);
+        return new Lease(pc);
+    }
+
+    /** Borrow the single writer connection, waiting for the current writer to finish. */
+    public Lease writer() throws SQLException {
+        long start = System.nanoTime();
+        boolean locked;
+        try {
+            locked = writerLock.tryLock(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the writer connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        if (!locked) {
+            borrowTimeouts.increment();
+            throw new SQLException("Timed out waiting for the writer connection after " + BORROW_TIMEOUT_MS + " ms");
+        }
+        writerBorrows.increment();
+        writerWaitNanos.add(waited);
+        maxWriterWaitNanos.accumulate(waited);
+        return new Lease(writer);
+    }
+
+    private void release(PooledConnection pc) {
+        if (pc == writer) {
+            writerLock.unlock();
+        } else {
+            idleReaders.offer(pc);
+        }
+    }
+
+    public Stats stats() {
+        int idle = idleReaders.size();
+        return new Stats(readerCount, readerCount - idle, idle, writerLock.isLocked(), writerLock.getQueueLength(),
+            readerBorrows.sum(), writerBorrows.sum(), readerWaitNanos.sum(), writerWaitNanos.sum(),
+            maxReaderWaitNanos.get(), maxWriterWaitNanos.get(), borrowTimeouts.sum());
+    }
+
+    @Override
+    public void close() {
+        List<PooledConnection> all = new ArrayList<>();
+        idleReaders.drainTo(all);
+        all.add(writer);
+        for (PooledConnection pc : all) pc.closeQuietly();
+    }
+
+    // ---------------- Lease ----------------
+    /** Exclusive use of one pooled connection until {@link #close()} hands it back. */
+    public final class Lease implements AutoCloseable {
+        private final PooledConnection pc;
+        private boolean released;
+
+        private Lease(PooledConnection pc) { this.pc = pc; }
+
+        public Connection connection() { return pc.conn; }
+
+        /** Returns a cached statement for this connection with its parameters cleared. */
+        public PreparedStatement prepare(String sql) throws SQLException { return pc.prepare(sql); }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            try {
+                if (!pc.readOnly && !pc.conn.getAutoCommit()) {
+                    // Caller left a transaction open (e.g. exception before commit): undo it
+                    pc.conn.rollback();
+                    pc.conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                release(pc);
+            }
+        }
+    }
+
+    // ---------------- Pooled connection ----------------
+    private static final class PooledConnection {
+        final Connection conn;
+        final boolean readOnly;
+        // Access-ordered so the least recently used statement is closed when the cache is full.
+        // Only touched by the thread holding the lease, so no locking is needed.
+        final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) return false;
+                try { eldest.getValue().close(); } catch (SQLException ignored) {}
+                return true;
+            }
+        };
+
+        PooledConnection(Connection conn, boolean readOnly) {
+            this.conn = conn;
+            this.readOnly = readOnly;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null || ps.isClosed()) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                ps.clearParameters();
+            }
+            return ps;
+        }
+
+        void closeQuietly() {
+            for (PreparedStatement ps : statements.values()) {
+                try { ps.close(); } catch (SQLException ignored) {}
+            }
+            statements.clear();
+            try { conn.close(); } catch (SQLException ignored) {}
+        }
+    }
+
+    // ---------------- Stats ----------------
+    /** Point-in-time snapshot of pool usage, for sizing the reader count. */
+    public static final class Stats {
+        public final int readers;
+        public final int activeReaders;
+        public final int idleReaders;
+        public final boolean writerBusy;
+        public final int writerWaiters;
+        public final long readerBorrows;
+        public final long writerBorrows;
+        public final long readerWaitNanos;
+        public final long writerWaitNanos;
+        public final long maxReaderWaitNanos;
+        public final long maxWriterWaitNanos;
+        public final long borrowTimeouts;
+
+        Stats(int readers, int activeReaders, int idleReaders, boolean writerBusy, int writerWaiters,
+              long readerBorrows, long writerBorrows, long readerWaitNanos, long writerWaitNanos,
+              long maxReaderWaitNanos, long maxWriterWaitNanos, long borrowTimeouts) {
+            this.readers = readers;
+            this.activeReaders = activeReaders;
+            this.idleReaders = idleReaders;
+            this.writerBusy = writerBusy;
+            this.writerWaiters = writerWaiters;
+            this.readerBorrows = readerBorrows;
+            this.writerBorrows = writerBorrows;
+            this.readerWaitNanos = readerWaitNanos;
+            this.writerWaitNanos = writerWaitNanos;
+            this.maxReaderWaitNanos = maxReaderWaitNanos;
+            this.maxWriterWaitNanos = maxWriterWaitNanos;
+            this.borrowTimeouts = borrowTimeouts;
+        }
+
+        public double avgReaderWaitMicros() { return readerBorrows == 0 ? 0 : readerWaitNanos / 1000.0 / readerBorrows; }
+        public double avgWriterWaitMicros() { return writerBorrows == 0 ? 0 : writerWaitNanos / 1000.0 / writerBorrows; }
+
+        public String toJson() {
+            return String.format(Locale.ROOT,
+                "{\"readers\":%d,\"activeReaders\":%d,\"idleReaders\":%d,\"writerBusy\":%b,\"writerWaiters\":%d," +
+                "\"readerBorrows\":%d,\"writerBorrows\":%d,\"avgReaderWaitMicros\":%.1f,\"avgWriterWaitMicros\":%.1f," +
+                "\"maxReaderWaitMicros\":%.1f,\"maxWriterWaitMicros\":%.1f,\"borrowTimeouts\":%d}",
+                readers, activeReaders, idleReaders, writerBusy, writerWaiters, readerBorrows, writerBorrows,
+                avgReaderWaitMicros(), avgWriterWaitMicros(), maxReaderWaitNanos / 1000.0, maxWriterWaitNanos / 1000.0,
+                borrowTimeouts);
+        }
+
+        @Override
+        public String toString() { return toJson(); }
+    }
+}
@@ -1,11 +1,75 @@
+import java.io.IOException;
+import java.io.StringWriter;
 import java.sql.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Database {
-    private static final String DB_URL = "jdbc:sqlite:Users.db";
-    private static final SecureRandom RANDOM = new SecureRandom();
+    // -Ddb.file points a process (e.g. a benchmark) at another database; shard files are named after it
+    static final String DB_FILE = System.getProperty("db.file", "Users.db");
+    private static final String DB_URL = "jdbc:sqlite:" + DB_FILE;
+    private static final int READER_CONNECTIONS = Integer.getInteger("db.readers", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // same text as SQLite's CURRENT_TIMESTAMP, for events published before the row is read back
+    private static final java.time.format.DateTimeFormatter SQL_TIME =
+        java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(java.time.ZoneOffset.UTC);
+
+    // Per-method latency for /api/metrics; get*Json and storeEmail are timed by the methods they call
+    private static final Metrics.Timer REGISTER_TIME = callTimer("registerUser");
+    private static final Metrics.Timer LOGIN_TIME = callTimer("login");
+    private static final Metrics.Timer REVOKE_TIME = callTimer("revokeToken");
+    private static final Metrics.Timer REVOKED_SINCE_TIME = callTimer("revokedTokensSince");
+    private static final Metrics.Timer PURGE_REVOKED_TIME = callTimer("purgeRevokedTokens");
+    private static final Metrics.Timer STORE_TIME = callTimer("storeEmailAsync");
+    private static final Metrics.Timer FANOUT_TIME = callTimer("storeEmailAsync_fanout");
+    private static final Metrics.Timer INBOX_SINCE_TIME = callTimer("forEachInboxSince");
+    private static final Metrics.Timer SHOW_INBOX_TIME = callTimer("showInbox");
+    private static final Metrics.Timer SHOW_SENT_TIME = callTimer("showSent");
+    private static final Metrics.Timer INBOX_JSON_TIME = callTimer("writeInboxJson");
+    private static final Metrics.Timer SENT_JSON_TIME = callTimer("writeSentJson");
+    private static final Metrics.Timer INBOX_PAGE_TIME = callTimer("writeInboxPage");
+    private static final Metrics.Timer SENT_PAGE_TIME = callTimer("writeSentPage");
+    private static final Metrics.Timer MESSAGE_TIME = callTimer("writeMessage");
+    private static final Metrics.Timer SEARCH_TIME = callTimer("writeSearch");
+    // Until every source of a mailbox listing has its first rows: the SQL part of the write* methods above
+    private static final Metrics.Timer MAILBOX_QUERY_TIME =
+        Metrics.timer("db_query_seconds", "Time until a mailbox query has its first rows from every shard and the archive", "query", "mailbox");
+
+    private static Metrics.Timer callTimer(String method) {
+        return Metrics.timer("db_call_seconds", "Time spent in each Database method; async ones until completion", "method", method);
+    }
+
+    // Long-lived connections: one writer, READER_CONNECTIONS readers
+    // Users.db: users and revoked tokens, and the inbox unless it is sharded
+    private final ConnectionPool pool;
+    // The inbox, one shard per file (see InboxShard); each batches its inserts with its own
+    // group-commit writer and keeps its own FTS5 search index
+    private final InboxShard[] shards;
+    // Scatter-gather reads over several shards run their queries here in parallel
+    private final ExecutorService shardQueries;
+    // Cold tier: mail older than archive.afterDays, moved out of the shards by the archiver
+    private final MailArchive archive = new MailArchive(new java.io.File(System.getProperty("archive.dir", "archive")));
+    private final Archiver archiver;
+    // Pluggable hash formats on a bounded executor of their own
+    private final PasswordService passwords = new PasswordService();
+    // Cached MX/A lookups; -Ddns.resolver=stub for offline use
+    private final DomainValidator domainValidator = new DomainValidator(DnsResolver.fromConfig());
+    // New-mail notifications for /api/inbox/stream, published after each commit
+    private final InboxEvents inboxEvents = new InboxEvents();
+    // Mail committed by other processes (EmailReceiverServer, other nodes) is found by polling
+    private static final long EXTERNAL_POLL_MS = Long.getLong("db.externalPollMs", 1_000);
+    private volatile boolean closed;
 
     public Database() {
         try {
@@ -14,294 +78,949 @@ public class Database {
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
-        createTables();
-        addTimestampColumnIfNotExists(); // Ensure timestamp exists for legacy DBs
+        try {
+            pool = new ConnectionPool(DB_URL, READER_CONNECTIONS);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot open database " + DB_URL, e);
+        }
+        migrateSchema();
+        shards = openShards();
+        shardQueries = shards.length == 1 ? null : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-query");
+            t.setDaemon(true);
+            return t;
+        });
+        for (InboxShard shard : shards) shard.search.startBackfill();
+        archiver = new Archiver(shards, archive);
+        archiver.start();
+        if (EXTERNAL_POLL_MS > 0) {
+            for (InboxShard shard : shards) shard.highestPublishedId.set(maxInboxId(shard));
+            Thread t = new Thread(this::pollExternalWrites, "db-external-writes");
+            t.setDaemon(true);
+            t.start();
+        }
     }
 
-    private void createTables() {
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement()) {
-
-            // Users table (email primary key, password stored as salt:hash)
-            stmt.execute(
-                "CREATE TABLE IF NOT EXISTS users (" +
-                "email TEXT PRIMARY KEY, password TEXT)"
-            );
-
-            // Inbox table with id and timestamp
-            stmt.execute(
-                "CREATE TABLE IF NOT EXISTS inbox (" +
-                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "sender TEXT, " +
-                "receiver TEXT, " +
-                "subject TEXT, " +
-                "body TEXT, " +
-                "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)"
-            );
-
+    // Apply pending schema migrations; issues no DDL when the schema is already current
+    private void migrateSchema() {
+        try (ConnectionPool.Lease lease = pool.writer()) {
+            SchemaMigrations.migrate(lease);
         } catch (SQLException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Schema migration failed", e);
         }
     }
 
-    // Safely add timestamp column if it doesn't exist (legacy DBs)
-    private void addTimestampColumnIfNotExists() {
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(
-                "ALTER TABLE inbox ADD COLUMN timestamp DATETIME DEFAULT CURRENT_TIMESTAMP"
-            );
+    // The layout recorded in Users.db; -Ddb.shards=N only checks it, ReshardTool changes it
+    private InboxShard[] openShards() {
+        int count;
+        try (ConnectionPool.Lease lease = pool.reader();
+             ResultSet rs = lease.prepare("SELECT shards FROM storage_layout WHERE id = 1").executeQuery()) {
+            count = rs.next() ? rs.getInt(1) : 1;
         } catch (SQLException e) {
-            // Ignore error if column already exists or ALTER unsupported
-            String msg = e.getMessage();
-            if (msg == null || (!msg.contains("duplicate column name") && !msg.contains("duplicate column"))) {
-                // If it's a different error, print for debugging
-                // (Most common: "duplicate column name: timestamp")
-                // Silently ignore otherwise to keep compatibility
+            throw new IllegalStateException("Cannot read the storage layout", e);
+        }
+        Integer wanted = Integer.getInteger("db.shards");
+        if (wanted != null && wanted != count) {
+            throw new IllegalStateException(DB_FILE + " holds its inbox in " + count + " shard(s), not " + wanted +
+                "; stop all servers and run ReshardTool " + wanted + " first");
+        }
+        if (count == 1) return new InboxShard[] {InboxShard.unsharded(pool, archive)};
+        InboxShard[] opened = new InboxShard[count];
+        for (int k = 0; k < count; k++) {
+            try {
+                opened[k] = InboxShard.open(k, count, READER_CONNECTIONS, archive);
+            } catch (SQLException e) {
+                for (int j = 0; j < k; j++) opened[j].close();
+                throw new IllegalStateException("Cannot open inbox shard " + InboxShard.fileName(k, count), e);
             }
         }
+        System.out.println("Inbox sharded across " + count + " files");
+        return opened;
+    }
+
+    private InboxShard shardFor(String receiver) {
+        return shards[InboxShard.of(receiver, shards.length)];
+    }
+
+    // null for an id no shard could have numbered
+    private InboxShard shardForId(long id) {
+        int k = InboxShard.ofId(id);
+        return id > 0 && k < shards.length ? shards[k] : null;
+    }
+
+    // Flushes queued mail and closes all connections
+    public void close() {
+        closed = true;
+        archiver.close();
+        for (InboxShard shard : shards) shard.close();
+        if (shardQueries != null) shardQueries.shutdown();
+        pool.close();
+    }
+
+    // Archiver progress and the size of the archive
+    public String archiveStatsJson() {
+        return archiver.statsJson();
+    }
+
+    public String authStatsJson() {
+        return passwords.statsJson();
+    }
+
+    // Connection pool usage snapshot (borrow waits, active/idle readers)
+    public ConnectionPool.Stats poolStats() {
+        return pool.stats();
     }
 
     // ---------------- USER METHODS ----------------
     // Returns true if registration succeeded, false otherwise
     public boolean registerUser(String email, String password) {
-        if (!isValidEmailFormat(email)) {
-            System.out.println("Invalid email format");
-            return false;
-        }
-        String domain = email.substring(email.indexOf('@') + 1);
-        if (!hasValidDomain(domain)) {
-            System.out.println("Email domain seems invalid or unreachable");
-            return false;
-        }
-
-        String hashed = null;
+        long start = System.nanoTime();
         try {
-            hashed = hashPassword(password);
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Password hashing failed: " + e.getMessage());
-            return false;
-        }
-
-        String sql = "INSERT INTO users (email, password) VALUES (?, ?)";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, email);
-            ps.setString(2, hashed);
-            ps.executeUpdate();
-            System.out.println("User registered successfully");
-            return true;
-        } catch (SQLException e) {
-            String msg = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
-            if (msg.contains("unique") || msg.contains("constraint")) {
-                System.out.println("User already exists");
+            if (!isValidEmailFormat(email)) {
+                System.out.println("Invalid email format");
                 return false;
-            } else {
-                e.printStackTrace();
+            }
+            String domain = email.substring(email.indexOf('@') + 1);
+            if (!hasValidDomain(domain)) {
+                System.out.println("Email domain seems invalid or unreachable");
                 return false;
             }
+
+            // Runs on the bounded auth executor; RejectedExecutionException propagates when it is saturated
+            String hashed = passwords.hash(password);
+
+            String sql = "INSERT INTO users (email, password) VALUES (?, ?)";
+            try (ConnectionPool.Lease lease = pool.writer()) {
+                PreparedStatement ps = lease.prepare(sql);
+                ps.setString(1, email);
+                ps.setString(2, hashed);
+                ps.executeUpdate();
+                System.out.println("User registered successfully");
+                return true;
+            } catch (SQLException e) {
+                String msg = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+                if (msg.contains("unique") || msg.contains("constraint")) {
+                    System.out.println("User already exists");
+                    return false;
+                } else {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        } finally {
+            REGISTER_TIME.recordSince(start);
         }
     }
 
+    // Throws RejectedExecutionException when the auth executor is saturated
     public boolean login(String email, String password) {
-        String sql = "SELECT password FROM users WHERE email=?";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, email);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (!rs.next()) return false;
-                String stored = rs.getString("password");
-
-                // If stored contains salt:hash format, verify
-                if (stored != null && stored.contains(":")) {
-                    boolean ok = verifyPassword(password, stored);
-                    return ok;
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT password FROM users WHERE email=?";
+            String stored;
+            try (ConnectionPool.Lease lease = pool.reader()) {
+                PreparedStatement ps = lease.prepare(sql);
+                ps.setString(1, email);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return false;
+                    stored = rs.getString("password");
                 }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            // Hashing happens after the reader connection is returned to the pool
+            if (!passwords.verify(password, stored)) return false;
 
-                // Backwards compatibility: some entries may be plaintext
-                if (stored != null && stored.equals(password)) {
-                    // Upgrade to hashed password for security
-                    try (PreparedStatement update = conn.prepareStatement("UPDATE users SET password=? WHERE email=?")) {
-                        update.setString(1, hashPassword(password));
+            // Transparently upgrade plaintext, legacy sha256 and weaker KDF hashes
+            if (passwords.needsRehash(stored)) {
+                try {
+                    String upgraded = passwords.hash(password); // before taking the writer, not while holding it
+                    try (ConnectionPool.Lease writer = pool.writer()) {
+                        PreparedStatement update = writer.prepare("UPDATE users SET password=? WHERE email=? AND password=?");
+                        update.setString(1, upgraded);
                         update.setString(2, email);
+                        update.setString(3, stored);
                         update.executeUpdate();
-                    } catch (NoSuchAlgorithmException ex) {
-                        // ignore upgrade failure
                     }
-                    return true;
+                } catch (SQLException | java.util.concurrent.RejectedExecutionException e) {
+                    // ignore upgrade failure; the old hash still works
                 }
+            }
+            return true;
+        } finally {
+            LOGIN_TIME.recordSince(start);
+        }
+    }
 
+    // ---------------- TOKEN REVOCATION ----------------
+    public boolean revokeToken(String jti, long expiresAtMillis) {
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.Lease lease = pool.writer()) {
+                PreparedStatement ps = lease.prepare("INSERT OR IGNORE INTO revoked_tokens (jti, expires_at) VALUES (?, ?)");
+                ps.setString(1, jti);
+                ps.setLong(2, expiresAtMillis);
+                ps.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                e.printStackTrace();
                 return false;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+        } finally {
+            REVOKE_TIME.recordSince(start);
+        }
+    }
+
+    // Adds revocations with seq > afterSeq to into (jti -> expiry) and returns the highest seq seen
+    public long revokedTokensSince(long afterSeq, Map<String, Long> into) {
+        long start = System.nanoTime();
+        try {
+            long last = afterSeq;
+            try (ConnectionPool.Lease lease = pool.reader()) {
+                PreparedStatement ps = lease.prepare("SELECT seq, jti, expires_at FROM revoked_tokens WHERE seq > ? ORDER BY seq");
+                ps.setLong(1, afterSeq);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        last = rs.getLong(1);
+                        into.put(rs.getString(2), rs.getLong(3));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return last;
+        } finally {
+            REVOKED_SINCE_TIME.recordSince(start);
+        }
+    }
+
+    public void purgeRevokedTokens(long nowMillis) {
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.Lease lease = pool.writer()) {
+                PreparedStatement ps = lease.prepare("DELETE FROM revoked_tokens WHERE expires_at < ?");
+                ps.setLong(1, nowMillis);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            PURGE_REVOKED_TIME.recordSince(start);
         }
     }
 
     // ---------------- EMAIL METHODS ----------------
     public void storeEmail(String sender, String receiver,
                            String subject, String body) {
-        String sql = "INSERT INTO inbox (sender, receiver, subject, body) VALUES (?, ?, ?, ?)";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, sender);
-            ps.setString(2, receiver);
-            ps.setString(3, subject);
-            ps.setString(4, body);
-            ps.executeUpdate();
+        try {
+            storeEmailAsync(sender, receiver, subject, body).get();
             System.out.println("Email stored in DB");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    // One row per recipient (to, then cc, then bcc, already validated and deduplicated) committed in
+    // one transaction per shard with a single copy of the body each; completes with the ids in that
+    // order, -1 for receivers whose shard failed after the first one committed
+    public CompletableFuture<long[]> storeEmailAsync(String sender, List<String> to, List<String> cc, List<String> bcc,
+                                                     String subject, String body) {
+        List<String> receivers = new ArrayList<>(to.size() + cc.size() + bcc.size());
+        receivers.addAll(to);
+        receivers.addAll(cc);
+        receivers.addAll(bcc);
+        String preview = MessageBodies.preview(body);
+        String[] headers = {String.join(", ", to), String.join(", ", cc), String.join(", ", bcc), summarize(to.isEmpty() ? cc : to)};
+        long start = System.nanoTime();
+        return fanOut(sender, receivers, headers, subject, body)
+            .whenComplete((ids, err) -> FANOUT_TIME.recordSince(start))
+            .thenApply(ids -> {
+                String time = SQL_TIME.format(java.time.Instant.now());
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] >= 0) publish(new InboxEvents.Mail(ids[i], sender, receivers.get(i), subject, preview, time));
+                }
+                return ids;
+            });
+    }
+
+    // The part on the first receiver's shard commits first, holding the sender's copy; its list id
+    // is what the parts on other shards then point at. Parts are separate transactions.
+    private CompletableFuture<long[]> fanOut(String sender, List<String> receivers, String[] headers, String subject, String body) {
+        Map<InboxShard, List<Integer>> parts = new LinkedHashMap<>();
+        for (int i = 0; i < receivers.size(); i++) {
+            parts.computeIfAbsent(shardFor(receivers.get(i)), k -> new ArrayList<>()).add(i);
+        }
+        if (parts.size() <= 1) {
+            return shardFor(receivers.isEmpty() ? sender : receivers.get(0)).writer
+                .submitFanout(sender, receivers, headers[0], headers[1], headers[2], headers[3], subject, body);
+        }
+        List<Map.Entry<InboxShard, List<Integer>>> entries = new ArrayList<>(parts.entrySet());
+        Map.Entry<InboxShard, List<Integer>> first = entries.get(0);
+        return first.getKey().writer
+            .submitFanout(sender, pick(receivers, first.getValue()), headers[0], headers[1], headers[2], headers[3], subject, body)
+            // not on the first shard's writer thread: queueing on another shard may block
+            .thenComposeAsync(firstIds -> {
+                long[] ids = new long[receivers.size()];
+                Arrays.fill(ids, -1);
+                place(firstIds, first.getValue(), ids);
+                List<CompletableFuture<?>> rest = new ArrayList<>();
+                for (Map.Entry<InboxShard, List<Integer>> part : entries.subList(1, entries.size())) {
+                    rest.add(part.getKey().writer
+                        .submitFanoutPart(firstIds[0], sender, pick(receivers, part.getValue()), headers[0], headers[1], headers[2], headers[3], subject, body)
+                        .handle((partIds, err) -> {
+                            if (err != null) System.err.println("Fan-out part on shard " + part.getKey().index + " failed: " + err);
+                            else place(partIds, part.getValue(), ids);
+                            return null;
+                        }));
+                }
+                return CompletableFuture.allOf(rest.toArray(new CompletableFuture<?>[0])).thenApply(v -> ids);
+            }, shardQueries);
+    }
+
+    private static List<String> pick(List<String> all, List<Integer> positions) {
+        List<String> out = new ArrayList<>(positions.size());
+        for (int i : positions) out.add(all.get(i));
+        return out;
+    }
+
+    private static void place(long[] partIds, List<Integer> positions, long[] ids) {
+        for (int i = 0; i < partIds.length; i++) ids[positions.get(i)] = partIds[i];
+    }
+
+    // "a, b, c and 497 more"
+    private static String summarize(List<String> addresses) {
+        if (addresses.size() <= 3) return String.join(", ", addresses);
+        return String.join(", ", addresses.subList(0, 3)) + " and " + (addresses.size() - 3) + " more";
+    }
+
+    // Summed over the shards' writers; a fan-out spanning shards counts once per shard
+    public String writerStatsJson() {
+        long queued = 0, batches = 0, rows = 0, failures = 0, fanouts = 0, fanoutRows = 0, maxFanoutMs = 0;
+        for (InboxShard shard : shards) {
+            GroupCommitWriter w = shard.writer;
+            queued += w.queued();
+            batches += w.batches();
+            rows += w.rows();
+            failures += w.failures();
+            fanouts += w.fanouts();
+            fanoutRows += w.fanoutRows();
+            maxFanoutMs = Math.max(maxFanoutMs, w.maxFanoutMs());
+        }
+        return "{\"shards\":" + shards.length + ",\"queued\":" + queued + ",\"batches\":" + batches + ",\"rows\":" + rows +
+            ",\"failures\":" + failures + ",\"fanouts\":" + fanouts + ",\"fanoutRows\":" + fanoutRows +
+            ",\"maxFanoutMs\":" + maxFanoutMs + "}";
+    }
+
+    // Queues the insert for the group-commit writer; completes with the new row id once its batch
+    // commits and the recipient's stream subscribers have been notified
+    public CompletableFuture<Long> storeEmailAsync(String sender, String receiver,
+                                                   String subject, String body) {
+        long start = System.nanoTime();
+        return shardFor(receiver).writer.submit(sender, receiver, subject, body).whenComplete((id, err) -> STORE_TIME.recordSince(start)).thenApply(id -> {
+            publish(new InboxEvents.Mail(id, sender, receiver, subject, MessageBodies.preview(body), SQL_TIME.format(java.time.Instant.now())));
+            return id;
+        });
+    }
+
+    private void publish(InboxEvents.Mail m) {
+        inboxEvents.publish(m);
+        InboxShard shard = shardForId(m.id);
+        if (shard != null) shard.highestPublishedId.accumulateAndGet(m.id, Math::max);
+    }
+
+    // PRAGMA data_version on the writer connection only changes when another connection commits,
+    // i.e. another process; then publish the rows we have not seen. Our own rows may be published
+    // twice if they race with the poll, which listeners tolerate. Each shard file has its own.
+    private void pollExternalWrites() {
+        while (!closed) {
+            try {
+                Thread.sleep(EXTERNAL_POLL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (InboxShard shard : shards) {
+                try {
+                    long version = shard.dataVersion();
+                    if (shard.seenDataVersion >= 0 && version != shard.seenDataVersion) {
+                        publishNewerThan(shard, shard.highestPublishedId.get());
+                    }
+                    shard.seenDataVersion = version;
+                } catch (Exception e) {
+                    if (!closed) e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void publishNewerThan(InboxShard shard, long afterId) throws SQLException {
+        String sql = "SELECT id, sender, receiver, subject, preview, body, timestamp FROM inbox WHERE id>? ORDER BY id LIMIT 1000";
+        List<InboxEvents.Mail> batch = new ArrayList<>();
+        do {
+            batch.clear();
+            try (ConnectionPool.Lease lease = shard.pool.reader()) {
+                PreparedStatement ps = lease.prepare(sql);
+                ps.setLong(1, afterId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        batch.add(new InboxEvents.Mail(rs.getLong("id"), rs.getString("sender"), rs.getString("receiver"),
+                            rs.getString("subject"), previewOf(rs), rs.getString("timestamp")));
+                    }
+                }
+            }
+            // publish outside the lease so listeners never hold a reader connection
+            for (InboxEvents.Mail m : batch) {
+                publish(m);
+                afterId = m.id;
+            }
+        } while (batch.size() == 1000);
+    }
+
+    private static long maxInboxId(InboxShard shard) {
+        try {
+            return shard.maxInboxId();
         } catch (SQLException e) {
             e.printStackTrace();
+            return 0;
+        }
+    }
+
+    public InboxEvents inboxEvents() {
+        return inboxEvents;
+    }
+
+    // Oldest first: messages to email with id > afterId, until limit rows or visitor returns false
+    public void forEachInboxSince(String email, long afterId, int limit, java.util.function.Predicate<InboxEvents.Mail> visitor) {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT id, sender, subject, preview, body, timestamp FROM inbox WHERE receiver=? AND id>? ORDER BY id LIMIT ?";
+            try (ConnectionPool.Lease lease = shardFor(email).pool.reader()) {
+                PreparedStatement ps = lease.prepare(sql);
+                ps.setString(1, email);
+                ps.setLong(2, afterId);
+                ps.setInt(3, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        InboxEvents.Mail m = new InboxEvents.Mail(rs.getLong("id"), rs.getString("sender"), email,
+                            rs.getString("subject"), previewOf(rs), rs.getString("timestamp"));
+                        if (!visitor.test(m)) return;
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            INBOX_SINCE_TIME.recordSince(start);
         }
     }
 
     public void showInbox(String email) {
-        String sql = "SELECT sender, subject, body, timestamp FROM inbox WHERE receiver=? ORDER BY timestamp DESC";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, email);
-            try (ResultSet rs = ps.executeQuery()) {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT inbox.id, sender, subject, " + BODY_COLUMNS + ", timestamp FROM inbox " + BODY_JOIN +
+                " WHERE receiver=? ORDER BY timestamp DESC, id DESC";
+            try (ShardMerge rows = new ShardMerge(email, false, null, sql, ps -> ps.setString(1, email), true)) {
                 System.out.println("\n📥 INBOX:");
                 System.out.println("--------------------------------------------------");
 
                 boolean empty = true;
-                while (rs.next()) {
+                Listed m;
+                while ((m = rows.next()) != null) {
                     empty = false;
-                    System.out.println("From   : " + rs.getString("sender"));
-                    System.out.println("Subject: " + rs.getString("subject"));
-                    System.out.println("Message: " + rs.getString("body"));
-                    System.out.println("Time   : " + rs.getString("timestamp"));
+                    System.out.println("From   : " + m.peer);
+                    System.out.println("Subject: " + m.subject);
+                    System.out.println("Message: " + m.body);
+                    System.out.println("Time   : " + m.time);
                     System.out.println("--------------------------------------------------");
                 }
 
                 if (empty) System.out.println("No emails found.");
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            SHOW_INBOX_TIME.recordSince(start);
         }
     }
 
     public void showSent(String email) {
-        String sql = "SELECT receiver, subject, body, timestamp FROM inbox WHERE sender=? ORDER BY timestamp DESC";
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, email);
-            try (ResultSet rs = ps.executeQuery()) {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT inbox.id, " + SENT_PEER + ", subject, " + BODY_COLUMNS + ", timestamp FROM inbox " + BODY_JOIN +
+                " WHERE sender=?" + SENT_COPY + " ORDER BY timestamp DESC, id DESC";
+            try (ShardMerge rows = new ShardMerge(email, true, null, sql, ps -> ps.setString(1, email), true)) {
                 System.out.println("\n📤 SENT MAILS:");
                 System.out.println("--------------------------------------------------");
 
                 boolean empty = true;
-                while (rs.next()) {
+                Listed m;
+                while ((m = rows.next()) != null) {
                     empty = false;
-                    System.out.println("To     : " + rs.getString("receiver"));
-                    System.out.println("Subject: " + rs.getString("subject"));
-                    System.out.println("Message: " + rs.getString("body"));
-                    System.out.println("Time   : " + rs.getString("timestamp"));
+                    System.out.println("To     : " + m.peer);
+                    System.out.println("Subject: " + m.subject);
+                    System.out.println("Message: " + m.body);
+                    System.out.println("Time   : " + m.time);
                     System.out.println("--------------------------------------------------");
                 }
 
                 if (empty) System.out.println("No sent emails.");
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            SHOW_SENT_TIME.recordSince(start);
         }
     }
 
-    // Returns inbox as JSON array of objects: [{"from":"...","subject":"...","body":"...","time":"..."},...]
+    // Returns inbox as JSON array of objects: [{"id":..,"from":"...","subject":"...","preview":"...","time":"..."},...]
     public String getInboxJson(String email) {
-        String sql = "SELECT sender, subject, body, timestamp FROM inbox WHERE receiver=? ORDER BY timestamp DESC";
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        boolean first = true;
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, email);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    if (!first) sb.append(',');
-                    first = false;
-                    String from = escapeJson(rs.getString("sender"));
-                    String subject = escapeJson(rs.getString("subject"));
-                    String body = escapeJson(rs.getString("body"));
-                    String time = escapeJson(rs.getString("timestamp"));
-                    sb.append("{\"from\":\"").append(from).append("\",\"subject\":\"").append(subject)
-                      .append("\",\"body\":\"").append(body).append("\",\"time\":\"").append(time).append("\"}");
-                }
-            }
-        } catch (SQLException e) {
+        StringWriter sw = new StringWriter();
+        try {
+            writeInboxJson(email, new JsonWriter(sw));
+        } catch (IOException e) {
             e.printStackTrace();
             return "[]";
         }
-        sb.append("]");
-        return sb.toString();
+        return sw.toString();
     }
 
-    // Returns sent mails as JSON array of objects: [{"to":"...","subject":"...","body":"...","time":"..."},...]
+    // Returns sent mails as JSON array of objects: [{"id":..,"to":"...","subject":"...","preview":"...","time":"..."},...]
     public String getSentJson(String email) {
-        String sql = "SELECT receiver, subject, body, timestamp FROM inbox WHERE sender=? ORDER BY timestamp DESC";
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        boolean first = true;
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, email);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    if (!first) sb.append(',');
-                    first = false;
-                    String to = escapeJson(rs.getString("receiver"));
-                    String subject = escapeJson(rs.getString("subject"));
-                    String body = escapeJson(rs.getString("body"));
-                    String time = escapeJson(rs.getString("timestamp"));
-                    sb.append("{\"to\":\"").append(to).append("\",\"subject\":\"").append(subject)
-                      .append("\",\"body\":\"").append(body).append("\",\"time\":\"").append(time).append("\"}");
-                }
-            }
-        } catch (SQLException e) {
+        StringWriter sw = new StringWriter();
+        try {
+            writeSentJson(email, new JsonWriter(sw));
+        } catch (IOException e) {
             e.printStackTrace();
             return "[]";
         }
-        sb.append("]");
-        return sb.toString();
+        return sw.toString();
     }
 
-    private String escapeJson(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "");
+    // ---------------- Streaming JSON ----------------
+    // These write rows to the JsonWriter as they come off the ResultSet, so memory use does not
+    // grow with the mailbox. Query failures surface as IOException; the writer is flushed, not closed.
+    // An inbox lives on its owner's shard; sent mail is spread over all of them and merged (ShardMerge),
+    // and both continue into the archive (MailArchive) once the shards have no older rows.
+    // Lists carry a preview, never the body (see writeMessage); body is only selected for rows
+    // written before bodies moved out of inbox, and is NULL otherwise.
+
+    public void writeInboxJson(String email, JsonWriter out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT id, sender, subject, preview, body, timestamp FROM inbox WHERE receiver=? ORDER BY timestamp DESC, id DESC";
+            writeMailboxArray(email, false, sql, "from", out);
+        } finally {
+            INBOX_JSON_TIME.recordSince(start);
+        }
+    }
+
+    public void writeSentJson(String email, JsonWriter out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT id, " + SENT_PEER + ", subject, preview, body, timestamp FROM inbox WHERE sender=?" + SENT_COPY +
+                " ORDER BY timestamp DESC, id DESC";
+            writeMailboxArray(email, true, sql, "to", out);
+        } finally {
+            SENT_JSON_TIME.recordSince(start);
+        }
     }
 
-    // ---------------- Password hashing helpers ----------------
-    private String hashPassword(String password) throws NoSuchAlgorithmException {
-        byte[] salt = new byte[16];
-        RANDOM.nextBytes(salt);
-        String saltHex = bytesToHex(salt);
-        String hashHex = bytesToHex(sha256((saltHex + password).getBytes()));
-        return saltHex + ":" + hashHex;
+    public void writeInboxPage(String email, int limit, PageCursor cursor, JsonWriter out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            writeMailboxPage("receiver", "sender", "from", email, limit, cursor, out);
+        } finally {
+            INBOX_PAGE_TIME.recordSince(start);
+        }
     }
 
-    private boolean verifyPassword(String password, String stored) {
+    public void writeSentPage(String email, int limit, PageCursor cursor, JsonWriter out) throws IOException {
+        long start = System.nanoTime();
         try {
-            String[] parts = stored.split(":");
-            if (parts.length != 2) return false;
-            String saltHex = parts[0];
-            String hashHex = parts[1];
-            String computed = bytesToHex(sha256((saltHex + password).getBytes()));
-            return computed.equals(hashHex);
-        } catch (NoSuchAlgorithmException e) {
-            return false;
+            writeMailboxPage("sender", "receiver", "to", email, limit, cursor, out);
+        } finally {
+            SENT_PAGE_TIME.recordSince(start);
+        }
+    }
+
+    private void writeMailboxArray(String email, boolean sent, String sql, String peerKey, JsonWriter out) throws IOException {
+        try (ShardMerge rows = new ShardMerge(email, sent, null, sql, ps -> ps.setString(1, email), false)) {
+            out.beginArray();
+            Listed m;
+            while ((m = rows.next()) != null) writeListed(m, peerKey, out);
+            out.endArray();
+        }
+        out.flush();
+    }
+
+    // ownerColumn/peerColumn are fixed identifiers chosen above, never user input
+    private void writeMailboxPage(String ownerColumn, String peerColumn, String peerKey,
+                                  String email, int limit, PageCursor cursor, JsonWriter out) throws IOException {
+        boolean sent = ownerColumn.equals("sender");
+        String sql = "SELECT id, " + (sent ? SENT_PEER : peerColumn) + ", subject, preview, body, timestamp FROM inbox WHERE " +
+            ownerColumn + "=?" + (sent ? SENT_COPY : "") +
+            (cursor != null ? " AND (timestamp, id) < (?, ?)" : "") +
+            " ORDER BY timestamp DESC, id DESC LIMIT ?";
+        // every shard returns its first limit + 1 rows after the cursor; the merge keeps the overall first ones
+        Binder binder = ps -> {
+            int i = 1;
+            ps.setString(i++, email);
+            if (cursor != null) {
+                ps.setString(i++, cursor.timestamp);
+                ps.setLong(i++, cursor.id);
+            }
+            ps.setInt(i, limit + 1); // one extra row tells us whether another page exists
+        };
+        try (ShardMerge rows = new ShardMerge(email, sent, cursor, sql, binder, false)) {
+            out.beginObject().name("messages").beginArray();
+            String next = null;
+            int count = 0;
+            Listed m, last = null;
+            while ((m = rows.next()) != null) {
+                if (count == limit) {
+                    next = new PageCursor(last.time, last.id).encode();
+                    break;
+                }
+                count++;
+                last = m;
+                writeListed(m, peerKey, out);
+            }
+            out.endArray().name("next").value(next).endObject();
+        }
+        out.flush();
+    }
+
+    private static void writeListed(Listed m, String peerKey, JsonWriter out) throws IOException {
+        out.beginObject()
+           .name("id").value(m.id)
+           .name(peerKey).value(m.peer)
+           .name("subject").value(m.subject)
+           .name("preview").value(m.preview)
+           .name("time").value(nullToEmpty(m.time))
+           .endObject();
+    }
+
+    // ---------------- RECIPIENT LISTS ----------------
+    // A multi-recipient mail appears once in the sender's sent view: its first row, addressed to the list summary
+    private static final String SENT_PEER =
+        "COALESCE((SELECT summary FROM recipient_lists l WHERE l.id = inbox.list_id), inbox.receiver) AS receiver";
+    private static final String SENT_COPY = " AND (list_id IS NULL OR list_id = inbox.id)";
+
+    // ---------------- MESSAGE BODIES ----------------
+    // Body text for a row: the shared bodies entry, or the inline body of a row written before the split
+    private static final String BODY_COLUMNS = "inbox.body, b.codec, b.size, b.data";
+    private static final String BODY_JOIN = "LEFT JOIN bodies b ON b.hash = inbox.body_hash";
+
+    private static String bodyOf(ResultSet rs) throws SQLException {
+        byte[] data = rs.getBytes("data");
+        if (data == null) return nullToEmpty(rs.getString("body"));
+        return MessageBodies.decode(rs.getInt("codec"), rs.getInt("size"), data);
+    }
+
+    private static String previewOf(ResultSet rs) throws SQLException {
+        String preview = rs.getString("preview");
+        return preview != null ? preview : MessageBodies.preview(rs.getString("body"));
+    }
+
+    // One message with its full body: {"id":..,"from":"...","to":"...","cc":"...","subject":"...","body":"...","time":"..."}.
+    // to/cc are the visible lists of a multi-recipient mail; the sender also gets "bcc".
+    // Writes nothing and returns false unless email sent or received it.
+    public boolean writeMessage(String email, long id, JsonWriter out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT inbox.id, sender, receiver, subject, timestamp, l.to_list, l.cc_list, l.bcc_list, " + BODY_COLUMNS +
+                " FROM inbox " + BODY_JOIN + " LEFT JOIN recipient_lists l ON l.id = inbox.list_id" +
+                " WHERE inbox.id=? AND (receiver=? OR sender=?)";
+            InboxShard shard = shardForId(id);
+            if (shard != null) {
+                try (ConnectionPool.Lease lease = shard.pool.reader()) {
+                    PreparedStatement ps = lease.prepare(sql);
+                    ps.setLong(1, id);
+                    ps.setString(2, email);
+                    ps.setString(3, email);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) {
+                            String sender = nullToEmpty(rs.getString("sender"));
+                            String toList = rs.getString("to_list");
+                            out.beginObject()
+                               .name("id").value(rs.getLong(1))
+                               .name("from").value(sender)
+                               .name("to").value(toList != null ? toList : nullToEmpty(rs.getString("receiver")))
+                               .name("cc").value(nullToEmpty(rs.getString("cc_list")));
+                            if (sender.equals(email)) out.name("bcc").value(nullToEmpty(rs.getString("bcc_list")));
+                            out.name("subject").value(nullToEmpty(rs.getString("subject")))
+                               .name("body").value(bodyOf(rs))
+                               .name("time").value(nullToEmpty(rs.getString("timestamp")))
+                               .endObject();
+                            out.flush();
+                            return true;
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new IOException("Message query failed", e);
+                }
+            }
+            // not in the hot tier: archived, possibly under an earlier shard layout
+            MailArchive.Mail m = archive.find(id);
+            if (m == null || !(email.equals(m.receiver) || email.equals(m.sender))) return false;
+            String sender = nullToEmpty(m.sender);
+            String[] lists = m.lists();
+            out.beginObject()
+               .name("id").value(m.id)
+               .name("from").value(sender)
+               .name("to").value(lists != null ? lists[0] : nullToEmpty(m.receiver))
+               .name("cc").value(lists != null ? lists[1] : "");
+            if (sender.equals(email)) out.name("bcc").value(lists != null ? lists[2] : "");
+            out.name("subject").value(nullToEmpty(m.subject))
+               .name("body").value(m.body())
+               .name("time").value(nullToEmpty(m.time))
+               .endObject();
+            out.flush();
+            return true;
+        } finally {
+            MESSAGE_TIME.recordSince(start);
+        }
+    }
+
+    // ---------------- SEARCH ----------------
+    public void writeSearch(String email, String query, int limit, int offset, JsonWriter out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (shards.length == 1) {
+                shards[0].search.search(email, query, limit, offset, out);
+                return;
+            }
+            // Sent mail is on every shard. Each ranks its own first offset + limit + 1 and the page is
+            // cut from the merge; bm25 weighs terms by each shard's own statistics, which is close enough.
+            String match = SearchIndex.toMatch(email, query);
+            List<SearchIndex.Hit> hits = new ArrayList<>();
+            if (match != null) {
+                for (List<SearchIndex.Hit> part : onShards(allShards(), shard -> shard.search.query(email, match, offset + limit + 1, 0), part -> {})) {
+                    hits.addAll(part);
+                }
+                hits.sort(SearchIndex.BEST_FIRST);
+            }
+            boolean complete = true;
+            for (InboxShard shard : shards) complete &= !shard.search.isBackfilling();
+            SearchIndex.write(email, query, hits.subList(Math.min(offset, hits.size()), hits.size()), limit, offset, complete, out);
+        } finally {
+            SEARCH_TIME.recordSince(start);
         }
     }
 
-    private byte[] sha256(byte[] input) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        return md.digest(input);
+    // ---------------- SCATTER-GATHER ----------------
+    private List<InboxShard> inboxOf(String email) {
+        return Collections.singletonList(shardFor(email));
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) sb.append(String.format("%02x", b));
-        return sb.toString();
+    private List<InboxShard> allShards() {
+        return Arrays.asList(shards);
+    }
+
+    private interface ShardCall<T> {
+        T call(InboxShard shard) throws SQLException, IOException;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    // Runs call for each shard, in parallel on shardQueries when there are several, and returns the
+    // results in shard order. If any call fails, the others' results go to release and the first
+    // failure is thrown.
+    private <T> List<T> onShards(List<InboxShard> targets, ShardCall<T> call, java.util.function.Consumer<T> release) throws IOException {
+        java.util.function.Function<InboxShard, T> task = shard -> {
+            try {
+                return call.call(shard);
+            } catch (SQLException | IOException e) {
+                throw new CompletionException(e);
+            }
+        };
+        List<CompletableFuture<T>> futures = new ArrayList<>(targets.size());
+        for (InboxShard shard : targets) {
+            futures.add(targets.size() == 1
+                ? CompletableFuture.completedFuture(shard).thenApply(task) // runs here
+                : CompletableFuture.supplyAsync(() -> task.apply(shard), shardQueries));
+        }
+        List<T> results = new ArrayList<>(targets.size());
+        Throwable failure = null;
+        for (CompletableFuture<T> f : futures) {
+            try {
+                results.add(f.join());
+            } catch (CompletionException e) {
+                if (failure == null) failure = e.getCause();
+            }
+        }
+        if (failure == null) return results;
+        for (T r : results) release.accept(r);
+        if (failure instanceof IOException) throw (IOException) failure;
+        throw new IOException("Shard query failed", failure);
+    }
+
+    // One mailbox row as listed: peer is the sender of inbox mail and the receiver (or list
+    // summary) of sent mail; body is only read when the merge was asked for it, preview otherwise
+    private static final class Listed {
+        final long id;
+        final String peer, subject, preview, body, time;
+
+        Listed(long id, String peer, String subject, String preview, String body, String time) {
+            this.id = id;
+            this.peer = nullToEmpty(peer);
+            this.subject = nullToEmpty(subject);
+            this.preview = preview;
+            this.body = body;
+            this.time = time;
+        }
+    }
+
+    // Runs one query on the shards holding email's inbox (or, if sent, its sent mail) and merges
+    // the rows, which each shard returns newest first (ORDER BY timestamp DESC, id DESC, selecting
+    // both columns), with the archived mail of that mailbox into one such stream. A row the
+    // Archiver has copied but not yet deleted comes from both and is returned once.
+    // The shards' first rows are fetched in parallel; the rest stream as the merge consumes them,
+    // so memory does not grow with the result. Holds a reader connection per shard until closed.
+    private final class ShardMerge implements AutoCloseable {
+        private final List<Head> all = new ArrayList<>();
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(NEWEST_FIRST);
+        private Head current;
+        private long lastId = -1;
+
+        ShardMerge(String email, boolean sent, PageCursor cursor, String sql, Binder binder, boolean withBody) throws IOException {
+            long start = System.nanoTime();
+            List<InboxShard> targets = sent ? allShards() : inboxOf(email);
+            // Borrowed one by one in shard order, so concurrent merges never wait on each other's
+            // connections in a cycle; only the queries run in parallel
+            Map<InboxShard, ConnectionPool.Lease> leases = new LinkedHashMap<>();
+            try {
+                for (InboxShard shard : targets) leases.put(shard, shard.pool.reader());
+            } catch (SQLException e) {
+                leases.values().forEach(ConnectionPool.Lease::close);
+                throw new IOException("Mailbox query failed", e);
+            }
+            all.addAll(onShards(targets, shard -> {
+                ConnectionPool.Lease lease = leases.get(shard);
+                SqlHead head = null;
+                try {
+                    PreparedStatement ps = lease.prepare(sql);
+                    binder.bind(ps);
+                    head = new SqlHead(lease, ps.executeQuery(), sent, withBody);
+                    head.hasRow = head.advance();
+                    return head;
+                } catch (SQLException e) {
+                    if (head != null) head.close();
+                    lease.close();
+                    throw e;
+                }
+            }, Head::close));
+            try {
+                ArchiveHead archived = new ArchiveHead(
+                    archive.scan(email, sent, cursor == null ? null : cursor.timestamp, cursor == null ? 0 : cursor.id), sent, withBody);
+                archived.hasRow = archived.advance();
+                all.add(archived);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            for (Head h : all) if (h.hasRow) heads.add(h);
+            MAILBOX_QUERY_TIME.recordSince(start);
+        }
+
+        // The next row in merged order, or null once every source is exhausted
+        Listed next() throws IOException {
+            try {
+                while (true) {
+                    if (current != null && current.advance()) heads.add(current);
+                    current = heads.poll();
+                    if (current == null) return null;
+                    if (current.row.id != lastId) break;
+                }
+            } catch (SQLException e) {
+                throw new IOException("Mailbox query failed", e);
+            }
+            lastId = current.row.id;
+            return current.row;
+        }
+
+        @Override
+        public void close() {
+            for (Head h : all) h.close();
+        }
+    }
+
+    // SQLite's DESC order: later timestamps first, NULL last, then higher ids
+    private static final Comparator<Head> NEWEST_FIRST =
+        Comparator.comparing((Head h) -> h.row.time, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                  .thenComparingLong(h -> h.row.id)
+                  .reversed();
+
+    private abstract static class Head {
+        boolean hasRow;
+        Listed row;
+
+        abstract boolean advance() throws SQLException, IOException;
+
+        abstract void close();
+    }
+
+    private static final class SqlHead extends Head {
+        final ConnectionPool.Lease lease;
+        final ResultSet rs;
+        final boolean sent, withBody;
+
+        SqlHead(ConnectionPool.Lease lease, ResultSet rs, boolean sent, boolean withBody) {
+            this.lease = lease;
+            this.rs = rs;
+            this.sent = sent;
+            this.withBody = withBody;
+        }
+
+        @Override
+        boolean advance() throws SQLException {
+            if (!rs.next()) return false;
+            row = new Listed(rs.getLong("id"), rs.getString(sent ? "receiver" : "sender"), rs.getString("subject"),
+                withBody ? null : previewOf(rs), withBody ? bodyOf(rs) : null, rs.getString("timestamp"));
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                rs.close();
+            } catch (SQLException ignored) {
+            }
+            lease.close();
+        }
+    }
+
+    private static final class ArchiveHead extends Head {
+        final MailArchive.Scan scan;
+        final boolean sent, withBody;
+
+        ArchiveHead(MailArchive.Scan scan, boolean sent, boolean withBody) {
+            this.scan = scan;
+            this.sent = sent;
+            this.withBody = withBody;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            MailArchive.Mail m = scan.next();
+            if (m == null) return false;
+            String peer = !sent ? m.sender : m.summary != null ? m.summary : m.receiver;
+            row = new Listed(m.id, peer, m.subject, withBody ? null : nullToEmpty(m.preview), withBody ? m.body() : null, m.time);
+            return true;
+        }
+
+        @Override
+        void close() {
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
     }
 
     // ---------------- Email / Domain validation helpers ----------------
@@ -310,24 +1029,13 @@ public class Database {
         return email.matches("^[A-Za-z0-9._%+\\-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$");
     }
 
+    // MX (else A) record check; cached and coalesced per domain, see DomainValidator
     public boolean hasValidDomain(String domain) {
-        if (domain == null || domain.isEmpty()) return false;
-        try {
-            // Check MX records
-            java.util.Hashtable<String, String> env = new java.util.Hashtable<>();
-            env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-            javax.naming.directory.DirContext ictx = new javax.naming.directory.InitialDirContext(env);
-            javax.naming.directory.Attributes attrs = ictx.getAttributes(domain, new String[] {"MX"});
-            javax.naming.directory.Attribute attr = attrs.get("MX");
-            if (attr != null && attr.size() > 0) return true;
-            // fallback: check A record
-            attrs = ictx.getAttributes(domain, new String[] {"A"});
-            attr = attrs.get("A");
-            return attr != null && attr.size() > 0;
-        } catch (Exception e) {
-            // DNS lookup might fail in some environments; treat as unknown/unreachable
-            return false;
-        }
+        return domainValidator.isValid(domain);
+    }
+
+    public CompletableFuture<Boolean> hasValidDomainAsync(String domain) {
+        return domainValidator.validateAsync(domain);
     }
 }
 
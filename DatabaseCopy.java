@@ -1,9 +1,15 @@
 public class DatabaseCopy {
 
     private Database database;
+    // Serialized inbox/sent responses and their versions; invalidated by every stored message
+    private final MailboxCache mailboxCache = new MailboxCache();
 
     public DatabaseCopy(Database database) {
         this.database = database;
+        database.inboxEvents().subscribeAll(mail -> {
+            mailboxCache.invalidate(inboxKey(mail.receiver));
+            mailboxCache.invalidate(sentKey(mail.sender));
+        });
     }
 
     public boolean register(String email, String password) {
@@ -17,6 +23,12 @@ public class DatabaseCopy {
     // Expose validation helpers for WebServer
     public boolean isEmailFormatValid(String email) { return database.isValidEmailFormat(email); }
     public boolean isEmailDomainValid(String domain) { return database.hasValidDomain(domain); }
+    public java.util.concurrent.CompletableFuture<Boolean> isEmailDomainValidAsync(String domain) { return database.hasValidDomainAsync(domain); }
+
+    // Shared revocation list for signed session tokens
+    public boolean revokeToken(String jti, long expiresAtMillis) { return database.revokeToken(jti, expiresAtMillis); }
+    public long revokedTokensSince(long afterSeq, java.util.Map<String, Long> into) { return database.revokedTokensSince(afterSeq, into); }
+    public void purgeRevokedTokens(long nowMillis) { database.purgeRevokedTokens(nowMillis); }
 
     public void viewInbox(String email) {
         database.showInbox(email);
@@ -26,17 +38,172 @@ public class DatabaseCopy {
         database.storeEmail(sender, receiver, subject, body);
     }
 
+    // Completes with the stored message id once the group-commit batch holding it commits
+    public java.util.concurrent.CompletableFuture<Long> sendMailAsync(String sender, String receiver, String subject, String body) {
+        return database.storeEmailAsync(sender, receiver, subject, body);
+    }
+
+    // Multi-recipient send: every accepted recipient of r gets a row, all in one transaction.
+    // Completes with r, its outcomes filled in; a failed transaction marks them all failed.
+    public java.util.concurrent.CompletableFuture<Recipients> sendMailAsync(String sender, Recipients r, String subject, String body) {
+        if (r.acceptedCount() == 0) return java.util.concurrent.CompletableFuture.completedFuture(r);
+        java.util.List<String> to = r.addresses(Recipients.TO);
+        java.util.concurrent.CompletableFuture<long[]> ids = r.acceptedCount() == 1 && to.size() == 1
+            ? database.storeEmailAsync(sender, to.get(0), subject, body).thenApply(id -> new long[] {id}) // plain single row
+            : database.storeEmailAsync(sender, to, r.addresses(Recipients.CC), r.addresses(Recipients.BCC), subject, body);
+        return ids.handle((stored, err) -> {
+            if (err == null) {
+                r.stored(stored);
+            } else {
+                System.err.println("Send from " + sender + " to " + r.acceptedCount() + " recipient(s) failed: " + err.getMessage());
+                r.failed();
+            }
+            return r;
+        });
+    }
+
+    public String getWriterStatsJson() {
+        return database.writerStatsJson();
+    }
+
+    // New-mail notifications and catch-up reads for /api/inbox/stream
+    public InboxEvents inboxEvents() { return database.inboxEvents(); }
+    public void forEachInboxSince(String email, long afterId, int limit, java.util.function.Predicate<InboxEvents.Mail> visitor) {
+        database.forEachInboxSince(email, afterId, limit, visitor);
+    }
+
     public void viewSent(String email) {
         database.showSent(email);
     }
 
-    // JSON-returning wrappers used by WebServer
+    // JSON-returning wrappers used by WebServer; served from the mailbox cache when unchanged
     public String getInboxJson(String email) {
-        return database.getInboxJson(email);
+        return cachedString(inboxKey(email), out -> database.writeInboxJson(email, out));
     }
 
     public String getSentJson(String email) {
-        return database.getSentJson(email);
+        return cachedString(sentKey(email), out -> database.writeSentJson(email, out));
+    }
+
+    // Full message with its body for /api/message/{id}; null unless email sent or received it
+    public String getMessageJson(String email, long id) {
+        java.io.StringWriter sw = new java.io.StringWriter();
+        try (JsonWriter out = new JsonWriter(sw)) {
+            if (!database.writeMessage(email, id, out)) return null;
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return sw.toString();
+    }
+
+    // Ranked full-text search over the user's sent and received mail; offset pages through results
+    public void streamSearch(String email, String query, int limit, int offset, JsonWriter out) throws java.io.IOException {
+        database.writeSearch(email, query, limit, offset, out);
+    }
+
+    // ---------------- Cached mailbox responses ----------------
+    // Read the version first, then write the body for it; WebServer turns the version into an ETag.
+
+    public long inboxVersion(String email) { return mailboxCache.version(inboxKey(email)); }
+    public long sentVersion(String email) { return mailboxCache.version(sentKey(email)); }
+    public String mailboxEtag(long version) { return mailboxCache.etag(version); }
+    public String getMailboxCacheStatsJson() { return mailboxCache.statsJson(); }
+
+    // limit <= 0: the whole mailbox as a bare array (legacy); otherwise one page
+    public void writeInbox(String email, int limit, PageCursor cursor, long version, java.io.OutputStream os) throws java.io.IOException {
+        writeCached(inboxKey(email), variant(limit, cursor), version, os, out -> {
+            if (limit <= 0) database.writeInboxJson(email, out); else database.writeInboxPage(email, limit, cursor, out);
+        });
+    }
+
+    public void writeSent(String email, int limit, PageCursor cursor, long version, java.io.OutputStream os) throws java.io.IOException {
+        writeCached(sentKey(email), variant(limit, cursor), version, os, out -> {
+            if (limit <= 0) database.writeSentJson(email, out); else database.writeSentPage(email, limit, cursor, out);
+        });
+    }
+
+    private interface MailboxWriter {
+        void write(JsonWriter out) throws java.io.IOException;
+    }
+
+    private static String inboxKey(String email) { return "inbox:" + email; }
+    private static String sentKey(String email) { return "sent:" + email; }
+
+    private static String variant(int limit, PageCursor cursor) {
+        if (limit <= 0) return "all";
+        return "page:" + limit + ":" + (cursor == null ? "" : cursor.encode());
+    }
+
+    // Cache hit: copy the bytes. Miss: stream from SQLite to os while keeping a copy (up to the
+    // per-entry limit) to file under the version that was current before the query.
+    private void writeCached(String mailbox, String variant, long version, java.io.OutputStream os, MailboxWriter producer) throws java.io.IOException {
+        byte[] cached = mailboxCache.get(mailbox, variant, version);
+        if (cached != null) {
+            os.write(cached);
+            return;
+        }
+        CapturingOutputStream tee = new CapturingOutputStream(os, mailboxCache.maxEntryBytes());
+        JsonWriter out = new JsonWriter(tee);
+        producer.write(out);
+        out.flush();
+        byte[] body = tee.captured();
+        if (body != null) mailboxCache.put(mailbox, variant, version, body);
+    }
+
+    private String cachedString(String mailbox, MailboxWriter producer) {
+        java.io.ByteArrayOutputStream buf = new java.io.ByteArrayOutputStream();
+        try {
+            writeCached(mailbox, "all", mailboxCache.version(mailbox), buf, producer);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e); // ByteArrayOutputStream does not throw
+        }
+        return new String(buf.toByteArray(), java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    // Passes writes through and keeps a copy until it grows past limit
+    private static final class CapturingOutputStream extends java.io.FilterOutputStream {
+        private java.io.ByteArrayOutputStream copy = new java.io.ByteArrayOutputStream();
+        private final long limit;
+
+        CapturingOutputStream(java.io.OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws java.io.IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                if (copy.size() > limit) copy = null;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws java.io.IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                if (copy.size() > limit) copy = null;
+            }
+        }
+
+        byte[] captured() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    public String getAuthStatsJson() {
+        return database.authStatsJson();
+    }
+
+    public String getPoolStatsJson() {
+        return database.poolStats().toJson();
+    }
+
+    public String getArchiveStatsJson() {
+        return database.archiveStatsJson();
     }
 
 }
@@ -0,0 +1,21 @@
+/**
+ * DNS lookups used by {@link DomainValidator}.
+ *
+ * {@link JndiDnsResolver} queries real DNS; {@link StubDnsResolver} answers from configuration
+ * for tests and offline benchmarks. Pick one with -Ddns.resolver=jndi|stub (default jndi).
+ */
+public interface DnsResolver {
+
+    /**
+     * True if domain has at least one record of the given type ("MX", "A").
+     * Throws {@link javax.naming.NameNotFoundException} when the domain does not exist and
+     * other exceptions for timeouts or server failures.
+     */
+    boolean hasRecord(String domain, String type, long timeoutMs) throws Exception;
+
+    static DnsResolver fromConfig() {
+        String kind = System.getProperty("dns.resolver", "jndi");
+        if ("stub".equalsIgnoreCase(kind)) return StubDnsResolver.fromConfig();
+        return new JndiDnsResolver();
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.naming.NameNotFoundException;
+
+/**
+ * Checks that an email domain can receive mail (an MX record, else an A record).
+ *
+ * Results are cached: valid domains for {@code dns.positiveTtlMs}, domains that do not exist
+ * for {@code dns.negativeTtlMs}, and lookups that failed or timed out only briefly
+ * ({@code dns.errorTtlMs}) so a DNS hiccup does not lock users out for long. Concurrent checks
+ * of the same domain share one lookup. Lookups run on a small bounded executor with a
+ * per-query timeout ({@code dns.timeoutMs}), so a burst of signups cannot tie up request
+ * threads in DNS.
+ */
+public class DomainValidator {
+    private static final long POSITIVE_TTL_MS = Long.getLong("dns.positiveTtlMs", 60 * 60_000);
+    private static final long NEGATIVE_TTL_MS = Long.getLong("dns.negativeTtlMs", 5 * 60_000);
+    private static final long ERROR_TTL_MS = Long.getLong("dns.errorTtlMs", 30_000);
+    private static final long TIMEOUT_MS = Long.getLong("dns.timeoutMs", 2_000);
+    private static final int THREADS = Integer.getInteger("dns.threads", 4);
+    private static final int MAX_PENDING = Integer.getInteger("dns.maxPending", 256);
+    private static final int MAX_ENTRIES = Integer.getInteger("dns.cacheSize", 10_000);
+
+    private final DnsResolver resolver;
+    private final long timeoutMs;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public DomainValidator(DnsResolver resolver) {
+        this(resolver, TIMEOUT_MS, THREADS, MAX_PENDING);
+    }
+
+    public DomainValidator(DnsResolver resolver, long timeoutMs, int threads, int maxPending) {
+        this.resolver = resolver;
+        this.timeoutMs = timeoutMs;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(maxPending), r -> {
+                Thread t = new Thread(r, "dns-lookup");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** Blocking check, bounded by roughly twice the lookup timeout (MX then A). */
+    public boolean isValid(String domain) {
+        try {
+            return validateAsync(domain).get(2 * timeoutMs + 500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /** Completes with the (possibly cached) verdict; never completes exceptionally. */
+    public CompletableFuture<Boolean> validateAsync(String domain) {
+        if (domain == null || domain.isEmpty()) return CompletableFuture.completedFuture(false);
+        String key = normalize(domain);
+        Entry e = cache.get(key);
+        if (e != null && e.expiresAt > System.currentTimeMillis()) {
+            hits.increment();
+            return CompletableFuture.completedFuture(e.valid);
+        }
+
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        lookups.increment();
+        try {
+            executor.execute(() -> {
+                boolean valid = false;
+                long ttl;
+                try {
+                    valid = resolve(key);
+                    ttl = valid ? POSITIVE_TTL_MS : NEGATIVE_TTL_MS;
+                } catch (NameNotFoundException nx) {
+                    ttl = NEGATIVE_TTL_MS;
+                } catch (Exception ex) {
+                    failures.increment();
+                    ttl = ERROR_TTL_MS;
+                }
+                put(key, valid, ttl);
+                inFlight.remove(key, mine);
+                mine.complete(valid);
+            });
+        } catch (RejectedExecutionException overloaded) {
+            // Too many lookups queued: answer "unknown" as invalid without caching it
+            failures.increment();
+            inFlight.remove(key, mine);
+            mine.complete(false);
+        }
+        return mine;
+    }
+
+    private boolean resolve(String domain) throws Exception {
+        if (resolver.hasRecord(domain, "MX", timeoutMs)) return true;
+        // fallback: check A record
+        return resolver.hasRecord(domain, "A", timeoutMs);
+    }
+
+    private void put(String key, boolean valid, long ttlMs) {
+        if (cache.size() >= MAX_ENTRIES) evict();
+        cache.put(key, new Entry(valid, System.currentTimeMillis() + ttlMs));
+    }
+
+    // Drop expired entries; if that is not enough, drop arbitrary ones down to 90% of capacity
+    private void evict() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(e -> e.expiresAt <= now);
+        Iterator<String> it = cache.keySet().iterator();
+        while (cache.size() > MAX_ENTRIES * 9 / 10 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String normalize(String domain) {
+        String d = domain.trim().toLowerCase(Locale.ROOT);
+        return d.endsWith(".") ? d.substring(0, d.length() - 1) : d;
+    }
+
+    public String statsJson() {
+        return "{\"cached\":" + cache.size() + ",\"hits\":" + hits.sum() + ",\"lookups\":" + lookups.sum() +
+            ",\"coalesced\":" + coalesced.sum() + ",\"failures\":" + failures.sum() + "}";
+    }
+
+    private static final class Entry {
+        final boolean valid;
+        final long expiresAt;
+
+        Entry(boolean valid, long expiresAt) {
+            this.valid = valid;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,25 +1,487 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Inbound mail listener on port 5000.
+ *
+ * Two wire formats share the port and are told apart by the first bytes (see {@link MailProtocol}):
+ * - legacy: one message per connection, four DataOutputStream.writeUTF strings
+ *   (sender, receiver, subject, body), after which the client closes;
+ * - framed: persistent connections with pipelined MAIL/BATCH/FANOUT frames, each answered with
+ *   an ack carrying the stored message id(s).
+ *
+ * A single selector thread accepts, reads and writes every connection without blocking, so a
+ * slow or stalled client only occupies its own buffer. Decoded mail is handed to a bounded pool
+ * of persistence workers; when that pool is saturated, or a framed connection has too many
+ * unacknowledged messages, the selector stops reading from the affected connections (TCP flow
+ * control pushes back on the senders) but keeps accepting.
+ *
+ * Tunables (system properties): receiver.port, receiver.workers, receiver.workQueue,
+ * receiver.idleTimeoutMs, receiver.readTimeoutMs, receiver.maxConnections, receiver.maxInFlight,
+ * receiver.maxFrameBytes, receiver.metricsPort.
+ */
 public class EmailReceiverServer {
+    private static final int PORT = Integer.getInteger("receiver.port", 5000);
+    private static final int WORKERS = Integer.getInteger("receiver.workers", 8);
+    private static final int WORK_QUEUE = Integer.getInteger("receiver.workQueue", 1024);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("receiver.idleTimeoutMs", 10_000);
+    private static final long READ_TIMEOUT_MS = Long.getLong("receiver.readTimeoutMs", 30_000);
+    // timeouts are scanned for at most this often, not on every select
+    private static final long EXPIRY_CHECK_MS = Math.max(1, Math.min(1_000, Math.min(IDLE_TIMEOUT_MS, READ_TIMEOUT_MS) / 4));
+    private static final int MAX_CONNECTIONS = Integer.getInteger("receiver.maxConnections", 10_000);
+    // unacknowledged messages per framed connection before we stop reading from it
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("receiver.maxInFlight", 1024);
+    // GET /api/metrics (Prometheus text, see Metrics); 0 turns it off
+    private static final int METRICS_PORT = Integer.getInteger("receiver.metricsPort", 5001);
+
+    // four writeUTF fields, each a 2-byte length plus at most 65535 bytes
+    private static final int MAX_LEGACY_BYTES = 4 * (2 + 65535);
+
+    // Served on receiver.metricsPort; persist runs from a message being decoded until it is
+    // committed, so it includes waiting for a worker and for the group commit
+    private static final Metrics.Timer ACCEPT_TIME =
+        Metrics.timer("receiver_accept_seconds", "Time to accept and register one inbound connection");
+    private static final Metrics.Timer PERSIST_LEGACY = persistTimer("legacy");
+    private static final Metrics.Timer PERSIST_MAIL = persistTimer("mail");
+    private static final Metrics.Timer PERSIST_BATCH = persistTimer("batch");
+    private static final Metrics.Timer PERSIST_FANOUT = persistTimer("fanout");
+
+    private static Metrics.Timer persistTimer(String frame) {
+        return Metrics.timer("receiver_persist_seconds", "Time from decoding inbound mail to storing it", "frame", frame);
+    }
+
+    private final DatabaseCopy db;
+    private final int port;
+    private final ThreadPoolExecutor workers;
+    private final Selector selector;
+    // Connections with decoded mail that the worker pool had no room for yet
+    private final Deque<Connection> awaitingWorker = new ArrayDeque<>();
+    // Connections with acks queued by other threads, flushed by the selector thread
+    private final Queue<Connection> writeReady = new ConcurrentLinkedQueue<>();
+    private int openConnections;
+    private long nextExpiryCheck; // selector thread only
+
     public static void main(String[] args) throws Exception {
         Database database = new Database();          // Create DB instance
         DatabaseCopy db = new DatabaseCopy(database); // Pass it to DatabaseCopy
-        ServerSocket serverSocket = new ServerSocket(5000);
+        if (METRICS_PORT > 0) {
+            com.sun.net.httpserver.HttpServer metrics = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(METRICS_PORT), 0);
+            metrics.createContext("/api/metrics", new WebServer.MetricsHandler());
+            metrics.start();
+        }
+        new EmailReceiverServer(db, PORT).run();
+    }
+
+    public EmailReceiverServer(DatabaseCopy db, int port) throws IOException {
+        this.db = db;
+        this.port = port;
+        this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(WORK_QUEUE), r -> {
+                Thread t = new Thread(r, "mail-persist");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+        this.selector = Selector.open();
+    }
+
+    public void run() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Email Server started...");
+
+            while (true) {
+                selector.select(250);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept(server);
+                    else {
+                        if (key.isWritable()) flush((Connection) key.attachment());
+                        if (key.isValid() && key.isReadable()) read(key);
+                    }
+                }
+                Connection c;
+                while ((c = writeReady.poll()) != null) flush(c);
+                retryAwaitingWorker();
+                expireTimedOut();
+            }
+        }
+    }
+
+    // ---------------- Selector work ----------------
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch;
+        long start = System.nanoTime();
+        while ((ch = server.accept()) != null) {
+            if (openConnections >= MAX_CONNECTIONS) {
+                ch.close();
+                continue;
+            }
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(ch);
+            conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            openConnections++;
+            ACCEPT_TIME.recordSince(start);
+            start = System.nanoTime();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        try {
+            int n = conn.channel.read(conn.buffer);
+            if (n < 0) {
+                // Legacy clients close right after writing; framed ones should QUIT first
+                if (conn.mode == Mode.FRAMED && (conn.inFlight.get() > 0 || !conn.tasks.isEmpty())) {
+                    conn.quitting = true;
+                    conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                } else {
+                    close(conn);
+                }
+                return;
+            }
+            conn.lastActivity = System.currentTimeMillis();
+            if (conn.mode == Mode.UNKNOWN && !negotiate(conn)) return;
+            if (conn.mode == Mode.LEGACY) readLegacy(conn);
+            else readFrames(conn);
+        } catch (IOException e) {
+            System.err.println("Dropping connection " + conn.remote() + ": " + e.getMessage());
+            close(conn);
+        } catch (RuntimeException e) {
+            // a bug in decoding one peer's bytes must not take the selector thread down with it
+            e.printStackTrace();
+            try {
+                if (conn.mode == Mode.FRAMED) protocolError(conn, "Malformed frame");
+                else close(conn);
+            } catch (IOException ignored) {
+                close(conn);
+            }
+        }
+    }
+
+    // Decides the protocol from the first bytes; false while there are too few to tell
+    private boolean negotiate(Connection conn) throws IOException {
+        int have = conn.buffer.position();
+        if (have < MailProtocol.MAGIC.length) return false;
+        if (!MailProtocol.startsWithMagic(conn.buffer.array(), have)) {
+            conn.mode = Mode.LEGACY;
+            return true;
+        }
+        if (have < MailProtocol.MAGIC.length + 1) return false;
+        int requested = conn.buffer.get(MailProtocol.MAGIC.length) & 0xFF;
+        int version = Math.min(requested, MailProtocol.VERSION);
+        conn.consume(MailProtocol.MAGIC.length + 1);
+        conn.send(ByteBuffer.wrap(MailProtocol.hello(version)));
+        if (version < 1) {
+            conn.quitting = true;
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+        } else {
+            conn.mode = Mode.FRAMED;
+            conn.version = version;
+        }
+        flush(conn);
+        return version >= 1;
+    }
+
+    private void readLegacy(Connection conn) throws IOException {
+        String[] fields = conn.tryDecodeLegacy();
+        if (fields != null) {
+            conn.key.interestOps(0); // nothing more to read on a single-shot connection
+            conn.quitting = true;
+            long decoded = System.nanoTime();
+            conn.tasks.add(() -> {
+                try {
+                    db.sendMail(fields[0], fields[1], fields[2], fields[3]);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    PERSIST_LEGACY.recordSince(decoded);
+                }
+            });
+            dispatch(conn);
+        } else if (!conn.buffer.hasRemaining()) {
+            conn.grow(MAX_LEGACY_BYTES);
+        }
+    }
+
+    private void readFrames(Connection conn) throws IOException {
+        while (conn.buffer.position() >= MailProtocol.HEADER_BYTES) {
+            ByteBuffer buf = conn.buffer;
+            byte type = buf.get(0);
+            int length = buf.getInt(1);
+            if (length < 0 || length > MailProtocol.MAX_FRAME_BYTES) {
+                protocolError(conn, "Frame length " + length + " out of range");
+                return;
+            }
+            int total = MailProtocol.HEADER_BYTES + length;
+            if (buf.position() < total) {
+                if (buf.capacity() < total) conn.grow(total);
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.wrap(Arrays.copyOfRange(buf.array(), MailProtocol.HEADER_BYTES, total));
+            conn.consume(total);
+            if (!handleFrame(conn, type, payload)) return;
+        }
+        dispatch(conn);
+    }
+
+    // Returns false if the connection is being torn down
+    private boolean handleFrame(Connection conn, byte type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case MailProtocol.MAIL: {
+                int seq = MailProtocol.readInt(payload);
+                String[] m = MailProtocol.readMail(payload);
+                conn.inFlight.incrementAndGet();
+                long decoded = System.nanoTime();
+                conn.tasks.add(() -> db.sendMailAsync(m[0], m[1], m[2], m[3]).whenComplete((id, err) -> {
+                    PERSIST_MAIL.recordSince(decoded);
+                    complete(conn, err == null ? MailProtocol.ack(seq, id) : MailProtocol.nack(seq, rootMessage(err)), 1);
+                }));
+                return true;
+            }
+            case MailProtocol.BATCH: {
+                int seq = MailProtocol.readInt(payload);
+                int count = MailProtocol.readInt(payload);
+                if (count < 0 || count > payload.remaining() / 16) {
+                    protocolError(conn, "Bad batch count " + count);
+                    return false;
+                }
+                List<String[]> mails = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) mails.add(MailProtocol.readMail(payload));
+                conn.inFlight.addAndGet(count);
+                long decoded = System.nanoTime();
+                conn.tasks.add(() -> storeBatch(conn, seq, mails, decoded));
+                return true;
+            }
+            case MailProtocol.FANOUT: {
+                if (conn.version < MailProtocol.FANOUT_VERSION) {
+                    protocolError(conn, "FANOUT needs protocol version " + MailProtocol.FANOUT_VERSION);
+                    return false;
+                }
+                int seq = MailProtocol.readInt(payload);
+                String sender = MailProtocol.readString(payload);
+                String subject = MailProtocol.readString(payload);
+                String body = MailProtocol.readString(payload);
+                Recipients recipients;
+                try {
+                    recipients = Recipients.parse(MailProtocol.readList(payload), MailProtocol.readList(payload),
+                        MailProtocol.readList(payload), db::isEmailFormatValid);
+                } catch (IllegalArgumentException e) {
+                    // too many recipients: refuse this mail, keep the connection
+                    conn.send(MailProtocol.nack(seq, e.getMessage()));
+                    flush(conn);
+                    return true;
+                }
+                int count = Math.max(1, recipients.acceptedCount()); // unacked rows, for the in-flight cap
+                conn.inFlight.addAndGet(count);
+                long decoded = System.nanoTime();
+                conn.tasks.add(() -> db.sendMailAsync(sender, recipients, subject, body)
+                    .whenComplete((r, err) -> {
+                        PERSIST_FANOUT.recordSince(decoded);
+                        complete(conn, MailProtocol.batchAck(seq, recipients.ids()), count);
+                    }));
+                return true;
+            }
+            case MailProtocol.QUIT:
+                conn.quitting = true;
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                return true;
+            default:
+                protocolError(conn, "Unknown frame type " + type);
+                return false;
+        }
+    }
 
-        System.out.println("Email Server started...");
+    private void storeBatch(Connection conn, int seq, List<String[]> mails, long decoded) {
+        long[] ids = new long[mails.size()];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[mails.size()];
+        for (int i = 0; i < mails.size(); i++) {
+            String[] m = mails.get(i);
+            int idx = i;
+            futures[i] = db.sendMailAsync(m[0], m[1], m[2], m[3])
+                .handle((id, err) -> ids[idx] = err == null ? id : -1L);
+        }
+        CompletableFuture.allOf(futures).whenComplete((v, err) -> {
+            PERSIST_BATCH.recordSince(decoded);
+            complete(conn, MailProtocol.batchAck(seq, ids), ids.length);
+        });
+    }
+
+    // Called from writer/worker threads when a message (or batch) has been stored
+    private void complete(Connection conn, ByteBuffer ack, int messages) {
+        conn.outbound.add(ack);
+        conn.inFlight.addAndGet(-messages);
+        writeReady.add(conn);
+        selector.wakeup();
+    }
+
+    private void protocolError(Connection conn, String message) throws IOException {
+        System.err.println("Protocol error from " + conn.remote() + ": " + message);
+        conn.tasks.clear();
+        conn.send(MailProtocol.error(message));
+        conn.quitting = true;
+        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+        flush(conn);
+    }
+
+    // Hands queued tasks to the workers; parks the connection when the pool is full
+    private void dispatch(Connection conn) {
+        Runnable task;
+        while ((task = conn.tasks.peek()) != null) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (!conn.awaitingWorker) {
+                    conn.awaitingWorker = true;
+                    awaitingWorker.addLast(conn);
+                }
+                updateReadInterest(conn);
+                return;
+            }
+            conn.tasks.poll();
+        }
+        updateReadInterest(conn);
+        if (conn.mode == Mode.LEGACY) close(conn);
+    }
 
-        while (true) {
-            Socket socket = serverSocket.accept();
-            DataInputStream in = new DataInputStream(socket.getInputStream());
+    private void retryAwaitingWorker() {
+        int n = awaitingWorker.size();
+        for (int i = 0; i < n && workers.getQueue().remainingCapacity() > 0; i++) {
+            Connection conn = awaitingWorker.pollFirst();
+            conn.awaitingWorker = false;
+            if (!conn.closed) dispatch(conn);
+        }
+    }
+
+    // Reads are paused while tasks wait for a worker or too many acks are outstanding
+    private void updateReadInterest(Connection conn) {
+        if (conn.closed || conn.mode != Mode.FRAMED || conn.quitting) return;
+        boolean paused = !conn.tasks.isEmpty() || conn.inFlight.get() >= MAX_IN_FLIGHT;
+        int ops = conn.key.interestOps();
+        conn.key.interestOps(paused ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+    }
+
+    private void flush(Connection conn) {
+        if (conn.closed) return;
+        try {
+            ByteBuffer b;
+            while ((b = conn.outbound.peek()) != null) {
+                conn.channel.write(b);
+                if (b.hasRemaining()) break;
+                conn.outbound.poll();
+            }
+        } catch (IOException e) {
+            System.err.println("Dropping connection " + conn.remote() + ": " + e.getMessage());
+            close(conn);
+            return;
+        }
+        int ops = conn.key.interestOps();
+        conn.key.interestOps(conn.outbound.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+        if (conn.outbound.isEmpty() && conn.quitting && conn.mode != Mode.LEGACY
+                && conn.inFlight.get() == 0 && conn.tasks.isEmpty()) {
+            close(conn);
+            return;
+        }
+        updateReadInterest(conn);
+    }
+
+    private void expireTimedOut() {
+        long now = System.currentTimeMillis();
+        if (now < nextExpiryCheck) return;
+        nextExpiryCheck = now + EXPIRY_CHECK_MS;
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) continue;
+            Connection conn = (Connection) key.attachment();
+            if (conn.quitting || !conn.tasks.isEmpty() || conn.inFlight.get() > 0) continue; // busy, not idle
+            boolean idle = now - conn.lastActivity > IDLE_TIMEOUT_MS;
+            // persistent framed connections have no overall deadline, only an idle one
+            boolean tooSlow = conn.mode != Mode.FRAMED && now - conn.openedAt > READ_TIMEOUT_MS;
+            if (idle || tooSlow) {
+                System.err.println("Timed out connection " + conn.remote());
+                close(conn);
+            }
+        }
+    }
+
+    private void close(Connection conn) {
+        if (conn.closed) return;
+        conn.closed = true;
+        openConnections--;
+        conn.key.cancel();
+        try { conn.channel.close(); } catch (IOException ignored) {}
+    }
+
+    private static String rootMessage(Throwable t) {
+        while (t.getCause() != null) t = t.getCause();
+        return t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+    }
+
+    // ---------------- Per-connection state ----------------
+    private enum Mode { UNKNOWN, LEGACY, FRAMED }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final long openedAt = System.currentTimeMillis();
+        long lastActivity = openedAt;
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        SelectionKey key;
+        Mode mode = Mode.UNKNOWN;
+        int version; // negotiated, framed mode only
+        // Selector-thread only
+        final Deque<Runnable> tasks = new ArrayDeque<>();
+        boolean awaitingWorker;
+        boolean quitting;
+        boolean closed;
+        // Shared with the threads completing stores
+        final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Connection(SocketChannel channel) { this.channel = channel; }
+
+        // Returns the four fields once all of them have arrived, otherwise null
+        String[] tryDecodeLegacy() throws IOException {
+            int pos = 0;
+            int limit = buffer.position();
+            byte[] data = buffer.array();
+            for (int i = 0; i < 4; i++) {
+                if (limit - pos < 2) return null;
+                int len = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+                pos += 2 + len;
+                if (pos > limit) return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, pos));
+            return new String[] { in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF() };
+        }
+
+        // Drops the first n buffered bytes, keeping the rest at the front
+        void consume(int n) {
+            int remaining = buffer.position() - n;
+            System.arraycopy(buffer.array(), n, buffer.array(), 0, remaining);
+            buffer.position(remaining);
+        }
+
+        void grow(int max) throws IOException {
+            if (buffer.capacity() >= max) throw new IOException("Message too large");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(max, Math.max(buffer.capacity() * 2, 1024)));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
 
-            String sender = in.readUTF();
-            String receiver = in.readUTF();
-            String subject = in.readUTF();
-            String body = in.readUTF();
+        void send(ByteBuffer b) { outbound.add(b); }
 
-            db.sendMail(sender, receiver, subject, body); // Fixed method
-            socket.close();
+        String remote() {
+            try { return String.valueOf(channel.getRemoteAddress()); } catch (IOException e) { return "?"; }
         }
     }
 }
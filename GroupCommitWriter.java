@@ -0,0 +1,343 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind group commit for inbox inserts.
+ *
+ * Callers enqueue mails into a bounded queue and get a future for the stored row id. Bodies
+ * are encoded (see {@link MessageBodies}) before they are queued. A multi-recipient mail
+ * ({@link #submitFanout}) is one queue entry: its body is stored once, its rows share a
+ * recipient_lists entry, and all of them commit together. With a sharded inbox the receivers
+ * on other shards are written by those shards' writers as parts ({@link #submitFanoutPart})
+ * that point at the list id of the part holding the sender's copy.
+ * A single writer thread drains the queue in batches of up to {@code batchSize}, waiting at
+ * most {@code lingerMs} for a batch to fill, and inserts each batch in one transaction.
+ * Futures complete only after their batch has committed. When the queue is full
+ * {@link #submit} blocks (up to {@code enqueueTimeoutMs}), pushing back on senders instead
+ * of buffering without limit.
+ *
+ * Tunables (system properties): mail.batchSize, mail.lingerMs, mail.queueCapacity,
+ * mail.enqueueTimeoutMs.
+ */
+public class GroupCommitWriter implements AutoCloseable {
+    // Body first (shared by content hash), then the inbox row pointing at it, then the search
+    // index entry, all in the batch's transaction
+    private static final String BODY_SQL =
+        "INSERT OR IGNORE INTO bodies (hash, codec, size, data) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_SQL =
+        "INSERT INTO inbox (sender, receiver, subject, preview, body_hash) VALUES (?, ?, ?, ?, ?) RETURNING id";
+    private static final String INDEX_SQL =
+        "INSERT INTO inbox_fts (rowid, subject, body, owners) VALUES (?, ?, ?, 'r' || hex(?) || ' s' || hex(?))";
+    // A fan-out's first row id doubles as its recipient list id and its search index rowid
+    private static final String FANOUT_ROW_SQL =
+        "INSERT INTO inbox (sender, receiver, subject, preview, body_hash, list_id) VALUES (?, ?, ?, ?, ?, ?) RETURNING id";
+    private static final String LIST_SQL =
+        "INSERT INTO recipient_lists (id, to_list, cc_list, bcc_list, summary) VALUES (?, ?, ?, ?, ?)";
+    private static final String LINK_FIRST_SQL = "UPDATE inbox SET list_id = id WHERE id = ?";
+    private static final String FANOUT_INDEX_SQL =
+        "INSERT INTO inbox_fts (rowid, subject, body, owners) VALUES (?, ?, ?, ?)";
+
+    private final ConnectionPool pool;
+    private final BlockingQueue<PendingMail> queue;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final long enqueueTimeoutMs;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder fanouts = new LongAdder();
+    private final LongAdder fanoutRows = new LongAdder();
+    private volatile long maxFanoutMs; // enqueue to commit, slowest fan-out so far
+
+    public GroupCommitWriter(ConnectionPool pool) {
+        this(pool,
+            Integer.getInteger("mail.batchSize", 256),
+            Long.getLong("mail.lingerMs", 2),
+            Integer.getInteger("mail.queueCapacity", 10_000),
+            Long.getLong("mail.enqueueTimeoutMs", 30_000));
+    }
+
+    public GroupCommitWriter(ConnectionPool pool, int batchSize, long lingerMs, int queueCapacity, long enqueueTimeoutMs) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be >= 1");
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = new Thread(this::run, "group-commit-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** Queues one inbox row; the future yields its id once the containing batch commits. */
+    public CompletableFuture<Long> submit(String sender, String receiver, String subject, String body) {
+        return enqueue(new PendingMail(sender, new String[] {receiver}, null, 0, subject, body)).thenApply(ids -> ids[0]);
+    }
+
+    /**
+     * Queues one row per receiver in a single transaction; the future yields their ids in the
+     * order given. The lists are the visible To/Cc (and sender-only Bcc) headers; summary is
+     * what list views show instead of the To list.
+     */
+    public CompletableFuture<long[]> submitFanout(String sender, List<String> receivers, String toList, String ccList,
+                                                  String bccList, String summary, String subject, String body) {
+        if (receivers.isEmpty()) return CompletableFuture.completedFuture(new long[0]);
+        String[] headers = {toList, ccList, bccList, summary};
+        return enqueue(new PendingMail(sender, receivers.toArray(new String[0]), headers, 0, subject, body));
+    }
+
+    /**
+     * Like {@link #submitFanout}, for the receivers of a fan-out that live on this shard when its
+     * list (listId, the first row id of the part that went first) lives on another. The part gets
+     * its own copy of the list under listId, so its rows resolve headers locally, but none of its
+     * rows is the sender's copy and its search entry is owned by its receivers only.
+     */
+    public CompletableFuture<long[]> submitFanoutPart(long listId, String sender, List<String> receivers, String toList,
+                                                      String ccList, String bccList, String summary, String subject, String body) {
+        if (receivers.isEmpty()) return CompletableFuture.completedFuture(new long[0]);
+        String[] headers = {toList, ccList, bccList, summary};
+        return enqueue(new PendingMail(sender, receivers.toArray(new String[0]), headers, listId, subject, body));
+    }
+
+    private CompletableFuture<long[]> enqueue(PendingMail mail) {
+        if (!running) {
+            mail.done.completeExceptionally(new IllegalStateException("Writer is shut down"));
+            return mail.done;
+        }
+        try {
+            if (!queue.offer(mail, enqueueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                mail.done.completeExceptionally(new RejectedExecutionException(
+                    "Write queue full for " + enqueueTimeoutMs + " ms"));
+            } else if (!running && queue.remove(mail)) {
+                // close() raced us and the writer may already have drained the queue and gone;
+                // if remove() fails, the writer (or failQueued) has taken the mail and completes it
+                mail.done.completeExceptionally(new IllegalStateException("Writer is shut down"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mail.done.completeExceptionally(e);
+        }
+        return mail.done;
+    }
+
+    public int queued() { return queue.size(); }
+    public long batches() { return batches.sum(); }
+    public long rows() { return rows.sum(); }
+    public long failures() { return failures.sum(); }
+    public long fanouts() { return fanouts.sum(); }
+    public long fanoutRows() { return fanoutRows.sum(); }
+    public long maxFanoutMs() { return maxFanoutMs; }
+
+    /**
+     * Stops accepting new mail and waits up to 10 s for everything already queued to commit.
+     * Mail still queued after that is failed, so no caller waits forever.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failQueued();
+    }
+
+    private void failQueued() {
+        List<PendingMail> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (PendingMail mail : left) mail.done.completeExceptionally(new IllegalStateException("Writer is shut down"));
+    }
+
+    // ---------------- Writer thread ----------------
+    private void run() {
+        List<PendingMail> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    collect(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (PendingMail mail : batch) mail.done.completeExceptionally(e);
+                    return;
+                }
+                if (batch.isEmpty()) continue;
+                try {
+                    commit(batch);
+                } catch (RuntimeException e) {
+                    // keep the writer alive for the next batch; these callers get the error
+                    e.printStackTrace();
+                    for (PendingMail mail : batch) mail.done.completeExceptionally(e);
+                }
+                batch.clear();
+            }
+        } finally {
+            failQueued();
+        }
+    }
+
+    // Waits for the first mail, then fills the batch until it is full or the linger time is up.
+    // The first wait is short so a close() is noticed promptly.
+    private void collect(List<PendingMail> batch) throws InterruptedException {
+        PendingMail first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) return;
+        batch.add(first);
+        queue.drainTo(batch, batchSize - batch.size());
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            PendingMail next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    private void commit(List<PendingMail> batch) {
+        long[][] ids = new long[batch.size()][];
+        try (ConnectionPool.Lease lease = pool.writer()) {
+            Connection conn = lease.connection();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement body = lease.prepare(BODY_SQL);
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingMail mail = batch.get(i);
+                    ids[i] = mail.headers == null ? new long[] {insert(lease, body, mail)} : insertFanout(lease, body, mail);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            // One bad row should not fail its neighbours: retry the batch row by row
+            if (batch.size() > 1) {
+                for (PendingMail mail : batch) commit(Collections.singletonList(mail));
+            } else {
+                failures.increment();
+                batch.get(0).done.completeExceptionally(e);
+            }
+            return;
+        }
+        batches.increment();
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMail mail = batch.get(i);
+            rows.add(ids[i].length);
+            if (mail.headers != null) {
+                fanouts.increment();
+                fanoutRows.add(ids[i].length);
+                long ms = TimeUnit.NANOSECONDS.toMillis(now - mail.enqueuedAt);
+                if (ms > maxFanoutMs) maxFanoutMs = ms;
+            }
+            mail.done.complete(ids[i]);
+        }
+    }
+
+    private static void insertBody(PreparedStatement body, PendingMail mail) throws SQLException {
+        body.setBytes(1, mail.encoded.hash);
+        body.setInt(2, mail.encoded.codec);
+        body.setInt(3, mail.encoded.size);
+        body.setBytes(4, mail.encoded.data);
+        body.executeUpdate();
+    }
+
+    private static long insert(ConnectionPool.Lease lease, PreparedStatement body, PendingMail mail) throws SQLException {
+        insertBody(body, mail);
+        PreparedStatement row = lease.prepare(INSERT_SQL);
+        long id;
+        row.setString(1, mail.sender);
+        row.setString(2, mail.receivers[0]);
+        row.setString(3, mail.subject);
+        row.setString(4, mail.preview);
+        row.setBytes(5, mail.encoded.hash);
+        id = returnedId(row);
+        PreparedStatement index = lease.prepare(INDEX_SQL);
+        index.setLong(1, id);
+        index.setString(2, mail.subject);
+        index.setString(3, mail.body);
+        index.setString(4, mail.receivers[0]);
+        index.setString(5, mail.sender);
+        index.executeUpdate();
+        return id;
+    }
+
+    // One body, one recipient list, one search entry (owned by every party), a row per receiver
+    private static long[] insertFanout(ConnectionPool.Lease lease, PreparedStatement body, PendingMail mail) throws SQLException {
+        insertBody(body, mail);
+        boolean part = mail.listId > 0;
+        long[] ids = new long[mail.receivers.length];
+        PreparedStatement row = lease.prepare(FANOUT_ROW_SQL);
+        row.setString(1, mail.sender);
+        row.setString(3, mail.subject);
+        row.setString(4, mail.preview);
+        row.setBytes(5, mail.encoded.hash);
+        for (int i = 0; i < ids.length; i++) {
+            row.setString(2, mail.receivers[i]);
+            if (part) row.setLong(6, mail.listId);
+            else if (i == 0) row.setNull(6, Types.INTEGER);
+            else row.setLong(6, ids[0]);
+            ids[i] = returnedId(row);
+        }
+        long listId = part ? mail.listId : ids[0];
+        if (!part) {
+            PreparedStatement link = lease.prepare(LINK_FIRST_SQL);
+            link.setLong(1, listId);
+            link.executeUpdate();
+        }
+        PreparedStatement list = lease.prepare(LIST_SQL);
+        list.setLong(1, listId);
+        list.setString(2, mail.headers[0]);
+        list.setString(3, mail.headers[1]);
+        list.setString(4, mail.headers[2]);
+        list.setString(5, mail.headers[3]);
+        list.executeUpdate();
+        PreparedStatement index = lease.prepare(FANOUT_INDEX_SQL);
+        index.setLong(1, listId);
+        index.setString(2, mail.subject);
+        index.setString(3, mail.body);
+        index.setString(4, SearchIndex.owners(part ? null : mail.sender, mail.receivers));
+        index.executeUpdate();
+        return ids;
+    }
+
+    private static long returnedId(PreparedStatement insert) throws SQLException {
+        try (ResultSet rs = insert.executeQuery()) {
+            if (!rs.next()) throw new SQLException("INSERT returned no id");
+            return rs.getLong(1);
+        }
+    }
+
+    private static final class PendingMail {
+        final String sender;
+        final String[] receivers;
+        final String[] headers; // to, cc, bcc lists and summary of a fan-out; null for a single row
+        final long listId; // list on another shard this fan-out part belongs to, 0 if none
+        final String subject;
+        final String body;
+        // hashed and compressed on the submitting thread, keeping the single writer's transactions short
+        final MessageBodies.Encoded encoded;
+        final String preview;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<long[]> done = new CompletableFuture<>();
+
+        PendingMail(String sender, String[] receivers, String[] headers, long listId, String subject, String body) {
+            this.sender = sender;
+            this.receivers = receivers;
+            this.headers = headers;
+            this.listId = listId;
+            this.subject = subject;
+            this.body = body;
+            this.encoded = MessageBodies.encode(body);
+            this.preview = MessageBodies.preview(body);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process notification bus for newly stored mail, keyed by recipient.
+ *
+ * Database publishes each message after the group commit that stored it, so listeners only
+ * ever see committed rows, in id order per recipient. Rows committed by another process on the
+ * same Users.db (e.g. EmailReceiverServer) are picked up by Database's external-write poller and
+ * published too, a little later and possibly more than once. Listeners run on the publishing
+ * thread and must only hand the message off, never block.
+ */
+public class InboxEvents {
+
+    public interface Listener {
+        void onMail(Mail mail);
+    }
+
+    public static final class Mail {
+        final long id;
+        final String sender;
+        final String receiver;
+        final String subject;
+        final String preview;
+        final String time;
+
+        Mail(long id, String sender, String receiver, String subject, String preview, String time) {
+            this.id = id;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.subject = subject;
+            this.preview = preview;
+            this.time = time;
+        }
+
+        /** Same fields as an /api/inbox page entry; the full body is at /api/message/{id}. */
+        String toJson() {
+            StringWriter sw = new StringWriter();
+            try (JsonWriter out = new JsonWriter(sw)) {
+                out.beginObject()
+                   .name("id").value(id)
+                   .name("from").value(sender == null ? "" : sender)
+                   .name("subject").value(subject == null ? "" : subject)
+                   .name("preview").value(preview == null ? "" : preview)
+                   .name("time").value(time == null ? "" : time)
+                   .endObject();
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // StringWriter does not throw
+            }
+            return sw.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Listener>> listeners = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> everything = new CopyOnWriteArrayList<>();
+
+    public void publish(Mail mail) {
+        for (Listener l : everything) {
+            try {
+                l.onMail(mail);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if (mail.receiver == null) return;
+        CopyOnWriteArrayList<Listener> list = listeners.get(mail.receiver);
+        if (list == null) return;
+        for (Listener l : list) {
+            try {
+                l.onMail(mail);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Every message, whatever the recipient (cache invalidation). */
+    public void subscribeAll(Listener l) {
+        everything.add(l);
+    }
+
+    public void subscribe(String email, Listener l) {
+        listeners.computeIfAbsent(email, k -> new CopyOnWriteArrayList<>()).add(l);
+    }
+
+    public void unsubscribe(String email, Listener l) {
+        listeners.computeIfPresent(email, (k, list) -> {
+            list.remove(l);
+            return list.isEmpty() ? null : list;
+        });
+    }
+}
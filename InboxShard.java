@@ -0,0 +1,119 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * One partition of the inbox table, with its own connections, group-commit writer and search
+ * index.
+ *
+ * Unsharded (the default) there is a single shard over Users.db itself. With N shards, inbox
+ * rows live in Users.shard&lt;k&gt;of&lt;N&gt;.db, chosen by a CRC32 of the receiver address, while
+ * users and revoked tokens stay in Users.db, which records N in storage_layout (schema
+ * migration 8). Every shard file carries the full schema, so migrations, the writer and the
+ * search index work on it unchanged.
+ *
+ * Ids are unique across shards: shard k numbers its rows from k &lt;&lt; 40, so a message id alone
+ * says which file holds it. The layout is only changed offline, by {@link ReshardTool}.
+ */
+final class InboxShard implements AutoCloseable {
+    static final int ID_BITS = 40;
+
+    final int index;
+    final ConnectionPool pool;
+    final GroupCommitWriter writer;
+    final SearchIndex search;
+    // external-write poller state, see Database.pollExternalWrites
+    final AtomicLong highestPublishedId = new AtomicLong();
+    long seenDataVersion = -1;
+    private final boolean ownsPool;
+
+    private InboxShard(int index, ConnectionPool pool, boolean ownsPool, MailArchive archive) {
+        this.index = index;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.writer = new GroupCommitWriter(pool);
+        this.search = new SearchIndex(pool, archive);
+    }
+
+    /** The whole inbox in Users.db; the pool stays open when the shard is closed. */
+    static InboxShard unsharded(ConnectionPool pool, MailArchive archive) {
+        return new InboxShard(0, pool, false, archive);
+    }
+
+    /** Opens (creating and migrating if needed) shard index of count. */
+    static InboxShard open(int index, int count, int readers, MailArchive archive) throws SQLException {
+        ConnectionPool pool = openPool(index, count, readers);
+        return new InboxShard(index, pool, true, archive);
+    }
+
+    /** Connections to a migrated shard file whose ids start at its range; also used by ReshardTool. */
+    static ConnectionPool openPool(int index, int count, int readers) throws SQLException {
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + fileName(index, count), readers);
+        try (ConnectionPool.Lease lease = pool.writer()) {
+            SchemaMigrations.migrate(lease);
+            reserveIds(lease, index);
+        } catch (SQLException e) {
+            pool.close();
+            throw e;
+        }
+        return pool;
+    }
+
+    static String fileName(int index, int count) {
+        String main = Database.DB_FILE;
+        String base = main.endsWith(".db") ? main.substring(0, main.length() - 3) : main;
+        return base + ".shard" + index + "of" + count + ".db";
+    }
+
+    /** Shard of receiver among count; stable across runs and JVMs. */
+    static int of(String receiver, int count) {
+        if (count == 1) return 0;
+        CRC32 crc = new CRC32();
+        crc.update((receiver == null ? "" : receiver).getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % count);
+    }
+
+    /** Shard that numbered id. */
+    static int ofId(long id) {
+        return (int) (id >>> ID_BITS);
+    }
+
+    private static void reserveIds(ConnectionPool.Lease writer, int index) throws SQLException {
+        if (index > 0) raiseIdFloor(writer, (long) index << ID_BITS);
+    }
+
+    // AUTOINCREMENT continues from sqlite_sequence, so raising it makes new ids start above floor
+    static void raiseIdFloor(ConnectionPool.Lease writer, long floor) throws SQLException {
+        PreparedStatement update = writer.prepare("UPDATE sqlite_sequence SET seq = ? WHERE name = 'inbox' AND seq < ?");
+        update.setLong(1, floor);
+        update.setLong(2, floor);
+        if (update.executeUpdate() > 0) return;
+        PreparedStatement insert = writer.prepare(
+            "INSERT INTO sqlite_sequence (name, seq) SELECT 'inbox', ? WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = 'inbox')");
+        insert.setLong(1, floor);
+        insert.executeUpdate();
+    }
+
+    long dataVersion() throws SQLException {
+        try (ConnectionPool.Lease lease = pool.writer();
+             ResultSet rs = lease.prepare("PRAGMA data_version").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    long maxInboxId() throws SQLException {
+        try (ConnectionPool.Lease lease = pool.reader();
+             ResultSet rs = lease.prepare("SELECT COALESCE(MAX(id), 0) FROM inbox").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /** Flushes queued mail; closes the connections unless they belong to Users.db. */
+    @Override
+    public void close() {
+        search.close();
+        writer.close();
+        if (ownsPool) pool.close();
+    }
+}
@@ -0,0 +1,326 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-sent event streams behind /api/inbox/stream.
+ *
+ * {@link #open} sends the headers, registers the stream with {@link InboxEvents} and returns,
+ * so the HTTP thread is released and an idle subscriber costs a queue and an open socket, not a
+ * thread. Events are written by a small pool ({@code sse.threads}); each stream is drained by
+ * at most one pool thread at a time, which also closes the exchange: publishers never do I/O.
+ * Every {@code sse.heartbeatMs} a comment line is sent so proxies keep the connection open and
+ * dead clients are noticed. The same tick closes streams whose token was logged out, revoked or
+ * has expired, and cuts a client that has not taken a write for {@code sse.stallMs} (two
+ * heartbeats) by interrupting the thread blocked in it, which closes the socket, so a few
+ * stalled clients cannot hold the pool.
+ *
+ * Event ids are inbox message ids. A client reconnecting with Last-Event-ID (or
+ * ?lastEventId=) first gets the stored messages after that id, up to {@code sse.replayLimit},
+ * then live ones; live messages arriving during the replay are held back and deduplicated.
+ *
+ * A user may hold {@code sse.maxPerUser} streams (more get 429) and the server
+ * {@code sse.maxTotal} (more get 503). A stream whose client falls {@code sse.maxQueued}
+ * events behind is closed; the browser reconnects and catches up via Last-Event-ID.
+ */
+public class InboxStreams {
+    private static final int THREADS = Integer.getInteger("sse.threads", 2);
+    private static final long HEARTBEAT_MS = Long.getLong("sse.heartbeatMs", 15_000);
+    private static final int MAX_PER_USER = Integer.getInteger("sse.maxPerUser", 5);
+    private static final int MAX_TOTAL = Integer.getInteger("sse.maxTotal", 10_000);
+    private static final int MAX_QUEUED = Integer.getInteger("sse.maxQueued", 1_000);
+    private static final int REPLAY_LIMIT = Integer.getInteger("sse.replayLimit", 500);
+    private static final long STALL_MS = Long.getLong("sse.stallMs", 2 * HEARTBEAT_MS);
+    private static final long RETRY_MS = 3_000;
+
+    private static final byte[] PING = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final DatabaseCopy dbCopy;
+    private final SessionManager sessions;
+    private final ExecutorService writers;
+    private final ScheduledExecutorService heartbeat;
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Integer> perUser = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger();
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder stalled = new LongAdder();
+
+    public InboxStreams(DatabaseCopy dbCopy, SessionManager sessions) {
+        this.dbCopy = dbCopy;
+        this.sessions = sessions;
+        this.writers = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "sse-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sse-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleAtFixedRate(this::beat, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a stream for email, signed in with token, replaying stored messages after lastEventId
+     * (if >= 0). Returns 200 once the stream is open, or 429/503 (nothing sent) when a cap is reached.
+     */
+    public int open(HttpExchange ex, String email, String token, long lastEventId) throws IOException {
+        if (total.incrementAndGet() > MAX_TOTAL) {
+            total.decrementAndGet();
+            rejected.increment();
+            return 503;
+        }
+        boolean[] admitted = {false};
+        perUser.compute(email, (k, n) -> {
+            int open = n == null ? 0 : n;
+            if (open >= MAX_PER_USER) return n;
+            admitted[0] = true;
+            return open + 1;
+        });
+        if (!admitted[0]) {
+            total.decrementAndGet();
+            rejected.increment();
+            return 429;
+        }
+
+        // from here on every failure must give the slot back, or the user is locked out until restart
+        try {
+            ex.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+            ex.getResponseHeaders().add("Cache-Control", "no-cache");
+            ex.getResponseHeaders().add("X-Accel-Buffering", "no"); // tell nginx-style proxies not to buffer
+            ex.sendResponseHeaders(200, 0);
+        } catch (IOException | RuntimeException e) {
+            release(email);
+            throw e;
+        }
+        Stream s = new Stream(ex, email, token, lastEventId);
+        try {
+            streams.add(s);
+            s.write(("retry: " + RETRY_MS + "\n\n").getBytes(StandardCharsets.UTF_8));
+
+            // subscribe before replaying so nothing committed in between is missed; live events queue meanwhile
+            dbCopy.inboxEvents().subscribe(email, s);
+            if (lastEventId >= 0) {
+                dbCopy.forEachInboxSince(email, lastEventId, REPLAY_LIMIT, s::send);
+            }
+            s.replayDone();
+        } catch (RuntimeException e) {
+            s.close(); // releases the slot, once
+            s.replayDone(); // a writer thread closes the exchange
+            throw e;
+        }
+        return 200;
+    }
+
+    public String statsJson() {
+        return "{\"open\":" + total.get() + ",\"users\":" + perUser.size() + ",\"delivered\":" + delivered.sum() +
+            ",\"rejected\":" + rejected.sum() + ",\"dropped\":" + dropped.sum() + ",\"stalled\":" + stalled.sum() + "}";
+    }
+
+    /** Closes the streams opened with token, on logout; reconnecting with it then gets 401. */
+    public void closeToken(String token) {
+        if (token == null) return;
+        for (Stream s : streams) {
+            if (token.equals(s.token)) s.close();
+        }
+    }
+
+    private void beat() {
+        long now = System.currentTimeMillis();
+        for (Stream s : streams) {
+            s.cutIfStalled(now); // closed streams too: closing the exchange writes as well
+            if (s.closed.get()) continue;
+            if (sessions.valid(s.token)) s.enqueue(Frame.HEARTBEAT);
+            else s.close();
+        }
+    }
+
+    private void release(String email) {
+        total.decrementAndGet();
+        perUser.computeIfPresent(email, (k, n) -> n <= 1 ? null : n - 1);
+    }
+
+    private static final class Frame {
+        static final Frame HEARTBEAT = new Frame(-1, PING);
+        final long id;
+        final byte[] bytes;
+
+        Frame(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+
+        static Frame of(InboxEvents.Mail m) {
+            return new Frame(m.id, ("id: " + m.id + "\nevent: mail\ndata: " + m.toJson() + "\n\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private final class Stream implements InboxEvents.Listener {
+        final HttpExchange ex;
+        final OutputStream out;
+        final String email;
+        final String token;
+        final ConcurrentLinkedQueue<Frame> outbox = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicBoolean draining = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final AtomicBoolean finished = new AtomicBoolean();
+        volatile boolean replaying = true;
+        long lastSentId; // written by the replaying HTTP thread, then only by the current drainer
+        // the thread inside a write, flush or exchange close and since when; guarded by this
+        private Thread writer;
+        private long writeStart;
+        private boolean cut;
+
+        Stream(HttpExchange ex, String email, String token, long lastEventId) {
+            this.ex = ex;
+            this.out = ex.getResponseBody();
+            this.email = email;
+            this.token = token;
+            this.lastSentId = Math.max(lastEventId, 0);
+        }
+
+        @Override
+        public void onMail(InboxEvents.Mail mail) {
+            enqueue(Frame.of(mail));
+        }
+
+        void enqueue(Frame f) {
+            if (closed.get()) return;
+            if (queued.incrementAndGet() > MAX_QUEUED) {
+                dropped.increment();
+                close(); // no I/O: this may be a group-commit writer publishing
+                return;
+            }
+            outbox.add(f);
+            schedule();
+        }
+
+        // replay path: write straight through on the HTTP thread
+        boolean send(InboxEvents.Mail m) {
+            if (m.id <= lastSentId) return true;
+            if (!write(Frame.of(m).bytes)) return false;
+            lastSentId = m.id;
+            delivered.increment();
+            return true;
+        }
+
+        void replayDone() {
+            flush();
+            replaying = false;
+            schedule();
+        }
+
+        void schedule() {
+            if (replaying) return;
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        // writes what is queued, then closes the exchange if the stream was closed meanwhile
+        void drain() {
+            try {
+                Frame f;
+                boolean wrote = false;
+                while (!closed.get() && (f = outbox.poll()) != null) {
+                    queued.decrementAndGet();
+                    if (f.id >= 0) {
+                        if (f.id <= lastSentId) continue; // already sent by the replay
+                        lastSentId = f.id;
+                        delivered.increment();
+                    }
+                    if (!write(f.bytes)) break;
+                    wrote = true;
+                }
+                if (wrote) flush();
+                if (closed.get()) finish();
+            } finally {
+                draining.set(false);
+            }
+            // something arrived after the last poll, or the stream was closed after the check
+            if (closed.get() ? !finished.get() : !outbox.isEmpty()) schedule();
+        }
+
+        boolean write(byte[] bytes) {
+            if (closed.get()) return false;
+            begin();
+            try {
+                out.write(bytes);
+                return true;
+            } catch (IOException e) { // ClosedByInterruptException when cut
+                close();
+                return false;
+            } finally {
+                end();
+            }
+        }
+
+        boolean flush() {
+            if (closed.get()) return false;
+            begin();
+            try {
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            } finally {
+                end();
+            }
+        }
+
+        /** Stops delivery and gives the slot back; the exchange is closed by the next drain. */
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            dbCopy.inboxEvents().unsubscribe(email, this);
+            release(email);
+            outbox.clear();
+            schedule();
+        }
+
+        // Closing the exchange writes the final chunk, so it is a write like any other
+        void finish() {
+            if (!finished.compareAndSet(false, true)) return;
+            streams.remove(this);
+            begin();
+            try {
+                ex.close();
+            } finally {
+                end();
+            }
+        }
+
+        private synchronized void begin() {
+            writer = Thread.currentThread();
+            writeStart = System.currentTimeMillis();
+        }
+
+        private synchronized void end() {
+            writer = null;
+            if (cut) Thread.interrupted(); // the interrupt was for this write only
+        }
+
+        // Interrupting a thread blocked on a SocketChannel closes the channel and fails the write
+        synchronized void cutIfStalled(long now) {
+            if (writer == null || cut || now - writeStart < STALL_MS) return;
+            cut = true;
+            stalled.increment();
+            writer.interrupt();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import java.util.Hashtable;
+import javax.naming.directory.*;
+
+/** Real DNS lookups through the JDK's JNDI DNS provider, with explicit timeouts. */
+public class JndiDnsResolver implements DnsResolver {
+
+    @Override
+    public boolean hasRecord(String domain, String type, long timeoutMs) throws Exception {
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+        // One attempt per server, bounded by timeoutMs (the provider's default is 1 s doubled over 4 retries)
+        env.put("com.sun.jndi.dns.timeout.initial", String.valueOf(Math.max(1, timeoutMs)));
+        env.put("com.sun.jndi.dns.timeout.retries", "1");
+        DirContext ctx = new InitialDirContext(env);
+        try {
+            Attribute attr = ctx.getAttributes(domain, new String[] { type }).get(type);
+            return attr != null && attr.size() > 0;
+        } finally {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal streaming JSON writer.
+ *
+ * Values are written straight to the underlying Writer as they are produced, so a
+ * response of any size only ever holds the current row plus the writer buffer in memory.
+ * Strings are escaped in a single pass that copies unescaped runs in bulk.
+ *
+ * Usage:
+ * <pre>
+ *   JsonWriter w = new JsonWriter(out);
+ *   w.beginArray();
+ *   w.beginObject().name("from").value(sender).endObject();
+ *   w.endArray();
+ *   w.flush();
+ * </pre>
+ * The writer does not validate nesting; callers are expected to pair begin/end calls.
+ */
+public final class JsonWriter implements Closeable, Flushable {
+    private static final int MAX_DEPTH = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    // first[d] is true until the first element has been written at nesting depth d
+    private final boolean[] first = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+        first[0] = true;
+    }
+
+    /** Buffered UTF-8 writer over a raw stream, e.g. an HttpExchange response body. */
+    public JsonWriter(OutputStream out) {
+        this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192));
+    }
+
+    public JsonWriter beginObject() throws IOException { return open('{'); }
+    public JsonWriter endObject() throws IOException { return close('}'); }
+    public JsonWriter beginArray() throws IOException { return open('['); }
+    public JsonWriter endArray() throws IOException { return close(']'); }
+
+    public JsonWriter name(String name) throws IOException {
+        separator();
+        out.write('"');
+        escapeTo(name, out);
+        out.write("\":");
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String s) throws IOException {
+        if (s == null) return nullValue();
+        separator();
+        out.write('"');
+        escapeTo(s, out);
+        out.write('"');
+        return this;
+    }
+
+    public JsonWriter value(long n) throws IOException {
+        separator();
+        out.write(Long.toString(n));
+        return this;
+    }
+
+    public JsonWriter value(boolean b) throws IOException {
+        separator();
+        out.write(b ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        separator();
+        out.write("null");
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException { out.flush(); }
+
+    @Override
+    public void close() throws IOException { out.close(); }
+
+    private JsonWriter open(char c) throws IOException {
+        separator();
+        if (depth + 1 >= MAX_DEPTH) throw new IllegalStateException("JSON nesting too deep");
+        out.write(c);
+        first[++depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        depth--;
+        out.write(c);
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (first[depth]) first[depth] = false;
+        else out.write(',');
+    }
+
+    // ---------------- Escaping ----------------
+    /** Escapes s for use inside a JSON string literal; returns s itself when nothing needs escaping. */
+    public static String escape(String s) {
+        if (s == null) return "";
+        int i = firstEscapeIndex(s);
+        if (i < 0) return s;
+        StringWriter sw = new StringWriter(s.length() + 16);
+        sw.write(s, 0, i);
+        try {
+            escapeFrom(s, i, sw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter never throws
+        }
+        return sw.toString();
+    }
+
+    static void escapeTo(String s, Writer w) throws IOException {
+        escapeFrom(s, 0, w);
+    }
+
+    private static int firstEscapeIndex(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (needsEscape(s.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029';
+    }
+
+    // Single pass: unescaped runs are copied with one write call each
+    private static void escapeFrom(String s, int start, Writer w) throws IOException {
+        int run = start;
+        for (int i = start, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (!needsEscape(c)) continue;
+            if (i > run) w.write(s, run, i - run);
+            run = i + 1;
+            switch (c) {
+                case '"': w.write("\\\""); break;
+                case '\\': w.write("\\\\"); break;
+                case '\n': w.write("\\n"); break;
+                case '\r': w.write("\\r"); break;
+                case '\t': w.write("\\t"); break;
+                case '\b': w.write("\\b"); break;
+                case '\f': w.write("\\f"); break;
+                default:
+                    w.write("\\u");
+                    w.write(HEX[(c >> 12) & 0xF]);
+                    w.write(HEX[(c >> 8) & 0xF]);
+                    w.write(HEX[(c >> 4) & 0xF]);
+                    w.write(HEX[c & 0xF]);
+            }
+        }
+        if (run < s.length()) w.write(s, run, s.length() - run);
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * The cold tier: mail moved out of the inbox table by {@link Archiver}, in append-only segment
+ * files (archive/seg-NNNNNNNNNNNN.arc, {@code archive.dir}) that are read through memory maps.
+ *
+ * A segment is written once, to a .tmp file that is synced and then renamed into place, and is
+ * never modified afterwards, so readers in any process can map it without locking. Layout:
+ * <pre>
+ *   magic
+ *   records  BODY  codec, size, data        once per distinct body (as in the bodies table)
+ *            LIST  codec, size, data        to/cc/bcc of a recipient list, compressed like a body
+ *            MAIL  id, list id, body and list offsets, sender, receiver, subject, preview,
+ *                  timestamp, summary (sender's copy of a list only)
+ *   key index   (key, seconds, id, offset) sorted by key, then newest first
+ *   id index    (id, offset) sorted by id
+ *   footer      index offsets and counts, min and max id, magic
+ * </pre>
+ * The key of an entry is a 64-bit hash of the mailbox ("r" + receiver for inboxes, "s" + sender
+ * for the sender's copy), so a page of one user's mail is a binary search per segment followed
+ * by a merge; hash collisions are filtered by comparing the address in the record. Listing only
+ * reads MAIL records; bodies and lists are decompressed when a message is opened.
+ */
+public class MailArchive {
+    private static final long MAGIC = 0x4D41494C41524331L; // "MAILARC1"
+    private static final int FOOTER_BYTES = 48;
+    private static final int KEY_ENTRY_BYTES = 32;
+    private static final int ID_ENTRY_BYTES = 16;
+    private static final byte BODY = 1;
+    private static final byte LIST = 2;
+    private static final byte MAIL = 3;
+
+    private final File dir;
+    private volatile List<Segment> segments = Collections.emptyList();
+    private long listedStamp = Long.MIN_VALUE; // guarded by this
+
+    public MailArchive(File dir) {
+        this.dir = dir;
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    // ---------------- Reading ----------------
+
+    /** One archived message; body and recipient lists are read on demand. */
+    public static final class Mail {
+        public final long id;
+        public final long listId; // 0 unless part of a multi-recipient mail
+        public final String sender, receiver, subject, preview, time;
+        public final String summary; // To summary on the sender's copy of a list, else null
+        private final Segment segment;
+        private final int bodyAt, listAt;
+
+        private Mail(Segment segment, int offset) throws IOException {
+            Reader r = new Reader(segment.buf, offset);
+            if (r.get() != MAIL) throw new IOException("No message record at " + offset + " in " + segment.name);
+            this.segment = segment;
+            id = r.getLong();
+            listId = r.getLong();
+            bodyAt = r.getInt();
+            listAt = r.getInt();
+            sender = r.string();
+            receiver = r.string();
+            subject = r.string();
+            preview = r.string();
+            time = r.string();
+            summary = r.string();
+        }
+
+        public String body() throws IOException {
+            return bodyAt < 0 ? "" : segment.text(bodyAt, BODY);
+        }
+
+        /** {to, cc, bcc} of a multi-recipient mail, or null. */
+        public String[] lists() throws IOException {
+            if (listAt < 0) return null;
+            return segment.text(listAt, LIST).split("\u0000", -1);
+        }
+    }
+
+    /** Mail of one mailbox, newest first, strictly older than (beforeTime, beforeId) if beforeTime is set. */
+    public Scan scan(String owner, boolean sent, String beforeTime, long beforeId) throws IOException {
+        return new Scan(segments(), owner, sent, beforeTime, beforeId);
+    }
+
+    public final class Scan {
+        private final PriorityQueue<SegmentCursor> cursors = new PriorityQueue<>(
+            Comparator.comparing((SegmentCursor c) -> c.mail.time, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                      .thenComparingLong(c -> c.mail.id)
+                      .reversed());
+        private final String owner;
+        private final boolean sent;
+
+        private Scan(List<Segment> segments, String owner, boolean sent, String beforeTime, long beforeId) throws IOException {
+            this.owner = owner;
+            this.sent = sent;
+            long key = key(sent, owner);
+            long beforeSeconds = beforeTime == null ? Long.MAX_VALUE : seconds(beforeTime);
+            for (Segment s : segments) {
+                int lo = s.firstKey(key, false);
+                int hi = s.firstKey(key, true);
+                if (lo >= hi) continue;
+                SegmentCursor c = new SegmentCursor(s, beforeTime == null ? lo : s.firstOlder(lo, hi, beforeSeconds, beforeId), hi);
+                if (c.advance()) cursors.add(c);
+            }
+        }
+
+        /** The next message, or null when the archive has no more for this mailbox. */
+        public Mail next() throws IOException {
+            SegmentCursor c = cursors.poll();
+            if (c == null) return null;
+            Mail m = c.mail;
+            if (c.advance()) cursors.add(c);
+            return m;
+        }
+
+        private final class SegmentCursor {
+            final Segment segment;
+            int next;
+            final int end;
+            Mail mail;
+
+            SegmentCursor(Segment segment, int next, int end) {
+                this.segment = segment;
+                this.next = next;
+                this.end = end;
+            }
+
+            boolean advance() throws IOException {
+                while (next < end) {
+                    Mail m = new Mail(segment, segment.keyOffset(next++));
+                    if (owner.equals(sent ? m.sender : m.receiver)) {
+                        mail = m;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    /** The archived message with this id, or null. */
+    public Mail find(long id) throws IOException {
+        for (Segment s : segments()) {
+            if (id < s.minId || id > s.maxId) continue;
+            int at = s.idOffset(id);
+            if (at >= 0) return new Mail(s, at);
+        }
+        return null;
+    }
+
+    /** Highest archived id in [from, to), 0 if none; ReshardTool keeps new ids above it. */
+    public long highestId(long from, long to) {
+        long max = 0;
+        for (Segment s : segments()) {
+            if (s.maxId < from || s.minId >= to) continue;
+            long id = s.lastIdBelow(to);
+            if (id >= from) max = Math.max(max, id);
+        }
+        return max;
+    }
+
+    /** Names of the segments in place, oldest first; with {@link #ids} for ReshardTool's re-indexing. */
+    List<String> segmentNames() {
+        List<String> names = new ArrayList<>();
+        for (Segment s : segments()) names.add(s.name);
+        return names;
+    }
+
+    /** Ids in a segment, for finishing an interrupted archive run. */
+    long[] ids(String name) throws IOException {
+        for (Segment s : segments()) {
+            if (s.name.equals(name)) {
+                long[] ids = new long[s.idCount];
+                for (int i = 0; i < ids.length; i++) ids[i] = s.buf.getLong(s.idAt + i * ID_ENTRY_BYTES);
+                return ids;
+            }
+        }
+        return null;
+    }
+
+    public String statsJson() {
+        long bytes = 0, messages = 0;
+        List<Segment> all = segments();
+        for (Segment s : all) {
+            bytes += s.buf.capacity();
+            messages += s.idCount;
+        }
+        return "{\"segments\":" + all.size() + ",\"messages\":" + messages + ",\"bytes\":" + bytes + "}";
+    }
+
+    // Relists the directory when it changed (new segments are renamed into it). A listing in the
+    // same second as a change may miss it, so recently changed directories are always relisted.
+    private List<Segment> segments() {
+        long stamp = dir.lastModified();
+        if (stamp != listedStamp || System.currentTimeMillis() - stamp < 2_000) {
+            synchronized (this) {
+                if (stamp != listedStamp || System.currentTimeMillis() - stamp < 2_000) {
+                    segments = load(segments);
+                    listedStamp = stamp;
+                }
+            }
+        }
+        return segments;
+    }
+
+    private List<Segment> load(List<Segment> current) {
+        String[] names = dir.list((d, n) -> n.startsWith("seg-") && n.endsWith(".arc"));
+        if (names == null) return current;
+        Arrays.sort(names);
+        // the names, not their count: one segment removed and another added keeps the count
+        if (sameNames(names, current)) return current;
+        Map<String, Segment> known = new HashMap<>();
+        for (Segment s : current) known.put(s.name, s);
+        List<Segment> out = new ArrayList<>(names.length);
+        for (String n : names) {
+            Segment s = known.get(n);
+            if (s == null) {
+                try (FileChannel ch = FileChannel.open(new File(dir, n).toPath(), StandardOpenOption.READ)) {
+                    s = new Segment(n, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+                } catch (IOException e) {
+                    System.err.println("Skipping archive segment " + n + ": " + e.getMessage());
+                    continue;
+                }
+            }
+            out.add(s);
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    private static boolean sameNames(String[] sorted, List<Segment> current) {
+        if (sorted.length != current.size()) return false;
+        for (int i = 0; i < sorted.length; i++) {
+            if (!sorted[i].equals(current.get(i).name)) return false;
+        }
+        return true;
+    }
+
+    private static final class Segment {
+        final String name;
+        final ByteBuffer buf; // only absolute gets, so concurrent readers share it
+        final int keyAt, keyCount, idAt, idCount;
+        final long minId, maxId;
+
+        Segment(String name, ByteBuffer buf) throws IOException {
+            int end = buf.capacity();
+            if (end < 8 + FOOTER_BYTES || buf.getLong(0) != MAGIC || buf.getLong(end - 8) != MAGIC) {
+                throw new IOException("not an archive segment");
+            }
+            int f = end - FOOTER_BYTES;
+            this.name = name;
+            this.buf = buf;
+            keyAt = (int) buf.getLong(f);
+            keyCount = buf.getInt(f + 8);
+            idAt = (int) buf.getLong(f + 12);
+            idCount = buf.getInt(f + 20);
+            minId = buf.getLong(f + 24);
+            maxId = buf.getLong(f + 32);
+        }
+
+        long key(int i) { return buf.getLong(keyAt + i * KEY_ENTRY_BYTES); }
+        long keySeconds(int i) { return buf.getLong(keyAt + i * KEY_ENTRY_BYTES + 8); }
+        long keyId(int i) { return buf.getLong(keyAt + i * KEY_ENTRY_BYTES + 16); }
+        int keyOffset(int i) { return (int) buf.getLong(keyAt + i * KEY_ENTRY_BYTES + 24); }
+
+        // first key entry >= key, or > key if after
+        int firstKey(long key, boolean after) {
+            int lo = 0, hi = keyCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long k = key(mid);
+                if (k < key || (after && k == key)) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        // first entry in [lo, hi), which run newest first, older than (seconds, id)
+        int firstOlder(int lo, int hi, long seconds, long id) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long s = keySeconds(mid);
+                boolean older = s < seconds || (s == seconds && keyId(mid) < id);
+                if (older) hi = mid; else lo = mid + 1;
+            }
+            return lo;
+        }
+
+        int idOffset(long id) {
+            int lo = 0, hi = idCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long v = buf.getLong(idAt + mid * ID_ENTRY_BYTES);
+                if (v < id) lo = mid + 1;
+                else if (v > id) hi = mid - 1;
+                else return (int) buf.getLong(idAt + mid * ID_ENTRY_BYTES + 8);
+            }
+            return -1;
+        }
+
+        // highest id in the segment below limit, or Long.MIN_VALUE
+        long lastIdBelow(long limit) {
+            int lo = 0, hi = idCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buf.getLong(idAt + mid * ID_ENTRY_BYTES) < limit) lo = mid + 1; else hi = mid;
+            }
+            return lo == 0 ? Long.MIN_VALUE : buf.getLong(idAt + (lo - 1) * ID_ENTRY_BYTES);
+        }
+
+        String text(int offset, byte type) throws IOException {
+            Reader r = new Reader(buf, offset);
+            if (r.get() != type) throw new IOException("Bad record at " + offset + " in " + name);
+            int codec = r.get();
+            int size = r.getInt();
+            byte[] data = r.bytes(r.getInt());
+            try {
+                return MessageBodies.decode(codec, size, data);
+            } catch (SQLException e) {
+                throw new IOException("Corrupt record at " + offset + " in " + name, e);
+            }
+        }
+    }
+
+    private static final class Reader {
+        final ByteBuffer buf;
+        int pos;
+
+        Reader(ByteBuffer buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte get() { return buf.get(pos++); }
+        int getInt() { int v = buf.getInt(pos); pos += 4; return v; }
+        long getLong() { long v = buf.getLong(pos); pos += 8; return v; }
+
+        byte[] bytes(int n) {
+            byte[] b = new byte[n];
+            buf.get(pos, b);
+            pos += n;
+            return b;
+        }
+
+        String string() {
+            int n = getInt();
+            return n < 0 ? null : new String(bytes(n), StandardCharsets.UTF_8);
+        }
+    }
+
+    // ---------------- Writing ----------------
+
+    /** A segment numbered after every existing one; only one Archiver writes at a time. */
+    SegmentWriter newSegment() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        long seq = 0;
+        String[] names = dir.list((d, n) -> n.startsWith("seg-"));
+        for (String n : names == null ? new String[0] : names) {
+            try {
+                seq = Math.max(seq, Long.parseLong(n.substring(4, n.indexOf('.'))));
+            } catch (RuntimeException ignored) {
+            }
+        }
+        return new SegmentWriter(String.format(Locale.ROOT, "seg-%012d", seq + 1));
+    }
+
+    final class SegmentWriter implements Closeable {
+        final String name;
+        private final File tmp;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final Map<String, Integer> bodies = new HashMap<>();
+        private final Map<Long, Integer> lists = new HashMap<>();
+        private final List<long[]> keys = new ArrayList<>();
+        private final List<long[]> ids = new ArrayList<>();
+        private long minId = Long.MAX_VALUE, maxId = Long.MIN_VALUE;
+        private boolean finished;
+
+        private SegmentWriter(String base) throws IOException {
+            name = base + ".arc";
+            tmp = new File(dir, base + ".tmp");
+            file = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeLong(MAGIC);
+        }
+
+        int size() { return out.size(); }
+        int rows() { return ids.size(); }
+        boolean hasBody(byte[] hash) { return bodies.containsKey(hex(hash)); }
+        boolean hasList(long listId) { return lists.containsKey(listId); }
+
+        /** An already encoded body (see MessageBodies), stored once per segment. */
+        void addBody(byte[] hash, int codec, int size, byte[] data) throws IOException {
+            bodies.put(hex(hash), out.size());
+            out.writeByte(BODY);
+            out.writeByte(codec);
+            out.writeInt(size);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        void addList(long listId, String to, String cc, String bcc) throws IOException {
+            MessageBodies.Encoded e = MessageBodies.encode(nullToEmpty(to) + "\u0000" + nullToEmpty(cc) + "\u0000" + nullToEmpty(bcc));
+            lists.put(listId, out.size());
+            out.writeByte(LIST);
+            out.writeByte(e.codec);
+            out.writeInt(e.size);
+            out.writeInt(e.data.length);
+            out.write(e.data);
+        }
+
+        /** Body (and list, if listId != 0) must have been added to this segment first. */
+        void addMail(long id, long listId, byte[] bodyHash, String sender, String receiver, String subject,
+                     String preview, String time, String summary) throws IOException {
+            int at = out.size();
+            Integer body = bodyHash == null ? null : bodies.get(hex(bodyHash));
+            Integer list = listId == 0 ? null : lists.get(listId);
+            boolean senderCopy = listId == 0 || listId == id;
+            out.writeByte(MAIL);
+            out.writeLong(id);
+            out.writeLong(listId);
+            out.writeInt(body == null ? -1 : body);
+            out.writeInt(list == null ? -1 : list);
+            writeString(sender);
+            writeString(receiver);
+            writeString(subject);
+            writeString(preview);
+            writeString(time);
+            writeString(senderCopy ? summary : null);
+            long seconds = seconds(time);
+            keys.add(new long[] {key(false, nullToEmpty(receiver)), seconds, id, at});
+            if (senderCopy) keys.add(new long[] {key(true, nullToEmpty(sender)), seconds, id, at});
+            ids.add(new long[] {id, at});
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        /** Writes the indexes, syncs and renames the segment into place, where readers pick it up. */
+        void finish() throws IOException {
+            keys.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                : a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(b[2], a[2]));
+            ids.sort((a, b) -> Long.compare(a[0], b[0]));
+            long keyAt = out.size();
+            for (long[] k : keys) for (long v : k) out.writeLong(v);
+            long idAt = out.size();
+            for (long[] i : ids) {
+                out.writeLong(i[0]);
+                out.writeLong(i[1]);
+            }
+            out.writeLong(keyAt);
+            out.writeInt(keys.size());
+            out.writeLong(idAt);
+            out.writeInt(ids.size());
+            out.writeLong(ids.isEmpty() ? 0 : minId);
+            out.writeLong(ids.isEmpty() ? 0 : maxId);
+            out.writeLong(MAGIC);
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            Files.move(tmp.toPath(), new File(dir, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        /** Discards the segment unless it was finished. */
+        @Override
+        public void close() {
+            if (finished) return;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            tmp.delete();
+        }
+    }
+
+    // ---------------- Keys ----------------
+
+    // FNV-1a over the UTF-8 of "s"/"r" + address
+    static long key(boolean sent, String address) {
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ (sent ? 's' : 'r')) * 0x100000001b3L;
+        for (byte b : address.getBytes(StandardCharsets.UTF_8)) h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        return h;
+    }
+
+    // SQLite's "yyyy-MM-dd HH:mm:ss" as epoch seconds, ordered like the text; 0 if missing or odd
+    static long seconds(String time) {
+        if (time == null) return 0;
+        try {
+            return LocalDateTime.parse(time.replace(' ', 'T')).toEpochSecond(ZoneOffset.UTC);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static String hex(byte[] b) {
+        return HexFormat.of().formatHex(b);
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+}
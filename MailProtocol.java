@@ -0,0 +1,212 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framed, pipelined wire protocol for inbound mail on the EmailReceiverServer port.
+ *
+ * Negotiation: a framed client opens with the 4-byte magic "SEMP" followed by the highest
+ * protocol version it speaks (1 byte). The server answers with the same magic and the version
+ * it picked, or version 0 if it cannot serve the client (and then closes). Anything else on the
+ * first bytes is treated as the legacy format: four writeUTF strings, one mail per connection.
+ * A legacy sender would need a 21,317-byte sender address to collide with the magic.
+ *
+ * Frames: type (1 byte), payload length (4 bytes, big-endian), payload.
+ * <pre>
+ *   MAIL       seq:int, sender, receiver, subject, body         client -> server
+ *   BATCH      seq:int, count:int, count x (sender, receiver, subject, body)
+ *   FANOUT     seq:int, sender, subject, body, then for to, cc and bcc in turn:
+ *              count:int, count x address                       (version 2)
+ *   QUIT       (empty) server closes once every ack is written
+ *   ACK        seq:int, id:long                                 server -> client
+ *   NACK       seq:int, message
+ *   BATCH_ACK  seq:int, count:int, count x id:long (-1 = not stored)
+ *              (for FANOUT: one id per listed address, to then cc then bcc)
+ *   ERROR      message; the server closes the connection after it
+ * </pre>
+ * A FANOUT is stored in one transaction with a single copy of the body (see
+ * {@link Recipients} for what is rejected). Version 1 peers never see it.
+ *
+ * Strings are a 4-byte length followed by UTF-8 bytes, so bodies are no longer capped at the
+ * 64 KB of writeUTF; whole frames are capped at {@link #MAX_FRAME_BYTES}.
+ */
+public final class MailProtocol {
+    public static final byte[] MAGIC = { 'S', 'E', 'M', 'P' };
+    public static final int VERSION = 2;
+    /** First version with FANOUT. */
+    public static final int FANOUT_VERSION = 2;
+    public static final int HEADER_BYTES = 5;
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("receiver.maxFrameBytes", 16 * 1024 * 1024);
+
+    public static final byte MAIL = 0x01;
+    public static final byte BATCH = 0x02;
+    public static final byte FANOUT = 0x03;
+    public static final byte QUIT = 0x0F;
+    public static final byte ACK = (byte) 0x81;
+    public static final byte NACK = (byte) 0x82;
+    public static final byte BATCH_ACK = (byte) 0x83;
+    public static final byte ERROR = (byte) 0x8F;
+
+    private MailProtocol() {}
+
+    /** Magic plus version: the client greeting and the server reply share this shape. */
+    public static byte[] hello(int version) {
+        byte[] b = new byte[MAGIC.length + 1];
+        System.arraycopy(MAGIC, 0, b, 0, MAGIC.length);
+        b[MAGIC.length] = (byte) version;
+        return b;
+    }
+
+    public static boolean startsWithMagic(byte[] data, int length) {
+        if (length < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    // ---------------- Encoding ----------------
+    public static ByteBuffer ack(int seq, long id) {
+        ByteBuffer b = frame(ACK, 12);
+        b.putInt(seq).putLong(id);
+        return b.flip();
+    }
+
+    public static ByteBuffer nack(int seq, String message) {
+        byte[] m = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = frame(NACK, 8 + m.length);
+        b.putInt(seq).putInt(m.length).put(m);
+        return b.flip();
+    }
+
+    public static ByteBuffer batchAck(int seq, long[] ids) {
+        ByteBuffer b = frame(BATCH_ACK, 8 + 8 * ids.length);
+        b.putInt(seq).putInt(ids.length);
+        for (long id : ids) b.putLong(id);
+        return b.flip();
+    }
+
+    public static ByteBuffer error(String message) {
+        byte[] m = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = frame(ERROR, 4 + m.length);
+        b.putInt(m.length).put(m);
+        return b.flip();
+    }
+
+    private static ByteBuffer frame(byte type, int payloadLength) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        b.put(type).putInt(payloadLength);
+        return b;
+    }
+
+    /** Writes one MAIL frame; used by {@link MailProtocolClient}. */
+    public static void writeMail(DataOutputStream out, int seq, String[] mail) throws IOException {
+        byte[][] fields = utf8(mail);
+        int length = 4 + fieldsLength(fields);
+        checkFrameLength(length);
+        out.writeByte(MAIL);
+        out.writeInt(length);
+        out.writeInt(seq);
+        writeFields(out, fields);
+    }
+
+    /** Writes one BATCH frame; used by {@link MailProtocolClient}. */
+    public static void writeBatch(DataOutputStream out, int seq, java.util.List<String[]> mails) throws IOException {
+        byte[][][] all = new byte[mails.size()][][];
+        int length = 8;
+        for (int i = 0; i < all.length; i++) {
+            all[i] = utf8(mails.get(i));
+            length += fieldsLength(all[i]);
+        }
+        checkFrameLength(length);
+        out.writeByte(BATCH);
+        out.writeInt(length);
+        out.writeInt(seq);
+        out.writeInt(all.length);
+        for (byte[][] fields : all) writeFields(out, fields);
+    }
+
+    /** Writes one FANOUT frame; used by {@link MailProtocolClient}. */
+    public static void writeFanout(DataOutputStream out, int seq, String sender, String subject, String body,
+                                   java.util.List<String> to, java.util.List<String> cc, java.util.List<String> bcc) throws IOException {
+        java.util.List<java.util.List<String>> lists = java.util.Arrays.asList(to, cc, bcc);
+        byte[][] head = { utf8(sender), utf8(subject), utf8(body) };
+        byte[][][] addresses = new byte[3][][];
+        int length = 4 + fieldsLength(head) + 12;
+        for (int k = 0; k < 3; k++) {
+            java.util.List<String> list = lists.get(k);
+            addresses[k] = new byte[list.size()][];
+            for (int i = 0; i < list.size(); i++) addresses[k][i] = utf8(list.get(i));
+            length += fieldsLength(addresses[k]);
+        }
+        checkFrameLength(length);
+        out.writeByte(FANOUT);
+        out.writeInt(length);
+        out.writeInt(seq);
+        writeFields(out, head);
+        for (byte[][] list : addresses) {
+            out.writeInt(list.length);
+            writeFields(out, list);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] utf8(String[] mail) {
+        if (mail.length != 4) throw new IllegalArgumentException("mail needs sender, receiver, subject, body");
+        byte[][] fields = new byte[4][];
+        for (int i = 0; i < 4; i++) fields[i] = (mail[i] == null ? "" : mail[i]).getBytes(StandardCharsets.UTF_8);
+        return fields;
+    }
+
+    private static int fieldsLength(byte[][] fields) {
+        int n = 0;
+        for (byte[] f : fields) n += 4 + f.length;
+        return n;
+    }
+
+    private static void writeFields(DataOutputStream out, byte[][] fields) throws IOException {
+        for (byte[] f : fields) {
+            out.writeInt(f.length);
+            out.write(f);
+        }
+    }
+
+    private static void checkFrameLength(int length) throws IOException {
+        if (length > MAX_FRAME_BYTES) throw new IOException("Frame of " + length + " bytes exceeds " + MAX_FRAME_BYTES);
+    }
+
+    // ---------------- Decoding ----------------
+    /** Reads a 4-byte int; a frame cut short is a protocol error, not a BufferUnderflowException. */
+    public static int readInt(ByteBuffer b) throws IOException {
+        if (b.remaining() < 4) throw new IOException("Frame truncated: " + b.remaining() + " bytes left, need 4");
+        return b.getInt();
+    }
+
+    public static String readString(ByteBuffer b) throws IOException {
+        int len = readInt(b);
+        if (len < 0 || len > b.remaining()) throw new IOException("Bad string length " + len);
+        String s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+        b.position(b.position() + len);
+        return s;
+    }
+
+    /** Reads count:int and that many strings (a FANOUT address list) as one comma-separated string. */
+    public static String readList(ByteBuffer b) throws IOException {
+        int count = readInt(b);
+        if (count < 0 || count > b.remaining() / 4) throw new IOException("Bad list length " + count);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(readString(b));
+        }
+        return sb.toString();
+    }
+
+    /** Reads sender, receiver, subject, body. */
+    public static String[] readMail(ByteBuffer b) throws IOException {
+        return new String[] { readString(b), readString(b), readString(b), readString(b) };
+    }
+}
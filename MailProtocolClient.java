@@ -0,0 +1,171 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client for the framed {@link MailProtocol}: one persistent connection, many pipelined mails.
+ *
+ * Usage:
+ * <pre>
+ *   try (MailProtocolClient c = new MailProtocolClient("localhost", 5000)) {
+ *       long id = c.send("a@x.com", "b@x.com", "Hi", "...").get();
+ *   }
+ * </pre>
+ * Sends return immediately with a future that completes when the server acks the message with
+ * its stored id (or fails on NACK). A background thread reads acks, which may arrive in any order.
+ */
+public class MailProtocolClient implements Closeable {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final int version;
+    private final AtomicInteger seq = new AtomicInteger();
+    private final ConcurrentMap<Integer, CompletableFuture<Long>> pendingMails = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, CompletableFuture<long[]>> pendingBatches = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private volatile IOException failure;
+
+    public MailProtocolClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+        out.write(MailProtocol.hello(MailProtocol.VERSION));
+        out.flush();
+        byte[] reply = new byte[MailProtocol.MAGIC.length + 1];
+        in.readFully(reply);
+        if (!MailProtocol.startsWithMagic(reply, reply.length)) throw new IOException("Server does not speak the framed protocol");
+        version = reply[MailProtocol.MAGIC.length] & 0xFF;
+        if (version < 1) {
+            socket.close();
+            throw new IOException("Server rejected protocol version " + MailProtocol.VERSION);
+        }
+
+        reader = new Thread(this::readAcks, "mail-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public int version() { return version; }
+
+    public CompletableFuture<Long> send(String sender, String receiver, String subject, String body) throws IOException {
+        int s = seq.incrementAndGet();
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        pendingMails.put(s, f);
+        synchronized (out) {
+            checkOpen();
+            MailProtocol.writeMail(out, s, new String[] { sender, receiver, subject, body });
+            out.flush();
+        }
+        return f;
+    }
+
+    /** Sends all mails in one frame; the future yields their ids in order, -1 for any not stored. */
+    public CompletableFuture<long[]> sendBatch(List<String[]> mails) throws IOException {
+        int s = seq.incrementAndGet();
+        CompletableFuture<long[]> f = new CompletableFuture<>();
+        pendingBatches.put(s, f);
+        synchronized (out) {
+            checkOpen();
+            MailProtocol.writeBatch(out, s, mails);
+            out.flush();
+        }
+        return f;
+    }
+
+    /**
+     * One mail to many recipients, stored in one transaction with a single copy of the body.
+     * The future yields one id per address (to, then cc, then bcc), -1 for any rejected.
+     */
+    public CompletableFuture<long[]> sendFanout(String sender, List<String> to, List<String> cc, List<String> bcc,
+                                                String subject, String body) throws IOException {
+        if (version < MailProtocol.FANOUT_VERSION) throw new IOException("Server speaks protocol version " + version + ", FANOUT needs " + MailProtocol.FANOUT_VERSION);
+        int s = seq.incrementAndGet();
+        CompletableFuture<long[]> f = new CompletableFuture<>();
+        pendingBatches.put(s, f);
+        synchronized (out) {
+            checkOpen();
+            MailProtocol.writeFanout(out, s, sender, subject, body, to, cc, bcc);
+            out.flush();
+        }
+        return f;
+    }
+
+    /** Sends QUIT and waits for the server to ack everything outstanding and close. */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (out) {
+                if (failure == null) {
+                    out.writeByte(MailProtocol.QUIT);
+                    out.writeInt(0);
+                    out.flush();
+                }
+            }
+            reader.join(30_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) throw failure;
+    }
+
+    private void readAcks() {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                ByteBuffer b = ByteBuffer.wrap(payload);
+                switch (type) {
+                    case MailProtocol.ACK: {
+                        CompletableFuture<Long> f = pendingMails.remove(b.getInt());
+                        if (f != null) f.complete(b.getLong());
+                        break;
+                    }
+                    case MailProtocol.NACK: {
+                        int s = b.getInt();
+                        IOException rejected = new IOException("Rejected: " + MailProtocol.readString(b));
+                        CompletableFuture<Long> f = pendingMails.remove(s);
+                        if (f != null) f.completeExceptionally(rejected);
+                        CompletableFuture<long[]> fanout = pendingBatches.remove(s); // a refused FANOUT
+                        if (fanout != null) fanout.completeExceptionally(rejected);
+                        break;
+                    }
+                    case MailProtocol.BATCH_ACK: {
+                        CompletableFuture<long[]> f = pendingBatches.remove(b.getInt());
+                        long[] ids = new long[b.getInt()];
+                        for (int i = 0; i < ids.length; i++) ids[i] = b.getLong();
+                        if (f != null) f.complete(ids);
+                        break;
+                    }
+                    case MailProtocol.ERROR:
+                        throw new IOException("Server error: " + MailProtocol.readString(b));
+                    default:
+                        throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            fail(new IOException("Connection closed by server"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        for (CompletableFuture<Long> f : pendingMails.values()) f.completeExceptionally(e);
+        for (CompletableFuture<long[]> f : pendingBatches.values()) f.completeExceptionally(e);
+        pendingMails.clear();
+        pendingBatches.clear();
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serialized inbox/sent responses per mailbox ("inbox:alice@x", "sent:alice@x"), with a
+ * version number per mailbox for ETags. All users share the /api/inbox URL, so versions are
+ * unique across mailboxes and an ETag from one account never matches another's.
+ *
+ * Every stored message bumps the version of its receiver's inbox and its sender's sent box
+ * and drops their cached responses (DatabaseCopy wires this to {@link InboxEvents}). A response
+ * is only cached if the mailbox version did not move while it was being built, so a cached body
+ * never predates the version it is filed under.
+ *
+ * Memory is bounded by bytes: {@code cache.mailboxBytes} (default 32 MB) in total, evicting
+ * least recently used mailboxes, and no single response above 1/8 of that. Versions are kept
+ * only for mailboxes that were read, at most {@code cache.mailboxVersions} (default 50,000) of
+ * them, least recently used first out. Invalidating forgets a version rather than storing a
+ * new one, so a 5,000-address fan-out costs nothing for mailboxes nobody has opened. A mailbox
+ * without a version gets a fresh one from the sequence, which no client can hold yet, so
+ * forgetting only costs a single full response. Versions are only known to this process;
+ * writes by other processes reach it through Database's external-write poller, so their ETags
+ * can lag by one poll interval.
+ */
+public class MailboxCache {
+    private static final long MAX_BYTES = Long.getLong("cache.mailboxBytes", 32L * 1024 * 1024);
+    private static final int MAX_VERSIONS = Integer.getInteger("cache.mailboxVersions", 50_000);
+    // distinguishes ETags from a previous run, whose version counters started from the same values
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final int maxVersions;
+    private final LinkedHashMap<String, Long> versions = new LinkedHashMap<>(64, 0.75f, true); // guarded by this
+    private final AtomicLong sequence = new AtomicLong();
+    private final LinkedHashMap<String, Box> boxes = new LinkedHashMap<>(64, 0.75f, true); // guarded by this
+    private long bytes; // guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MailboxCache() {
+        this(MAX_BYTES, MAX_VERSIONS);
+    }
+
+    public MailboxCache(long maxBytes, int maxVersions) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+        this.maxVersions = Math.max(1, maxVersions);
+    }
+
+    /** Versions come from one process-wide sequence, so no two mailboxes ever share one. */
+    public synchronized long version(String mailbox) {
+        Long v = versions.get(mailbox);
+        if (v != null) return v;
+        v = sequence.incrementAndGet();
+        versions.put(mailbox, v);
+        if (versions.size() > maxVersions) {
+            // the cached bodies of a forgotten version can never be served again
+            Iterator<String> it = versions.keySet().iterator();
+            String eldest = it.next();
+            it.remove();
+            Box box = boxes.remove(eldest);
+            if (box != null) bytes -= box.bytes;
+        }
+        return v;
+    }
+
+    /** Weak because gzip and identity bodies share it. */
+    public String etag(long version) {
+        return "W/\"" + EPOCH + "." + Long.toString(version, 36) + "\"";
+    }
+
+    public long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /** Cached body of variant (e.g. "all", "page:50:cursor") at version, or null. */
+    public synchronized byte[] get(String mailbox, String variant, long version) {
+        Box box = boxes.get(mailbox);
+        byte[] body = box != null && box.version == version ? box.variants.get(variant) : null;
+        if (body != null) hits.increment(); else misses.increment();
+        return body;
+    }
+
+    public synchronized void put(String mailbox, String variant, long version, byte[] body) {
+        Long current = versions.get(mailbox);
+        if (maxBytes <= 0 || body.length > maxEntryBytes || current == null || current != version) return;
+        Box box = boxes.get(mailbox);
+        if (box == null || box.version != version) {
+            if (box != null) drop(mailbox, box);
+            box = new Box(version);
+            boxes.put(mailbox, box);
+        }
+        byte[] old = box.variants.put(variant, body);
+        long delta = body.length - (old == null ? 0 : old.length);
+        box.bytes += delta;
+        bytes += delta;
+        Iterator<Map.Entry<String, Box>> it = boxes.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Box> e = it.next();
+            if (e.getValue() == box) continue; // keep what we just added
+            bytes -= e.getValue().bytes;
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    /** The mailbox changed: its version is forgotten (the next read gets a new one), cached bodies dropped. */
+    public synchronized void invalidate(String mailbox) {
+        versions.remove(mailbox);
+        Box box = boxes.remove(mailbox);
+        if (box != null) bytes -= box.bytes;
+        invalidations.increment();
+    }
+
+    public synchronized String statsJson() {
+        return "{\"mailboxes\":" + boxes.size() + ",\"versions\":" + versions.size() + ",\"bytes\":" + bytes + ",\"maxBytes\":" + maxBytes +
+            ",\"hits\":" + hits.sum() + ",\"misses\":" + misses.sum() + ",\"invalidations\":" + invalidations.sum() +
+            ",\"evictions\":" + evictions.sum() + "}";
+    }
+
+    private void drop(String mailbox, Box box) {
+        boxes.remove(mailbox);
+        bytes -= box.bytes;
+    }
+
+    private static final class Box {
+        final long version;
+        final Map<String, byte[]> variants = new HashMap<>();
+        long bytes;
+
+        Box(long version) {
+            this.version = version;
+        }
+    }
+}
@@ -126,19 +126,15 @@ public class Main {
     }
 
     private static String getSuggestedBody(String subject) {
-        ProcessBuilder pb = new ProcessBuilder("python", "ml_models/predict_email.py", subject);
-        pb.redirectErrorStream(true);
         try {
-            Process p = pb.start();
-            boolean finished = p.waitFor(5, java.util.concurrent.TimeUnit.SECONDS);
-            if (!finished) {
-                p.destroy();
-                System.out.println("ML process timed out");
-                return null;
-            }
-            try (java.io.InputStream is = p.getInputStream(); java.util.Scanner s = new java.util.Scanner(is).useDelimiter("\\A")) {
-                return s.hasNext() ? s.next().trim() : null;
-            }
+            String body = SuggestionCache.shared().get(subject, SuggestionProvider.configured()::suggest);
+            return body.isEmpty() ? null : body;
+        } catch (java.util.concurrent.TimeoutException e) {
+            System.out.println("ML process timed out");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         } catch (Exception e) {
             System.out.println("Failed to run ML predictor: " + e.getMessage());
             return null;
@@ -0,0 +1,126 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding of message bodies for the bodies table (schema migration 6).
+ *
+ * A body is stored once per distinct content, keyed by the SHA-256 of its UTF-8 bytes, so bulk
+ * and ML-templated mails that repeat the same text share one row. The stored data is zlib
+ * deflate unless that would not save anything (short bodies), in which case it is the plain
+ * UTF-8 bytes; the codec column says which.
+ *
+ * inbox rows keep only the hash and a short preview ({@code mail.previewChars}, default 120),
+ * so listing a mailbox never reads a body. Rows written by builds that predate the split still
+ * have their text in inbox.body and no hash; readers fall back to it.
+ */
+public final class MessageBodies {
+    static final int CODEC_PLAIN = 0;
+    static final int CODEC_DEFLATE = 1;
+
+    private static final int PREVIEW_CHARS = Integer.getInteger("mail.previewChars", 120);
+    private static final int LEVEL = Integer.getInteger("mail.bodyCompressLevel", 6);
+    // below this zlib's header and trailer eat whatever it saves
+    private static final int MIN_COMPRESS_BYTES = 64;
+
+    // Encoding runs on the sending threads; each keeps its own (native) zlib state
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private MessageBodies() {}
+
+    /** A body ready for INSERT OR IGNORE INTO bodies (hash, codec, size, data). */
+    static final class Encoded {
+        final byte[] hash;
+        final int codec;
+        final int size; // uncompressed UTF-8 length
+        final byte[] data;
+
+        Encoded(byte[] hash, int codec, int size, byte[] data) {
+            this.hash = hash;
+            this.codec = codec;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    static Encoded encode(String body) {
+        byte[] plain = (body == null ? "" : body).getBytes(StandardCharsets.UTF_8);
+        byte[] hash = sha256(plain);
+        if (plain.length < MIN_COMPRESS_BYTES) return new Encoded(hash, CODEC_PLAIN, plain.length, plain);
+        Deflater d = DEFLATER.get();
+        try {
+            d.setInput(plain);
+            d.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!d.finished()) {
+                int n = d.deflate(buf);
+                out.write(buf, 0, n);
+                if (out.size() >= plain.length) return new Encoded(hash, CODEC_PLAIN, plain.length, plain);
+            }
+            return new Encoded(hash, CODEC_DEFLATE, plain.length, out.toByteArray());
+        } finally {
+            d.reset();
+        }
+    }
+
+    static String decode(int codec, int size, byte[] data) throws SQLException {
+        if (data == null) return "";
+        if (codec == CODEC_PLAIN) return new String(data, StandardCharsets.UTF_8);
+        if (codec != CODEC_DEFLATE) throw new SQLException("Unknown body codec " + codec);
+        Inflater inf = INFLATER.get();
+        try {
+            inf.setInput(data);
+            byte[] plain = new byte[size];
+            int n = 0;
+            while (n < size && !inf.finished()) {
+                int r = inf.inflate(plain, n, size - n);
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+                n += r;
+            }
+            if (n != size) throw new SQLException("Body is " + n + " bytes, expected " + size);
+            return new String(plain, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new SQLException("Corrupt body", e);
+        } finally {
+            inf.reset();
+        }
+    }
+
+    /** First mail.previewChars characters with whitespace runs collapsed, "..." if cut. */
+    static String preview(String body) {
+        if (body == null) return "";
+        StringBuilder sb = new StringBuilder(Math.min(body.length(), PREVIEW_CHARS + 3));
+        boolean space = false;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (sb.length() + (space ? 1 : 0) >= PREVIEW_CHARS) {
+                // don't split a surrogate pair
+                if (sb.length() > 0 && Character.isHighSurrogate(sb.charAt(sb.length() - 1))) sb.setLength(sb.length() - 1);
+                return sb.append("...").toString();
+            }
+            if (space) sb.append(' ');
+            space = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has SHA-256
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide latency timers and counters, served in Prometheus text format on /api/metrics.
+ *
+ * Metrics are registered once, typically into static final fields, and recorded from then on
+ * without locks or allocation: a timer is a log-linear histogram of nanoseconds in an
+ * AtomicLongArray (exact below 32 ns, then 32 buckets per power of two, so quantiles are within
+ * about 3%), plus LongAdders for the count and sum. Only registration and exposition
+ * synchronize.
+ *
+ * Timers are exposed as summaries with p50, p99 and p999 over the process lifetime:
+ * <pre>
+ *   http_request_seconds{handler="inbox",quantile="0.99"} 0.004128
+ *   http_request_seconds_sum{handler="inbox"} 12.5
+ *   http_request_seconds_count{handler="inbox"} 4096
+ * </pre>
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    // family name -> family; guarded by the map itself
+    private static final Map<String, Family> FAMILIES = new TreeMap<>();
+
+    private Metrics() {}
+
+    /** The timer of family name with these label name/value pairs, created on first use. */
+    public static Timer timer(String name, String help, String... labels) {
+        return (Timer) register(name, help, "summary", labels, Timer::new);
+    }
+
+    /** The counter of family name (by convention ending in _total) with these labels. */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    /** An executor that records how long each task waited in delegate before it started. */
+    public static Executor queueTimed(Executor delegate, Timer wait) {
+        return task -> {
+            long queued = System.nanoTime();
+            delegate.execute(() -> {
+                wait.recordSince(queued);
+                task.run();
+            });
+        };
+    }
+
+    private static Object register(String name, String help, String type, String[] labels,
+                                   java.util.function.Supplier<Object> create) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("labels come in name/value pairs");
+        synchronized (FAMILIES) {
+            Family family = FAMILIES.computeIfAbsent(name, n -> new Family(help, type));
+            if (!family.type.equals(type)) throw new IllegalArgumentException(name + " is a " + family.type);
+            return family.members.computeIfAbsent(labelText(labels), l -> create.get());
+        }
+    }
+
+    // {a="x",b="y"} without the braces; values escaped as the text format requires
+    private static String labelText(String[] labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"")
+              .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+              .append('"');
+        }
+        return sb.toString();
+    }
+
+    private static final class Family {
+        final String help, type;
+        final Map<String, Object> members = new TreeMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /** Every registered metric in Prometheus text exposition format (version 0.0.4). */
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        synchronized (FAMILIES) {
+            for (Map.Entry<String, Family> f : FAMILIES.entrySet()) {
+                String name = f.getKey();
+                Family family = f.getValue();
+                out.append("# HELP ").append(name).append(' ').append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                for (Map.Entry<String, Object> m : family.members.entrySet()) {
+                    String labels = m.getKey();
+                    if (m.getValue() instanceof Counter) {
+                        out.append(name).append(braces(labels)).append(' ').append(((Counter) m.getValue()).get()).append('\n');
+                    } else {
+                        ((Timer) m.getValue()).appendTo(out, name, labels);
+                    }
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    // ---------------- Metric types ----------------
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() { value.increment(); }
+        public void add(long n) { value.add(n); }
+        public long get() { return value.sum(); }
+    }
+
+    public static final class Timer {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int MAX_EXP = 42;                          // 2^42 ns is over an hour; longer is clamped
+        private static final int BUCKETS = (MAX_EXP - SUB_BITS + 1) * SUB;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.getAndIncrement(index(nanos));
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /** Records the time since start, a System.nanoTime() value. */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /** Estimated q-quantile in nanoseconds, 0 if nothing was recorded. */
+        public long quantile(double q) {
+            return quantiles(snapshot(), new double[] {q})[0];
+        }
+
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v);                  // top bit, at least SUB_BITS
+            if (e >= MAX_EXP) return BUCKETS - 1;
+            return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+        }
+
+        // middle of bucket i's range
+        static long value(int i) {
+            if (i < SUB) return i;
+            int e = i / SUB + SUB_BITS - 1;
+            long width = 1L << (e - SUB_BITS);
+            return (SUB + i % SUB) * width + width / 2;
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) counts[i] = buckets.get(i);
+            return counts;
+        }
+
+        // one pass for all qs, which must be ascending; concurrent records may be half-seen, which only
+        // shifts the estimate by a sample
+        private static long[] quantiles(long[] counts, double[] qs) {
+            long total = 0;
+            for (long c : counts) total += c;
+            long[] out = new long[qs.length];
+            if (total == 0) return out;
+            int q = 0;
+            long seen = 0;
+            for (int i = 0; i < counts.length && q < qs.length; i++) {
+                seen += counts[i];
+                while (q < qs.length && seen >= Math.max(1, (long) Math.ceil(qs[q] * total))) out[q++] = value(i);
+            }
+            return out;
+        }
+
+        void appendTo(StringBuilder out, String name, String labels) {
+            long[] values = quantiles(snapshot(), QUANTILES);
+            String sep = labels.isEmpty() ? "" : labels + ",";
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.append(name).append('{').append(sep).append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+                   .append(seconds(values[i])).append('\n');
+            }
+            out.append(name).append("_sum").append(braces(labels)).append(' ').append(seconds(sumNanos.sum())).append('\n');
+            out.append(name).append("_count").append(braces(labels)).append(' ').append(count.sum()).append('\n');
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque keyset cursor for mailbox pagination.
+ *
+ * A cursor is the (timestamp, id) of the last message on the previous page, base64url
+ * encoded so clients treat it as an opaque token. The next page is then
+ * "WHERE (timestamp, id) &lt; (?, ?)" which the (receiver|sender, timestamp, id) indexes
+ * answer with a single seek, so page N costs the same as page 1 (unlike OFFSET).
+ */
+public final class PageCursor {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 200;
+
+    public final String timestamp;
+    public final long id;
+
+    public PageCursor(String timestamp, long id) {
+        this.timestamp = timestamp;
+        this.id = id;
+    }
+
+    public String encode() {
+        String raw = timestamp + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Parses a token produced by {@link #encode()}; null or empty means "first page". */
+    public static PageCursor decode(String token) {
+        if (token == null || token.isEmpty()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int sep = raw.lastIndexOf('|');
+            if (sep <= 0) throw new IllegalArgumentException("Invalid cursor");
+            return new PageCursor(raw.substring(0, sep), Long.parseLong(raw.substring(sep + 1)));
+        } catch (IllegalArgumentException e) { // also covers NumberFormatException
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    /** Clamps a client supplied limit to [1, MAX_LIMIT], using DEFAULT_LIMIT when absent. */
+    public static int clampLimit(String limit) {
+        if (limit == null || limit.isEmpty()) return DEFAULT_LIMIT;
+        try {
+            int n = Integer.parseInt(limit.trim());
+            return Math.max(1, Math.min(MAX_LIMIT, n));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit");
+        }
+    }
+}
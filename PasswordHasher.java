@@ -0,0 +1,21 @@
+/**
+ * One stored-password format. {@link PasswordService} keeps a list of these so old formats
+ * can still be verified while new hashes use the current one.
+ */
+public interface PasswordHasher {
+
+    /** Short identifier, e.g. "sha256" or "pbkdf2-sha256". */
+    String id();
+
+    /** True if stored was produced by this hasher. */
+    boolean recognizes(String stored);
+
+    String hash(String password);
+
+    boolean verify(String password, String stored);
+
+    /** True if stored is in this format but with weaker parameters than currently configured. */
+    default boolean needsRehash(String stored) {
+        return false;
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Password hashing and verification on a dedicated, bounded executor.
+ *
+ * Hashing is deliberately CPU-heavy, so it runs on {@code auth.threads} threads (default: half
+ * the cores) with at most {@code auth.queue} waiting jobs. A login storm therefore queues here
+ * instead of competing with inbox and send requests for CPU; once the queue is full callers get
+ * a RejectedExecutionException right away, which WebServer answers with 503.
+ *
+ * New hashes use {@code auth.hasher} (pbkdf2, the default, or sha256). Stored hashes in any
+ * known format, plus legacy plaintext entries, still verify; {@link #needsRehash} tells the
+ * caller when to upgrade one after a successful login.
+ */
+public class PasswordService {
+    private static final int THREADS = Integer.getInteger("auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE = Integer.getInteger("auth.queue", 128);
+    private static final int PBKDF2_ITERATIONS = Integer.getInteger("auth.pbkdf2.iterations", 100_000);
+    private static final long WAIT_MS = Long.getLong("auth.timeoutMs", 10_000);
+
+    private final PasswordHasher current;
+    private final List<PasswordHasher> hashers;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final long startedAt = System.nanoTime();
+
+    public PasswordService() {
+        this(createCurrent(), THREADS, QUEUE);
+    }
+
+    public PasswordService(PasswordHasher current, int threads, int queue) {
+        this.current = current;
+        List<PasswordHasher> all = new ArrayList<>();
+        all.add(current);
+        if (!(current instanceof Pbkdf2PasswordHasher)) all.add(new Pbkdf2PasswordHasher(PBKDF2_ITERATIONS));
+        if (!(current instanceof Sha256PasswordHasher)) all.add(new Sha256PasswordHasher());
+        this.hashers = Collections.unmodifiableList(all);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queue), r -> {
+                Thread t = new Thread(r, "auth-hash");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static PasswordHasher createCurrent() {
+        String kind = System.getProperty("auth.hasher", "pbkdf2");
+        if ("sha256".equalsIgnoreCase(kind)) return new Sha256PasswordHasher();
+        return new Pbkdf2PasswordHasher(PBKDF2_ITERATIONS);
+    }
+
+    /** Hashes with the current format. @throws RejectedExecutionException when overloaded */
+    public String hash(String password) {
+        return await(submit(() -> current.hash(password)));
+    }
+
+    /** @throws RejectedExecutionException when overloaded */
+    public boolean verify(String password, String stored) {
+        if (stored == null) return false;
+        PasswordHasher h = hasherFor(stored);
+        if (h == null) {
+            // Backwards compatibility: some entries may be plaintext
+            return stored.equals(password);
+        }
+        return await(submit(() -> h.verify(password, stored)));
+    }
+
+    /** True if stored is plaintext, another format, or weaker than the current settings. */
+    public boolean needsRehash(String stored) {
+        if (stored == null) return true;
+        if (!current.recognizes(stored)) return true;
+        return current.needsRehash(stored);
+    }
+
+    public String statsJson() {
+        long ops = operations.sum();
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        return String.format(Locale.ROOT,
+            "{\"hasher\":\"%s\",\"operations\":%d,\"perSecond\":%.2f,\"avgMicros\":%.1f,\"queued\":%d,\"active\":%d,\"rejected\":%d}",
+            current.id(), ops, seconds > 0 ? ops / seconds : 0.0, ops == 0 ? 0.0 : busyNanos.sum() / 1000.0 / ops,
+            executor.getQueue().size(), executor.getActiveCount(), rejected.sum());
+    }
+
+    private PasswordHasher hasherFor(String stored) {
+        for (PasswordHasher h : hashers) {
+            if (h.recognizes(stored)) return h;
+        }
+        return null;
+    }
+
+    private <T> Future<T> submit(Callable<T> job) {
+        try {
+            return executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return job.call();
+                } finally {
+                    busyNanos.add(System.nanoTime() - start);
+                    operations.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    private static <T> T await(Future<T> f) {
+        try {
+            return f.get(WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            f.cancel(true);
+            throw new RejectedExecutionException("Interrupted waiting for password hashing", e);
+        } catch (TimeoutException e) {
+            f.cancel(true);
+            throw new RejectedExecutionException("Password hashing timed out", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            throw new IllegalStateException(c);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2-HMAC-SHA256 with a tunable iteration count (-Dauth.pbkdf2.iterations).
+ *
+ * Format: {@code pbkdf2-sha256$<iterations>$<base64 salt>$<base64 hash>}. The iteration count is
+ * stored with each hash, so raising it only affects new hashes; older ones report
+ * {@link #needsRehash} and are upgraded on the next successful login.
+ */
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations < 1) throw new IllegalArgumentException("iterations must be >= 1");
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String id() {
+        return "pbkdf2-sha256";
+    }
+
+    @Override
+    public boolean recognizes(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(derive(password, salt, iterations));
+    }
+
+    @Override
+    public boolean verify(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) return false;
+        try {
+            int n = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(derive(password, salt, n), expected);
+        } catch (IllegalArgumentException e) { // bad number or base64
+            return false;
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String stored) {
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        try {
+            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (Exception e) {
+            throw new IllegalStateException("PBKDF2 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/** Suggestions from the long-running predict_email.py processes in a {@link PythonWorkerPool}. */
+public class PythonSuggestionProvider implements SuggestionProvider {
+    private final PythonWorkerPool pool;
+
+    public PythonSuggestionProvider(PythonWorkerPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public String suggest(String subject) throws Exception {
+        return pool.predict(subject);
+    }
+
+    @Override
+    public String name() {
+        return "python";
+    }
+}
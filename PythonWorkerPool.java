@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of long-running {@code predict_email.py --serve} processes.
+ *
+ * Each worker loads the model once and then answers requests over stdin/stdout: the request is
+ * one line holding the subject as a JSON string, the reply is "&lt;byte length&gt;\n" followed by
+ * the UTF-8 body. Workers are started (pre-warmed) when the pool is created. A worker that
+ * crashes, returns garbage or misses its deadline is killed and replaced in the background.
+ *
+ * At most {@code ml.workers} predictions run at once and at most {@code ml.maxQueue} more may
+ * wait for a worker; beyond that {@link #predict} fails fast with RejectedExecutionException.
+ *
+ * Tunables (system properties): ml.python, ml.script, ml.workers, ml.maxQueue, ml.timeoutMs.
+ */
+public class PythonWorkerPool implements AutoCloseable {
+    private static final String PYTHON = System.getProperty("ml.python", "python");
+    private static final String SCRIPT = System.getProperty("ml.script", "ml_models/predict_email.py");
+    private static final int WORKERS = Integer.getInteger("ml.workers", 2);
+    private static final int MAX_QUEUE = Integer.getInteger("ml.maxQueue", 64);
+    private static final long TIMEOUT_MS = Long.getLong("ml.timeoutMs", 5_000);
+    private static final long RESPAWN_BACKOFF_MS = 5_000;
+    private static final int MAX_RESPONSE_BYTES = 1 << 20;
+
+    private static volatile PythonWorkerPool shared;
+
+    private final List<String> command;
+    private final long timeoutMs;
+    private final BlockingQueue<Worker> idle;
+    private final Semaphore admission;
+    private final Set<Worker> all = ConcurrentHashMap.newKeySet();
+    private final ExecutorService io;
+    private final ScheduledExecutorService spawner;
+    private final AtomicInteger spawned = new AtomicInteger();
+    private volatile boolean closed;
+
+    /** Process-wide pool shared by WebServer and the CLI, started on first use. */
+    public static PythonWorkerPool shared() {
+        PythonWorkerPool p = shared;
+        if (p == null) {
+            synchronized (PythonWorkerPool.class) {
+                p = shared;
+                if (p == null) {
+                    p = new PythonWorkerPool(Arrays.asList(PYTHON, SCRIPT, "--serve"), WORKERS, MAX_QUEUE, TIMEOUT_MS);
+                    PythonWorkerPool pool = p;
+                    Runtime.getRuntime().addShutdownHook(new Thread(pool::close, "ml-pool-shutdown"));
+                    shared = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public PythonWorkerPool(List<String> command, int workers, int maxQueue, long timeoutMs) {
+        this.command = command;
+        this.timeoutMs = timeoutMs;
+        this.idle = new ArrayBlockingQueue<>(workers);
+        this.admission = new Semaphore(workers + maxQueue);
+        this.io = Executors.newCachedThreadPool(daemon("ml-io"));
+        this.spawner = Executors.newSingleThreadScheduledExecutor(daemon("ml-spawner"));
+        for (int i = 0; i < workers; i++) spawnLater(0);
+    }
+
+    /**
+     * Returns the suggested body for subject.
+     * @throws TimeoutException if no worker answered within the deadline
+     * @throws RejectedExecutionException if too many requests are already waiting
+     */
+    public String predict(String subject) throws IOException, TimeoutException, InterruptedException {
+        if (closed) throw new IllegalStateException("pool closed");
+        if (!admission.tryAcquire()) throw new RejectedExecutionException("ML queue full");
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            Worker w = idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (w == null) throw new TimeoutException("No ML worker available within " + timeoutMs + " ms");
+            boolean healthy = false;
+            try {
+                Future<String> f = io.submit(() -> w.call(subject));
+                String body = f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                healthy = true;
+                return body;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } finally {
+                if (healthy) idle.offer(w);
+                else replace(w);
+            }
+        } finally {
+            admission.release();
+        }
+    }
+
+    public int liveWorkers() { return all.size(); }
+    public int idleWorkers() { return idle.size(); }
+    public int spawnedTotal() { return spawned.get(); }
+
+    @Override
+    public void close() {
+        closed = true;
+        spawner.shutdownNow();
+        for (Worker w : all) w.kill();
+        io.shutdownNow();
+    }
+
+    // ---------------- Worker lifecycle ----------------
+    private void replace(Worker w) {
+        w.kill();
+        if (all.remove(w)) spawnLater(0);
+    }
+
+    private void spawnLater(long delayMs) {
+        if (closed) return;
+        spawner.schedule(() -> {
+            if (closed) return;
+            try {
+                Worker w = new Worker(command);
+                w.awaitReady(timeoutMs * 2);
+                all.add(w);
+                spawned.incrementAndGet();
+                idle.offer(w);
+            } catch (Exception e) {
+                System.err.println("Failed to start ML worker (" + String.join(" ", command) + "): " + e.getMessage());
+                spawnLater(RESPAWN_BACKOFF_MS);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class Worker {
+        final Process process;
+        final OutputStream in;
+        final BufferedInputStream out;
+
+        Worker(List<String> command) throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            in = new BufferedOutputStream(process.getOutputStream());
+            out = new BufferedInputStream(process.getInputStream());
+        }
+
+        // The script prints "ready" once its model is loaded
+        void awaitReady(long timeoutMs) throws Exception {
+            FutureTask<String> t = new FutureTask<>(this::readLine);
+            Thread th = new Thread(t, "ml-ready");
+            th.setDaemon(true);
+            th.start();
+            try {
+                String line = t.get(timeoutMs, TimeUnit.MILLISECONDS);
+                if (!"ready".equals(line)) throw new IOException("Unexpected greeting: " + line);
+            } catch (Exception e) {
+                kill();
+                throw e;
+            }
+        }
+
+        String call(String subject) throws IOException {
+            in.write(('"' + JsonWriter.escape(subject) + "\"\n").getBytes(StandardCharsets.UTF_8));
+            in.flush();
+            String header = readLine();
+            int len;
+            try {
+                len = Integer.parseInt(header.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad response header: " + header);
+            }
+            if (len < 0 || len > MAX_RESPONSE_BYTES) throw new IOException("Bad response length " + len);
+            byte[] body = out.readNBytes(len);
+            if (body.length < len) throw new IOException("ML worker exited mid-response");
+            return new String(body, StandardCharsets.UTF_8).trim();
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = out.read()) != '\n') {
+                if (c < 0) throw new IOException("ML worker exited (code " + exitCode() + ")");
+                if (sb.length() > 64) throw new IOException("Response header too long");
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        private String exitCode() {
+            try { return String.valueOf(process.waitFor(100, TimeUnit.MILLISECONDS) ? process.exitValue() : "running"); }
+            catch (InterruptedException e) { return "?"; }
+        }
+
+        void kill() {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The to/cc/bcc recipients of one send and what happened to each.
+ *
+ * Lists are comma, semicolon or whitespace separated. Every address gets an outcome:
+ * "invalid" (bad format), "duplicate" (already listed, compared case-insensitively; the first
+ * occurrence wins, so an address in both to and bcc stays visible), "stored" with its message id,
+ * or "failed" if the fan-out transaction for its shard did not commit. At most {@code mail.maxRecipients}
+ * (default 5000) addresses are accepted per send.
+ */
+public final class Recipients {
+    public static final int MAX = Integer.getInteger("mail.maxRecipients", 5000);
+
+    public static final String TO = "to";
+    public static final String CC = "cc";
+    public static final String BCC = "bcc";
+
+    static final class Entry {
+        final String address;
+        final String kind;
+        String status;
+        long id = -1;
+
+        Entry(String address, String kind, String status) {
+            this.address = address;
+            this.kind = kind;
+            this.status = status;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Entry> accepted = new ArrayList<>();
+
+    private Recipients() {}
+
+    /** Throws IllegalArgumentException when more than {@link #MAX} addresses are given. */
+    public static Recipients parse(String to, String cc, String bcc, Predicate<String> validFormat) {
+        Recipients r = new Recipients();
+        Set<String> seen = new HashSet<>();
+        r.add(to, TO, validFormat, seen);
+        r.add(cc, CC, validFormat, seen);
+        r.add(bcc, BCC, validFormat, seen);
+        if (r.entries.size() > MAX) throw new IllegalArgumentException("At most " + MAX + " recipients per message");
+        return r;
+    }
+
+    private void add(String list, String kind, Predicate<String> validFormat, Set<String> seen) {
+        if (list == null) return;
+        for (String a : list.split("[,;\\s]+")) {
+            if (a.isEmpty()) continue;
+            Entry e;
+            if (!validFormat.test(a)) e = new Entry(a, kind, "invalid");
+            else if (!seen.add(a.toLowerCase(Locale.ROOT))) e = new Entry(a, kind, "duplicate");
+            else {
+                e = new Entry(a, kind, "pending");
+                accepted.add(e);
+            }
+            entries.add(e);
+        }
+    }
+
+    public boolean isEmpty() { return entries.isEmpty(); }
+    public int acceptedCount() { return accepted.size(); }
+
+    /** Accepted addresses of one kind, in the order given. */
+    public List<String> addresses(String kind) {
+        List<String> out = new ArrayList<>();
+        for (Entry e : accepted) if (e.kind.equals(kind)) out.add(e.address);
+        return out;
+    }
+
+    /** ids in the order of to, then cc, then bcc addresses (as Database.storeEmailAsync returns them). */
+    public void stored(long[] ids) {
+        int i = 0;
+        for (String kind : new String[] {TO, CC, BCC}) {
+            for (Entry e : accepted) {
+                if (!e.kind.equals(kind)) continue;
+                e.id = ids[i++];
+                e.status = e.id >= 0 ? "stored" : "failed";
+            }
+        }
+    }
+
+    public void failed() {
+        for (Entry e : accepted) e.status = "failed";
+    }
+
+    /** One id per address in the order given, -1 where nothing was stored (FANOUT acks). */
+    public long[] ids() {
+        long[] ids = new long[entries.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = entries.get(i).id;
+        return ids;
+    }
+
+    public int count(String status) {
+        int n = 0;
+        for (Entry e : entries) if (e.status.equals(status)) n++;
+        return n;
+    }
+
+    /** [{"address":"...","kind":"to","status":"stored","id":12}, ...] */
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginArray();
+        for (Entry e : entries) {
+            out.beginObject().name("address").value(e.address).name("kind").value(e.kind).name("status").value(e.status);
+            if (e.id >= 0) out.name("id").value(e.id);
+            out.endObject();
+        }
+        out.endArray();
+    }
+}
@@ -0,0 +1,416 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Moves the inbox of Users.db to a different number of shard files (see {@link InboxShard}).
+ *
+ * Usage: java ReshardTool &lt;shards&gt;    (1 puts everything back into Users.db)
+ *
+ * Offline only: stop every WebServer and EmailReceiverServer on Users.db first, and keep a
+ * backup. Rows are copied into the new layout, Users.db is switched to it, and only then is the
+ * old copy removed (old shard files deleted, or Users.db's own inbox emptied and vacuumed).
+ * Timestamps, bodies and recipient lists carry over and search entries are rebuilt; message ids
+ * are renumbered into the new shards' ranges, so open inbox streams and ETags start over.
+ * Archived mail (see {@link Archiver}) stays where it is, under its old ids, which new ids are
+ * kept above; its search entries are rebuilt from the archive in the new shards.
+ */
+public class ReshardTool {
+    private static final String MAIN_URL = "jdbc:sqlite:" + Database.DB_FILE;
+    private static final int BATCH = 1000;
+
+    private static final String SELECT_ROWS =
+        "SELECT inbox.id, sender, receiver, subject, inbox.body, body_hash, preview, timestamp, list_id, b.codec, b.size, b.data " +
+        "FROM inbox LEFT JOIN bodies b ON b.hash = inbox.body_hash ORDER BY inbox.id";
+    private static final String INSERT_BODY = "INSERT OR IGNORE INTO bodies (hash, codec, size, data) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_ROW =
+        "INSERT INTO inbox (sender, receiver, subject, preview, body_hash, timestamp) VALUES (?, ?, ?, ?, ?, ?) RETURNING id";
+    private static final String INSERT_INDEX = "INSERT INTO inbox_fts (rowid, subject, body, owners) VALUES (?, ?, ?, ?)";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: java ReshardTool <shards>");
+            System.exit(2);
+        }
+        int target = Integer.parseInt(args[0]);
+        if (target < 1 || target > 1024) {
+            System.err.println("shards must be between 1 and 1024");
+            System.exit(2);
+        }
+        Class.forName("org.sqlite.JDBC");
+
+        try (ConnectionPool main = new ConnectionPool(MAIN_URL, 1)) {
+            try (ConnectionPool.Lease lease = main.writer()) {
+                SchemaMigrations.migrate(lease);
+            }
+            int current = layout(main);
+            if (current == target) {
+                System.out.println(Database.DB_FILE + " already keeps its inbox in " + target + " shard(s)");
+                return;
+            }
+            if (target == 1 && countRows(main) > 0) {
+                System.err.println(Database.DB_FILE + " still holds inbox rows from before it was sharded; not merging into them");
+                System.exit(1);
+            }
+            // files of this layout are leftovers of an interrupted run: Users.db does not point at them
+            if (target > 1) for (int k = 0; k < target; k++) deleteShardFile(k, target);
+
+            long start = System.currentTimeMillis();
+            ConnectionPool[] from = openLayout(main, current);
+            if (archivePending(from)) {
+                System.err.println("An archive run has rows left to delete; start a server with -Darchive.afterDays to finish it first");
+                System.exit(1);
+            }
+            ConnectionPool[] to = openLayout(main, target);
+            // archived mail keeps its ids, so new rows must be numbered above the archived ones of their range
+            MailArchive archive = new MailArchive(new File(System.getProperty("archive.dir", "archive")));
+            for (int k = 0; k < target; k++) {
+                try (ConnectionPool.Lease lease = to[k].writer()) {
+                    InboxShard.raiseIdFloor(lease, archive.highestId((long) k << InboxShard.ID_BITS, (long) (k + 1) << InboxShard.ID_BITS));
+                }
+            }
+            File mapFile = File.createTempFile("reshard", ".db");
+            mapFile.deleteOnExit();
+            try (Connection map = DriverManager.getConnection("jdbc:sqlite:" + mapFile.getPath())) {
+                try (Statement stmt = map.createStatement()) {
+                    stmt.execute("PRAGMA journal_mode=OFF");
+                    stmt.execute("PRAGMA synchronous=OFF");
+                    // old id -> new id, the shard it went to, the shard it came from, its old list id
+                    stmt.execute("CREATE TABLE id_map (old INTEGER PRIMARY KEY, new INTEGER NOT NULL, shard INTEGER NOT NULL, " +
+                        "src INTEGER NOT NULL, old_list INTEGER)");
+                }
+                long rows = copyRows(from, to, map);
+                long lists = linkLists(from, to, map);
+                long archived = indexArchive(archive, to);
+                try (ConnectionPool.Lease lease = main.writer()) {
+                    PreparedStatement ps = lease.prepare("UPDATE storage_layout SET shards = ? WHERE id = 1");
+                    ps.setInt(1, target);
+                    ps.executeUpdate();
+                }
+                System.out.println("Moved " + rows + " messages (" + lists + " recipient list parts) into " + target +
+                    " shard(s), and rebuilt " + archived + " search entries of archived mail, in " + (System.currentTimeMillis() - start) + " ms");
+            } finally {
+                for (ConnectionPool p : to) if (p != main) p.close();
+                for (ConnectionPool p : from) if (p != main) p.close();
+            }
+            dropOldLayout(main, current);
+        }
+    }
+
+    private static int layout(ConnectionPool main) throws SQLException {
+        try (ConnectionPool.Lease lease = main.reader();
+             ResultSet rs = lease.prepare("SELECT shards FROM storage_layout WHERE id = 1").executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 1;
+        }
+    }
+
+    private static long countRows(ConnectionPool pool) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.reader();
+             ResultSet rs = lease.prepare("SELECT COUNT(*) FROM inbox").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static boolean archivePending(ConnectionPool[] pools) throws SQLException {
+        for (ConnectionPool pool : pools) {
+            try (ConnectionPool.Lease lease = pool.reader();
+                 ResultSet rs = lease.prepare("SELECT 1 FROM archived_segments WHERE deleted = 0 LIMIT 1").executeQuery()) {
+                if (rs.next()) return true;
+            }
+        }
+        return false;
+    }
+
+    private static ConnectionPool[] openLayout(ConnectionPool main, int count) throws SQLException {
+        if (count == 1) return new ConnectionPool[] {main};
+        ConnectionPool[] pools = new ConnectionPool[count];
+        for (int k = 0; k < count; k++) pools[k] = InboxShard.openPool(k, count, 1);
+        return pools;
+    }
+
+    private static void deleteShardFile(int index, int count) {
+        String name = InboxShard.fileName(index, count);
+        for (String suffix : new String[] {"", "-wal", "-shm"}) new File(name + suffix).delete();
+    }
+
+    // Pass 1: every row into its new shard, in old id order. Rows of recipient lists are indexed
+    // for search in pass 2, once per list part; the rest are indexed here.
+    private static long copyRows(ConnectionPool[] from, ConnectionPool[] to, Connection map) throws SQLException {
+        List<ConnectionPool.Lease> writers = new ArrayList<>();
+        try {
+            for (ConnectionPool p : to) {
+                ConnectionPool.Lease w = p.writer();
+                writers.add(w);
+                w.connection().setAutoCommit(false);
+            }
+            map.setAutoCommit(false);
+            PreparedStatement mapInsert = map.prepareStatement("INSERT INTO id_map (old, new, shard, src, old_list) VALUES (?, ?, ?, ?, ?)");
+            long copied = 0;
+            for (int s = 0; s < from.length; s++) {
+                try (ConnectionPool.Lease reader = from[s].reader();
+                     ResultSet rs = reader.prepare(SELECT_ROWS).executeQuery()) {
+                    while (rs.next()) {
+                        String sender = rs.getString("sender");
+                        String receiver = rs.getString("receiver");
+                        String subject = rs.getString("subject");
+                        long oldList = rs.getLong("list_id");
+                        boolean inList = !rs.wasNull();
+                        byte[] data = rs.getBytes("data");
+                        byte[] hash;
+                        String text = null;
+                        int t = InboxShard.of(receiver, to.length);
+                        ConnectionPool.Lease w = writers.get(t);
+                        PreparedStatement body = w.prepare(INSERT_BODY);
+                        if (data != null) {
+                            hash = rs.getBytes("body_hash");
+                            body.setBytes(1, hash);
+                            body.setInt(2, rs.getInt("codec"));
+                            body.setInt(3, rs.getInt("size"));
+                            body.setBytes(4, data);
+                            if (!inList) text = MessageBodies.decode(rs.getInt("codec"), rs.getInt("size"), data);
+                        } else {
+                            // written before bodies moved out of inbox: convert on the way
+                            text = rs.getString("body");
+                            MessageBodies.Encoded e = MessageBodies.encode(text);
+                            hash = e.hash;
+                            body.setBytes(1, e.hash);
+                            body.setInt(2, e.codec);
+                            body.setInt(3, e.size);
+                            body.setBytes(4, e.data);
+                        }
+                        body.executeUpdate();
+                        String preview = rs.getString("preview");
+                        if (preview == null) preview = MessageBodies.preview(text);
+
+                        PreparedStatement row = w.prepare(INSERT_ROW);
+                        row.setString(1, sender);
+                        row.setString(2, receiver);
+                        row.setString(3, subject);
+                        row.setString(4, preview);
+                        row.setBytes(5, hash);
+                        row.setString(6, rs.getString("timestamp"));
+                        long newId;
+                        try (ResultSet ids = row.executeQuery()) {
+                            if (!ids.next()) throw new SQLException("INSERT returned no id");
+                            newId = ids.getLong(1);
+                        }
+                        if (!inList) {
+                            PreparedStatement index = w.prepare(INSERT_INDEX);
+                            index.setLong(1, newId);
+                            index.setString(2, subject);
+                            index.setString(3, text);
+                            index.setString(4, SearchIndex.owners(sender == null ? "" : sender, new String[] {receiver == null ? "" : receiver}));
+                            index.executeUpdate();
+                        }
+                        mapInsert.setLong(1, rs.getLong("id"));
+                        mapInsert.setLong(2, newId);
+                        mapInsert.setInt(3, t);
+                        mapInsert.setInt(4, s);
+                        if (inList) mapInsert.setLong(5, oldList); else mapInsert.setNull(5, Types.INTEGER);
+                        mapInsert.executeUpdate();
+                        if (++copied % BATCH == 0) commitAll(writers, map);
+                    }
+                }
+            }
+            commitAll(writers, map);
+            return copied;
+        } finally {
+            for (ConnectionPool.Lease w : writers) w.close(); // rolls back anything uncommitted
+        }
+    }
+
+    // Pass 2: rows of one list on one new shard form a part. The part holding the list's first row
+    // (the sender's copy) uses that row's new id as list id, as GroupCommitWriter.submitFanout does;
+    // parts on other shards point at the same id, as submitFanoutPart does. Each part gets a copy
+    // of the list and one search entry.
+    private static long linkLists(ConnectionPool[] from, ConnectionPool[] to, Connection map) throws SQLException {
+        List<ConnectionPool.Lease> writers = new ArrayList<>();
+        try {
+            for (ConnectionPool p : to) {
+                ConnectionPool.Lease w = p.writer();
+                writers.add(w);
+                w.connection().setAutoCommit(false);
+            }
+            long parts = 0;
+            int rowsInBatch = 0;
+            Part part = null;
+            try (Statement stmt = map.createStatement();
+                 ResultSet rs = stmt.executeQuery(
+                     "SELECT m.new, m.shard, m.old_list, l.new AS list_new, l.shard AS list_shard, l.src AS list_src " +
+                     "FROM id_map m JOIN id_map l ON l.old = m.old_list ORDER BY m.shard, l.new, m.new")) {
+                while (rs.next()) {
+                    int shard = rs.getInt("shard");
+                    long listId = rs.getLong("list_new");
+                    if (part == null || part.shard != shard || part.listId != listId) {
+                        if (part != null) {
+                            part.finish(from, writers.get(part.shard));
+                            parts++;
+                        }
+                        part = new Part(shard, listId, rs.getLong("old_list"), rs.getInt("list_src"), rs.getInt("list_shard") == shard);
+                    }
+                    PreparedStatement link = writers.get(shard).prepare("UPDATE inbox SET list_id = ? WHERE id = ? RETURNING receiver, sender, subject");
+                    link.setLong(1, listId);
+                    link.setLong(2, rs.getLong("new"));
+                    try (ResultSet r = link.executeQuery()) {
+                        if (r.next()) part.add(rs.getLong("new"), r.getString(1), r.getString(2), r.getString(3));
+                    }
+                    if (++rowsInBatch % BATCH == 0) commitAll(writers, null);
+                }
+            }
+            if (part != null) {
+                part.finish(from, writers.get(part.shard));
+                parts++;
+            }
+            commitAll(writers, null);
+            return parts;
+        } finally {
+            for (ConnectionPool.Lease w : writers) w.close();
+        }
+    }
+
+    private static final class Part {
+        final int shard;
+        final long listId;
+        final long oldListId;
+        final int listSource;
+        final boolean holdsSenderCopy;
+        final List<String> receivers = new ArrayList<>();
+        long firstRow;
+        String sender, subject;
+
+        Part(int shard, long listId, long oldListId, int listSource, boolean holdsSenderCopy) {
+            this.shard = shard;
+            this.listId = listId;
+            this.oldListId = oldListId;
+            this.listSource = listSource;
+            this.holdsSenderCopy = holdsSenderCopy;
+        }
+
+        void add(long id, String receiver, String sender, String subject) {
+            if (receivers.isEmpty()) {
+                firstRow = id;
+                this.sender = sender;
+                this.subject = subject;
+            }
+            receivers.add(receiver == null ? "" : receiver);
+        }
+
+        void finish(ConnectionPool[] from, ConnectionPool.Lease w) throws SQLException {
+            if (receivers.isEmpty()) return;
+            // the old list row sits next to the list's first row in its old shard
+            try (ConnectionPool.Lease reader = from[listSource].reader()) {
+                PreparedStatement select = reader.prepare("SELECT to_list, cc_list, bcc_list, summary FROM recipient_lists WHERE id = ?");
+                select.setLong(1, oldListId);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        PreparedStatement insert = w.prepare(
+                            "INSERT OR IGNORE INTO recipient_lists (id, to_list, cc_list, bcc_list, summary) VALUES (?, ?, ?, ?, ?)");
+                        insert.setLong(1, listId);
+                        for (int i = 1; i <= 4; i++) insert.setString(i + 1, rs.getString(i));
+                        insert.executeUpdate();
+                    }
+                }
+            }
+            String text;
+            PreparedStatement body = w.prepare("SELECT b.codec, b.size, b.data FROM inbox JOIN bodies b ON b.hash = inbox.body_hash WHERE inbox.id = ?");
+            body.setLong(1, firstRow);
+            try (ResultSet rs = body.executeQuery()) {
+                text = rs.next() ? MessageBodies.decode(rs.getInt(1), rs.getInt(2), rs.getBytes(3)) : "";
+            }
+            PreparedStatement index = w.prepare(INSERT_INDEX);
+            index.setLong(1, listId);
+            index.setString(2, subject);
+            index.setString(3, text);
+            index.setString(4, SearchIndex.owners(holdsSenderCopy ? (sender == null ? "" : sender) : null, receivers.toArray(new String[0])));
+            index.executeUpdate();
+        }
+    }
+
+    // Pass 3: archived mail keeps its ids and its search entries (see SearchIndex), which go to the
+    // new shard of each receiver: one per message, and one per list part as in pass 2, the part
+    // holding the list's first row also owned by the sender. A list's rows are archived together.
+    private static long indexArchive(MailArchive archive, ConnectionPool[] to) throws SQLException, IOException {
+        List<ConnectionPool.Lease> writers = new ArrayList<>();
+        try {
+            for (ConnectionPool p : to) {
+                ConnectionPool.Lease w = p.writer();
+                writers.add(w);
+                w.connection().setAutoCommit(false);
+            }
+            long indexed = 0;
+            // list id -> its first row, and new shard -> receivers of the list there
+            Map<Long, MailArchive.Mail> firstRows = new LinkedHashMap<>();
+            Map<Long, Map<Integer, List<String>>> listParts = new LinkedHashMap<>();
+            for (String name : archive.segmentNames()) {
+                for (long id : archive.ids(name)) {
+                    MailArchive.Mail m = archive.find(id);
+                    if (m == null) continue;
+                    int t = InboxShard.of(m.receiver, to.length);
+                    if (m.listId == 0) {
+                        index(writers.get(t), m.id, m.subject, m.body(),
+                            SearchIndex.owners(m.sender == null ? "" : m.sender, new String[] {m.receiver == null ? "" : m.receiver}));
+                        if (++indexed % BATCH == 0) commitAll(writers, null);
+                        continue;
+                    }
+                    if (m.id == m.listId) firstRows.put(m.listId, m);
+                    listParts.computeIfAbsent(m.listId, k -> new TreeMap<>())
+                             .computeIfAbsent(t, k -> new ArrayList<>()).add(m.receiver == null ? "" : m.receiver);
+                }
+            }
+            for (Map.Entry<Long, Map<Integer, List<String>>> list : listParts.entrySet()) {
+                MailArchive.Mail first = firstRows.get(list.getKey());
+                if (first == null) continue; // its first row was never archived; nothing to show a hit with
+                int senderShard = InboxShard.of(first.receiver, to.length);
+                String body = first.body();
+                for (Map.Entry<Integer, List<String>> part : list.getValue().entrySet()) {
+                    String sender = part.getKey() == senderShard ? (first.sender == null ? "" : first.sender) : null;
+                    index(writers.get(part.getKey()), list.getKey(), first.subject, body,
+                        SearchIndex.owners(sender, part.getValue().toArray(new String[0])));
+                    if (++indexed % BATCH == 0) commitAll(writers, null);
+                }
+            }
+            commitAll(writers, null);
+            return indexed;
+        } finally {
+            for (ConnectionPool.Lease w : writers) w.close();
+        }
+    }
+
+    private static void index(ConnectionPool.Lease w, long rowid, String subject, String body, String owners) throws SQLException {
+        PreparedStatement index = w.prepare(INSERT_INDEX);
+        index.setLong(1, rowid);
+        index.setString(2, subject);
+        index.setString(3, body);
+        index.setString(4, owners);
+        index.executeUpdate();
+    }
+
+    private static void commitAll(List<ConnectionPool.Lease> writers, Connection map) throws SQLException {
+        for (ConnectionPool.Lease w : writers) w.connection().commit();
+        if (map != null) map.commit();
+    }
+
+    // Only once Users.db points at the new layout
+    private static void dropOldLayout(ConnectionPool main, int count) throws SQLException {
+        if (count > 1) {
+            for (int k = 0; k < count; k++) deleteShardFile(k, count);
+            System.out.println("Deleted the " + count + " old shard files");
+            return;
+        }
+        try (ConnectionPool.Lease lease = main.writer();
+             Statement stmt = lease.connection().createStatement()) {
+            stmt.execute("DELETE FROM inbox");
+            stmt.execute("DELETE FROM inbox_fts"); // archived mail's entries too: indexArchive put them in the new shards
+            stmt.execute("DELETE FROM recipient_lists");
+            stmt.execute("DELETE FROM bodies");
+            stmt.execute("UPDATE search_backfill SET next_id = last_id");
+            stmt.execute("VACUUM");
+        }
+        System.out.println("Emptied the inbox in " + Database.DB_FILE);
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * In-process suggestion engine driven by a keyword rule file (ml_models/email_rules.txt).
+ *
+ * Each rule is a list of keywords and a body template; the first rule in file order with any
+ * keyword contained in the lower-cased subject wins, otherwise the "*" default applies. These
+ * are the same semantics as predict_email.py.
+ *
+ * All keywords are compiled into one Aho-Corasick automaton at load time, so a subject is
+ * matched in a single pass regardless of how many rules there are, and every automaton state
+ * already knows the best (lowest-numbered) rule it implies.
+ */
+public class RuleSuggestionProvider implements SuggestionProvider {
+    public static final String MODEL_PATH = System.getProperty("ml.rules", "ml_models/email_rules.txt");
+
+    private final String[] templates;   // by rule index
+    private final String defaultTemplate;
+    private final Automaton automaton;
+
+    RuleSuggestionProvider(List<List<String>> keywords, List<String> templates, String defaultTemplate) {
+        this.templates = templates.toArray(new String[0]);
+        this.defaultTemplate = defaultTemplate == null ? "" : defaultTemplate;
+        this.automaton = new Automaton(keywords);
+    }
+
+    public static RuleSuggestionProvider load(String path) throws IOException {
+        List<List<String>> keywords = new ArrayList<>();
+        List<String> templates = new ArrayList<>();
+        String defaultTemplate = null;
+        int lineNo = 0;
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            lineNo++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            int arrow = trimmed.indexOf("=>");
+            if (arrow < 0) throw new IOException(path + ":" + lineNo + ": expected \"keywords => template\"");
+            String lhs = trimmed.substring(0, arrow).trim();
+            String template = unescape(trimmed.substring(arrow + 2).trim());
+            if (lhs.equals("*")) {
+                defaultTemplate = template;
+                continue;
+            }
+            List<String> words = new ArrayList<>();
+            for (String w : lhs.split(",")) {
+                String k = w.trim().toLowerCase(Locale.ROOT);
+                if (!k.isEmpty()) words.add(k);
+            }
+            if (words.isEmpty()) throw new IOException(path + ":" + lineNo + ": rule has no keywords");
+            keywords.add(words);
+            templates.add(template);
+        }
+        return new RuleSuggestionProvider(keywords, templates, defaultTemplate);
+    }
+
+    @Override
+    public String suggest(String subject) {
+        if (subject == null) return defaultTemplate;
+        int rule = automaton.firstRule(subject.toLowerCase(Locale.ROOT));
+        return rule < 0 ? defaultTemplate : templates[rule];
+    }
+
+    @Override
+    public String name() {
+        return "rules";
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                if (n == 'n') sb.append('\n');
+                else if (n == 't') sb.append('\t');
+                else sb.append(n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // ---------------- Aho-Corasick ----------------
+    /**
+     * Flat-array automaton. Node transitions are stored as sorted char keys with parallel
+     * targets (binary searched); fail links are resolved at build time into {@code best},
+     * the lowest rule index matched by any suffix ending at that node.
+     */
+    static final class Automaton {
+        private char[][] keys;
+        private int[][] targets;
+        private int[] fail;
+        private int[] best;
+        private int size;
+
+        Automaton(List<List<String>> rules) {
+            // Build the trie with growable per-node maps, then freeze into arrays
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<Integer> ruleAt = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            ruleAt.add(-1);
+            for (int r = 0; r < rules.size(); r++) {
+                for (String word : rules.get(r)) {
+                    int node = 0;
+                    for (int i = 0; i < word.length(); i++) {
+                        Integer next = trie.get(node).get(word.charAt(i));
+                        if (next == null) {
+                            next = trie.size();
+                            trie.get(node).put(word.charAt(i), next);
+                            trie.add(new TreeMap<>());
+                            ruleAt.add(-1);
+                        }
+                        node = next;
+                    }
+                    int existing = ruleAt.get(node);
+                    if (existing < 0 || r < existing) ruleAt.set(node, r);
+                }
+            }
+
+            size = trie.size();
+            keys = new char[size][];
+            targets = new int[size][];
+            fail = new int[size];
+            best = new int[size];
+            for (int n = 0; n < size; n++) {
+                TreeMap<Character, Integer> edges = trie.get(n);
+                keys[n] = new char[edges.size()];
+                targets[n] = new int[edges.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> e : edges.entrySet()) {
+                    keys[n][i] = e.getKey();
+                    targets[n][i] = e.getValue();
+                    i++;
+                }
+                best[n] = ruleAt.get(n);
+            }
+
+            // Breadth-first: fail links, and fold each node's fail-chain matches into best[]
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : targets[0]) {
+                fail[child] = 0;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int n = queue.poll();
+                for (int i = 0; i < keys[n].length; i++) {
+                    char c = keys[n][i];
+                    int child = targets[n][i];
+                    int f = fail[n];
+                    while (f != 0 && step(f, c) < 0) f = fail[f];
+                    int fc = step(f, c);
+                    fail[child] = (fc >= 0 && fc != child) ? fc : 0;
+                    best[child] = minRule(best[child], best[fail[child]]);
+                    queue.add(child);
+                }
+            }
+        }
+
+        /** Lowest rule index with a keyword occurring in text, or -1. */
+        int firstRule(String text) {
+            int state = 0;
+            int found = -1;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                int next;
+                while ((next = step(state, c)) < 0 && state != 0) state = fail[state];
+                state = next < 0 ? 0 : next;
+                if (best[state] >= 0) {
+                    found = minRule(found, best[state]);
+                    if (found == 0) return 0; // nothing can beat the first rule
+                }
+            }
+            return found;
+        }
+
+        private int step(int node, char c) {
+            int i = Arrays.binarySearch(keys[node], c);
+            return i >= 0 ? targets[node][i] : -1;
+        }
+
+        private static int minRule(int a, int b) {
+            if (a < 0) return b;
+            if (b < 0) return a;
+            return Math.min(a, b);
+        }
+    }
+}
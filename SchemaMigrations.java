@@ -0,0 +1,326 @@
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Versioned schema migrations for Users.db.
+ *
+ * Applied versions are recorded in a schema_version table. At startup {@link #migrate}
+ * reads the highest recorded version and, when it already matches {@link #latestVersion()},
+ * returns without issuing any DDL. Otherwise each pending migration runs in its own
+ * transaction together with the insert that records it, so a crash never leaves a
+ * migration half applied, and several processes starting at once apply each one only once.
+ *
+ * Migrations are append-only: never edit or renumber a shipped one, add a new one instead.
+ */
+public class SchemaMigrations {
+
+    /** A single schema change. Runs inside a transaction on the writer connection. */
+    interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    static final class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+        sql(1, "users and inbox tables",
+            "CREATE TABLE IF NOT EXISTS users (email TEXT PRIMARY KEY, password TEXT)",
+            "CREATE TABLE IF NOT EXISTS inbox (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "sender TEXT, " +
+                "receiver TEXT, " +
+                "subject TEXT, " +
+                "body TEXT, " +
+                "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)"),
+
+        // Databases created by older builds may have an inbox without the id and/or timestamp
+        // columns. SQLite cannot add an AUTOINCREMENT key or a CURRENT_TIMESTAMP default with
+        // ALTER TABLE, so rebuild the table in the current shape, keeping rowids as ids.
+        new Migration(2, "rebuild legacy inbox with id and timestamp", conn -> {
+            boolean hasId = hasColumn(conn, "inbox", "id");
+            boolean hasTimestamp = hasColumn(conn, "inbox", "timestamp");
+            if (hasId && hasTimestamp) return;
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(
+                    "CREATE TABLE inbox_rebuild (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "sender TEXT, " +
+                    "receiver TEXT, " +
+                    "subject TEXT, " +
+                    "body TEXT, " +
+                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)"
+                );
+                stmt.execute(
+                    "INSERT INTO inbox_rebuild (id, sender, receiver, subject, body, timestamp) " +
+                    "SELECT " + (hasId ? "id" : "rowid") + ", sender, receiver, subject, body, " +
+                    (hasTimestamp ? "COALESCE(timestamp, CURRENT_TIMESTAMP)" : "CURRENT_TIMESTAMP") +
+                    " FROM inbox"
+                );
+                stmt.execute("DROP TABLE inbox");
+                stmt.execute("ALTER TABLE inbox_rebuild RENAME TO inbox");
+            }
+        }),
+
+        // Serve "WHERE receiver=? ORDER BY timestamp DESC, id DESC" (and the sender variant)
+        // straight from the index instead of a full scan plus sort
+        sql(3, "mailbox indexes on (receiver|sender, timestamp, id)",
+            "CREATE INDEX IF NOT EXISTS idx_inbox_receiver_ts ON inbox (receiver, timestamp, id)",
+            "CREATE INDEX IF NOT EXISTS idx_inbox_sender_ts ON inbox (sender, timestamp, id)",
+            "ANALYZE inbox"),
+
+        // Revoked signed session tokens, shared by every WebServer node; seq lets nodes poll for
+        // new rows, and rows are purged once the token would have expired anyway
+        sql(4, "revoked session tokens",
+            "CREATE TABLE IF NOT EXISTS revoked_tokens (" +
+                "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "jti TEXT UNIQUE NOT NULL, " +
+                "expires_at INTEGER NOT NULL)"),
+
+        // Full-text search over subject and body. The owners column holds one token per party,
+        // 'r'||hex(receiver) and 's'||hex(sender), so scoping a search to a user is an index
+        // lookup inside the MATCH instead of a filter over every hit. Triggers keep the index in
+        // step with inbox in the inserting transaction, whichever process writes; rows that
+        // existed before this migration are indexed in the background by SearchIndex, which
+        // works through (next_id, last_id] in search_backfill.
+        sql(5, "full-text search index on inbox",
+            "CREATE VIRTUAL TABLE IF NOT EXISTS inbox_fts USING fts5(" +
+                "subject, body, owners, tokenize = 'unicode61 remove_diacritics 2')",
+            "CREATE TABLE IF NOT EXISTS search_backfill (" +
+                "id INTEGER PRIMARY KEY CHECK (id = 1), " +
+                "next_id INTEGER NOT NULL, " +
+                "last_id INTEGER NOT NULL)",
+            "INSERT OR IGNORE INTO search_backfill (id, next_id, last_id) SELECT 1, 0, COALESCE(MAX(id), 0) FROM inbox",
+            "CREATE TRIGGER IF NOT EXISTS inbox_fts_insert AFTER INSERT ON inbox BEGIN " +
+                "INSERT INTO inbox_fts (rowid, subject, body, owners) " +
+                "VALUES (new.id, new.subject, new.body, 'r' || hex(new.receiver) || ' s' || hex(new.sender)); END",
+            "CREATE TRIGGER IF NOT EXISTS inbox_fts_delete AFTER DELETE ON inbox BEGIN " +
+                "DELETE FROM inbox_fts WHERE rowid = old.id; END"),
+
+        // Bodies move out of inbox into a content-addressed, compressed table (see MessageBodies);
+        // inbox keeps the hash and a short preview, so list queries touch much smaller rows.
+        // Existing bodies are converted here, in batches, inside the migration's transaction.
+        // GroupCommitWriter now indexes new mail for search itself (the body text never reaches
+        // inbox), so the trigger only covers rows written with a body by older builds.
+        new Migration(6, "content-addressed compressed message bodies", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(
+                    "CREATE TABLE IF NOT EXISTS bodies (" +
+                    "hash BLOB PRIMARY KEY, " +
+                    "codec INTEGER NOT NULL, " +
+                    "size INTEGER NOT NULL, " +
+                    "data BLOB NOT NULL)"
+                );
+                if (!hasColumn(conn, "inbox", "body_hash")) stmt.execute("ALTER TABLE inbox ADD COLUMN body_hash BLOB");
+                if (!hasColumn(conn, "inbox", "preview")) stmt.execute("ALTER TABLE inbox ADD COLUMN preview TEXT");
+                stmt.execute("DROP TRIGGER IF EXISTS inbox_fts_insert");
+                stmt.execute(
+                    "CREATE TRIGGER inbox_fts_insert AFTER INSERT ON inbox WHEN new.body IS NOT NULL BEGIN " +
+                    "INSERT INTO inbox_fts (rowid, subject, body, owners) " +
+                    "VALUES (new.id, new.subject, new.body, 'r' || hex(new.receiver) || ' s' || hex(new.sender)); END"
+                );
+            }
+            int moved = 0;
+            try (PreparedStatement select = conn.prepareStatement(
+                     "SELECT id, body FROM inbox WHERE id > ? AND body IS NOT NULL ORDER BY id LIMIT 1000");
+                 PreparedStatement insert = conn.prepareStatement(
+                     "INSERT OR IGNORE INTO bodies (hash, codec, size, data) VALUES (?, ?, ?, ?)");
+                 PreparedStatement update = conn.prepareStatement(
+                     "UPDATE inbox SET body = NULL, body_hash = ?, preview = ? WHERE id = ?")) {
+                long after = 0;
+                while (true) {
+                    List<Long> ids = new ArrayList<>();
+                    List<String> texts = new ArrayList<>();
+                    select.setLong(1, after);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                            texts.add(rs.getString(2));
+                        }
+                    }
+                    if (ids.isEmpty()) break;
+                    for (int i = 0; i < ids.size(); i++) {
+                        String text = texts.get(i);
+                        MessageBodies.Encoded e = MessageBodies.encode(text);
+                        insert.setBytes(1, e.hash);
+                        insert.setInt(2, e.codec);
+                        insert.setInt(3, e.size);
+                        insert.setBytes(4, e.data);
+                        insert.executeUpdate();
+                        update.setBytes(1, e.hash);
+                        update.setString(2, MessageBodies.preview(text));
+                        update.setLong(3, ids.get(i));
+                        update.executeUpdate();
+                    }
+                    after = ids.get(ids.size() - 1);
+                    moved += ids.size();
+                }
+            }
+            if (moved > 0) System.out.println("Moved " + moved + " message bodies to the bodies table");
+        }),
+
+        // Multi-recipient mail: one inbox row per receiver, all pointing at one recipient_lists
+        // entry (the visible To/Cc headers, Bcc for the sender's copy, and a short summary of
+        // the To list for list views, which must not carry thousands of addresses). The list id is the
+        // first row's id, which is also the sender's copy in the sent view and the rowid of the
+        // fan-out's single search index entry.
+        sql(7, "recipient lists for multi-recipient mail",
+            "CREATE TABLE IF NOT EXISTS recipient_lists (" +
+                "id INTEGER PRIMARY KEY, " +
+                "to_list TEXT, " +
+                "cc_list TEXT, " +
+                "bcc_list TEXT, " +
+                "summary TEXT)",
+            "ALTER TABLE inbox ADD COLUMN list_id INTEGER",
+            "CREATE INDEX IF NOT EXISTS idx_inbox_list ON inbox (list_id, receiver) WHERE list_id IS NOT NULL"),
+
+        // How many files the inbox is split across (see InboxShard). Only Users.db's row counts;
+        // shard files get the table too, since they run the same migrations. Changed by ReshardTool.
+        sql(8, "inbox shard layout",
+            "CREATE TABLE IF NOT EXISTS storage_layout (" +
+                "id INTEGER PRIMARY KEY CHECK (id = 1), " +
+                "shards INTEGER NOT NULL)",
+            "INSERT OR IGNORE INTO storage_layout (id, shards) VALUES (1, 1)"),
+
+        // Cold-mail archive (see Archiver): it picks old rows by age and, after deleting them,
+        // drops bodies no remaining row points at; archived_segments lists segment files whose
+        // rows are not all deleted yet, so an interrupted run can finish after a restart
+        sql(9, "archive bookkeeping and indexes",
+            "CREATE INDEX IF NOT EXISTS idx_inbox_ts ON inbox (timestamp, id)",
+            "CREATE INDEX IF NOT EXISTS idx_inbox_body_hash ON inbox (body_hash) WHERE body_hash IS NOT NULL",
+            "CREATE TABLE IF NOT EXISTS archived_segments (" +
+                "name TEXT PRIMARY KEY, " +
+                "rows INTEGER NOT NULL, " +
+                "deleted INTEGER NOT NULL DEFAULT 0, " +
+                "archived_at DATETIME DEFAULT CURRENT_TIMESTAMP)"),
+
+        // The search index stops keeping its own copy of every subject and body: with content=''
+        // FTS5 stores only the index, and the text is read from inbox/bodies when results are
+        // shown (SearchIndex cuts the snippets). contentless_delete (SQLite 3.43+) keeps
+        // DELETE ... WHERE rowid working for the trigger and the archiver. Entries are copied
+        // over from the old table, whose content is still readable here. The triggers are
+        // dropped first because renaming a table fails while a trigger names a missing one.
+        new Migration(10, "contentless search index", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP TRIGGER IF EXISTS inbox_fts_insert");
+                stmt.execute("DROP TRIGGER IF EXISTS inbox_fts_delete");
+                stmt.execute(
+                    "CREATE VIRTUAL TABLE inbox_fts_contentless USING fts5(" +
+                    "subject, body, owners, content = '', contentless_delete = 1, " +
+                    "tokenize = 'unicode61 remove_diacritics 2')"
+                );
+                stmt.execute(
+                    "INSERT INTO inbox_fts_contentless (rowid, subject, body, owners) " +
+                    "SELECT rowid, subject, body, owners FROM inbox_fts"
+                );
+                stmt.execute("DROP TABLE inbox_fts");
+                stmt.execute("ALTER TABLE inbox_fts_contentless RENAME TO inbox_fts");
+                stmt.execute(
+                    "CREATE TRIGGER inbox_fts_insert AFTER INSERT ON inbox WHEN new.body IS NOT NULL BEGIN " +
+                    "INSERT INTO inbox_fts (rowid, subject, body, owners) " +
+                    "VALUES (new.id, new.subject, new.body, 'r' || hex(new.receiver) || ' s' || hex(new.sender)); END"
+                );
+                stmt.execute(
+                    "CREATE TRIGGER inbox_fts_delete AFTER DELETE ON inbox BEGIN " +
+                    "DELETE FROM inbox_fts WHERE rowid = old.id; END"
+                );
+                // hands the old table's pages back on files with auto_vacuum=INCREMENTAL; a no-op elsewhere
+                stmt.execute("PRAGMA incremental_vacuum");
+            }
+        }),
+
+        // Archived mail stays searchable: the Archiver deletes inbox rows but keeps their search
+        // entries, and SearchIndex shows such hits from the archive. Nothing else deletes single
+        // inbox rows; ReshardTool clears the index itself along with the table.
+        sql(11, "search entries outlive archived rows",
+            "DROP TRIGGER IF EXISTS inbox_fts_delete")
+    );
+
+    private SchemaMigrations() {}
+
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    /** Brings the database up to {@link #latestVersion()}; a no-op when it is already current. */
+    public static void migrate(ConnectionPool.Lease writer) throws SQLException {
+        Connection conn = writer.connection();
+        int current = currentVersion(conn);
+        if (current >= latestVersion()) return;
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(
+                "CREATE TABLE IF NOT EXISTS schema_version (" +
+                "version INTEGER PRIMARY KEY, " +
+                "description TEXT, " +
+                "applied_at DATETIME DEFAULT CURRENT_TIMESTAMP)"
+            );
+        }
+
+        for (Migration m : MIGRATIONS) {
+            if (m.version <= current) continue;
+            try (Statement stmt = conn.createStatement()) {
+                // IMMEDIATE takes the write lock up front, so when several processes start on the
+                // same file one migrates while the others wait (busy_timeout) and then skip
+                stmt.execute("BEGIN IMMEDIATE");
+                try {
+                    if (currentVersion(conn) >= m.version) {
+                        stmt.execute("COMMIT");
+                        continue;
+                    }
+                    m.step.apply(conn);
+                    try (PreparedStatement ps = conn.prepareStatement(
+                            "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                        ps.setInt(1, m.version);
+                        ps.setString(2, m.description);
+                        ps.executeUpdate();
+                    }
+                    stmt.execute("COMMIT");
+                    System.out.println("Applied schema migration " + m.version + ": " + m.description);
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw new SQLException("Schema migration " + m.version + " (" + m.description + ") failed", e);
+                }
+            }
+        }
+    }
+
+    // Highest applied version, or 0 for a fresh or pre-migration database
+    static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                 "SELECT name FROM sqlite_master WHERE type='table' AND name='schema_version'")) {
+            if (!rs.next()) return 0;
+        }
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return true;
+            }
+        }
+        return false;
+    }
+
+    private static Migration sql(int version, String description, String... statements) {
+        return new Migration(version, description, conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                for (String s : statements) stmt.execute(s);
+            }
+        });
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Full-text search over the inbox_fts table (schema migration 5).
+ *
+ * New rows are indexed by triggers on inbox as they are inserted. Rows that predate the index
+ * are backfilled by {@link #startBackfill()} on a daemon thread, {@code search.backfillChunk}
+ * rows per transaction with a pause between chunks, so the group-commit writer gets the
+ * connection in between; progress is stored in search_backfill and resumes after a restart.
+ * Until it finishes, searches only cover the rows indexed so far and say so.
+ *
+ * User input never reaches FTS5 query syntax: every word becomes a quoted phrase, with a
+ * trailing * kept as a prefix search, and all words must match. Snippet matches are wrapped in
+ * U+0002 ... U+0003 so clients can escape the text before highlighting.
+ *
+ * The index is contentless (schema migration 10): it holds no copy of the text, which stays
+ * compressed in bodies, so snippet() is not available and {@link Snippets} cuts them from the
+ * decoded subject and body, for the hits on the page only.
+ *
+ * Entries outlive their rows when the {@link Archiver} moves mail to the {@link MailArchive}
+ * (schema migration 11), so archived mail stays searchable: a hit whose row is gone is shown
+ * from its archived copy.
+ */
+public class SearchIndex {
+    private static final int BACKFILL_CHUNK = Integer.getInteger("search.backfillChunk", 500);
+    private static final long BACKFILL_PAUSE_MS = Long.getLong("search.backfillPauseMs", 20);
+    private static final int MAX_TERMS = 16;
+
+    // subject matches weigh more than body matches; owners only scopes and must not affect the rank.
+    // A fan-out has one entry under its first row's id; a receiver is shown their own row of it.
+    // i.id is null when the row was archived.
+    private static final String SEARCH_SQL =
+        "SELECT inbox_fts.rowid AS entry, i.id, i.sender, COALESCE(l.summary, i.receiver) AS receiver, i.subject, i.timestamp, " +
+        "i.body, b.codec, b.size, b.data, bm25(inbox_fts, 4.0, 1.0, 0.0) AS score " +
+        "FROM inbox_fts LEFT JOIN inbox i ON i.id = COALESCE(" +
+        "(SELECT x.id FROM inbox x WHERE x.list_id = inbox_fts.rowid AND x.receiver = ?), inbox_fts.rowid) " +
+        "LEFT JOIN recipient_lists l ON l.id = i.list_id " +
+        "LEFT JOIN bodies b ON b.hash = i.body_hash " +
+        "WHERE inbox_fts MATCH ? ORDER BY score, COALESCE(i.id, inbox_fts.rowid) DESC LIMIT ? OFFSET ?";
+    private static final int SUBJECT_SNIPPET_TOKENS = 10;
+    private static final int BODY_SNIPPET_TOKENS = 16;
+
+    private final ConnectionPool pool;
+    private final MailArchive archive;
+    private volatile boolean backfilling;
+    private volatile boolean closed;
+
+    public SearchIndex(ConnectionPool pool, MailArchive archive) {
+        this.pool = pool;
+        this.archive = archive;
+    }
+
+    /** Indexes pre-existing rows in the background; returns at once if there is nothing to do. */
+    public void startBackfill() {
+        long[] range = backfillRange();
+        if (range == null || range[0] >= range[1]) return;
+        backfilling = true;
+        Thread t = new Thread(this::backfill, "search-backfill");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public boolean isBackfilling() {
+        return backfilling;
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    /** One search result; lower score is better (bm25). The body stays compressed until a page shows it. */
+    static final class Hit {
+        final long id;
+        final String sender, receiver, subject, time;
+        final double score;
+        private final String text; // rows written before bodies moved out of inbox
+        private final int codec, size;
+        private final byte[] data;
+        private final MailArchive.Mail archived;
+
+        Hit(ResultSet rs) throws SQLException {
+            id = rs.getLong("id");
+            sender = rs.getString("sender");
+            receiver = nullToEmpty(rs.getString("receiver"));
+            subject = nullToEmpty(rs.getString("subject"));
+            time = nullToEmpty(rs.getString("timestamp"));
+            score = rs.getDouble("score");
+            text = rs.getString("body");
+            codec = rs.getInt("codec");
+            size = rs.getInt("size");
+            data = rs.getBytes("data");
+            archived = null;
+        }
+
+        Hit(MailArchive.Mail m, String to, double score) {
+            id = m.id;
+            sender = m.sender;
+            receiver = nullToEmpty(to);
+            subject = nullToEmpty(m.subject);
+            time = nullToEmpty(m.time);
+            this.score = score;
+            text = null;
+            codec = size = 0;
+            data = null;
+            archived = m;
+        }
+
+        String body() throws IOException {
+            if (archived != null) return archived.body();
+            try {
+                return data == null ? nullToEmpty(text) : MessageBodies.decode(codec, size, data);
+            } catch (SQLException e) {
+                throw new IOException("Cannot decode the body of message " + id, e);
+            }
+        }
+    }
+
+    /** The order of SEARCH_SQL, for merging the hits of several indexes. */
+    static final Comparator<Hit> BEST_FIRST =
+        Comparator.comparingDouble((Hit h) -> h.score).thenComparing(Comparator.comparingLong((Hit h) -> h.id).reversed());
+
+    /**
+     * Writes {"results":[...],"next":offset|null,"complete":bool} for messages sent or received
+     * by email that match query, best first.
+     */
+    public void search(String email, String query, int limit, int offset, JsonWriter out) throws IOException {
+        String match = toMatch(email, query);
+        // one extra row tells us whether there is a next page
+        List<Hit> hits = match == null ? Collections.emptyList() : query(email, match, limit + 1, offset);
+        write(email, query, hits, limit, offset, !backfilling, out);
+    }
+
+    /** Up to limit hits for a {@link #toMatch} query, best first, skipping offset. */
+    List<Hit> query(String email, String match, int limit, int offset) throws IOException {
+        List<Hit> hits = new ArrayList<>();
+        try (ConnectionPool.Lease lease = pool.reader()) {
+            PreparedStatement ps = lease.prepare(SEARCH_SQL);
+            ps.setString(1, email);
+            ps.setString(2, match);
+            ps.setInt(3, limit);
+            ps.setInt(4, offset);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getObject("id") != null) {
+                        hits.add(new Hit(rs));
+                        continue;
+                    }
+                    Hit h = archived(email, rs.getLong("entry"), rs.getDouble("score"));
+                    if (h != null) hits.add(h);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Search failed", e);
+        }
+        return hits;
+    }
+
+    // The archived row behind an entry, as SEARCH_SQL picks it from inbox: for a fan-out the
+    // searcher's own row, which has the first row's timestamp, else the first row (the sender's
+    // copy), addressed to the list summary like a live hit. Null if the archive does not have it either.
+    private Hit archived(String email, long entry, double score) throws IOException {
+        MailArchive.Mail first = archive.find(entry);
+        if (first == null) return null;
+        String to = first.summary != null ? first.summary : first.receiver;
+        if (first.listId != 0 && first.time != null && !email.equals(first.receiver)) {
+            MailArchive.Scan scan = archive.scan(email, false, first.time, Long.MAX_VALUE);
+            for (MailArchive.Mail m; (m = scan.next()) != null && first.time.equals(m.time); ) {
+                if (m.listId == first.listId) return new Hit(m, to, score);
+            }
+        }
+        return new Hit(first, to, score);
+    }
+
+    /** The response for the page at offset, given up to limit + 1 hits for query starting there. */
+    static void write(String email, String query, List<Hit> hits, int limit, int offset, boolean complete, JsonWriter out) throws IOException {
+        Snippets snippets = new Snippets(terms(query));
+        out.beginObject().name("results").beginArray();
+        for (int i = 0; i < hits.size() && i < limit; i++) {
+            Hit h = hits.get(i);
+            String body = h.body();
+            out.beginObject()
+               .name("id").value(h.id)
+               .name("from").value(nullToEmpty(h.sender))
+               .name("to").value(h.receiver)
+               .name("subject").value(h.subject)
+               .name("subjectSnippet").value(snippets.cut(h.subject, SUBJECT_SNIPPET_TOKENS))
+               .name("snippet").value(snippets.cut(body, BODY_SNIPPET_TOKENS))
+               .name("time").value(h.time)
+               .name("sent").value(email.equals(h.sender))
+               .endObject();
+        }
+        out.endArray();
+        if (hits.size() > limit) out.name("next").value(offset + limit); else out.name("next").nullValue();
+        out.name("complete").value(complete).endObject();
+    }
+
+    /** The user's words as searched: at most MAX_TERMS, each with a trailing * if it is a prefix. */
+    static List<String> terms(String query) {
+        List<String> terms = new ArrayList<>();
+        if (query == null) return terms;
+        for (String word : query.trim().split("\\s+")) {
+            if (terms.size() == MAX_TERMS) break;
+            boolean prefix = word.endsWith("*");
+            String w = word.replace("*", "");
+            if (w.isEmpty()) continue;
+            terms.add(prefix ? w + "*" : w);
+        }
+        return terms;
+    }
+
+    /** FTS5 query for the user's words, scoped to email; null if there are no words. */
+    static String toMatch(String email, String query) {
+        List<String> terms = new ArrayList<>();
+        for (String word : terms(query)) {
+            boolean prefix = word.endsWith("*");
+            String w = prefix ? word.substring(0, word.length() - 1) : word;
+            terms.add("\"" + w.replace("\"", "\"\"") + "\"" + (prefix ? "*" : ""));
+        }
+        if (terms.isEmpty()) return null;
+        String hex = hex(email);
+        return "owners : (\"r" + hex + "\" OR \"s" + hex + "\") AND {subject body} : (" + String.join(" AND ", terms) + ")";
+    }
+
+    /** owners column of a fan-out: the sender's token (unless null) and one per distinct receiver. */
+    static String owners(String sender, String[] receivers) {
+        java.util.LinkedHashSet<String> tokens = new java.util.LinkedHashSet<>();
+        if (sender != null) tokens.add("s" + hex(sender));
+        for (String r : receivers) tokens.add("r" + hex(r));
+        return String.join(" ", tokens);
+    }
+
+    // Same token the triggers build with SQLite's hex(): uppercase hex of the UTF-8 bytes
+    private static String hex(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : s.getBytes(java.nio.charset.StandardCharsets.UTF_8)) sb.append(String.format(Locale.ROOT, "%02X", b));
+        return sb.toString();
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * What snippet(inbox_fts, col, char(2), char(3), '...', n) returned before the index became
+     * contentless: the n-token stretch of text with the most distinct query words (then the
+     * most matches), matches wrapped in U+0002 ... U+0003, "..." where text was cut. Tokens are
+     * what the unicode61 tokenizer indexes, runs of letters, digits and marks, compared
+     * ignoring case and accents (remove_diacritics).
+     */
+    static final class Snippets {
+        private final List<String> words = new ArrayList<>();
+        private final List<Boolean> prefixes = new ArrayList<>();
+
+        Snippets(List<String> terms) {
+            for (String term : terms) {
+                boolean prefix = term.endsWith("*");
+                // a quoted phrase like "re-launch" matches each of its tokens
+                List<int[]> spans = tokens(term);
+                for (int i = 0; i < spans.size(); i++) {
+                    words.add(fold(term.substring(spans.get(i)[0], spans.get(i)[1])));
+                    prefixes.add(prefix && i == spans.size() - 1);
+                }
+            }
+        }
+
+        String cut(String text, int n) {
+            if (text == null) return "";
+            List<int[]> spans = tokens(text);
+            int count = spans.size();
+            if (count == 0) return "";
+            int[] word = new int[count]; // index into words, or -1
+            for (int k = 0; k < count; k++) word[k] = match(fold(text.substring(spans.get(k)[0], spans.get(k)[1])));
+
+            int width = Math.min(n, count);
+            int best = 0, bestScore = score(word, 0, width); // the start of the text wins ties
+            for (int k = width; k < count; k++) {
+                if (word[k] < 0) continue;
+                // a little context before the first match of the window
+                int start = Math.max(0, Math.min(k - width / 4, count - width));
+                int score = score(word, start, width);
+                if (score > bestScore) {
+                    best = start;
+                    bestScore = score;
+                }
+            }
+
+            StringBuilder sb = new StringBuilder();
+            if (best > 0) sb.append("...");
+            int from = best == 0 ? 0 : spans.get(best)[0];
+            boolean open = false; // adjacent matches share one highlight, as "re-launch" did
+            for (int k = best; k < best + width; k++) {
+                int[] span = spans.get(k);
+                if (open && word[k] < 0) {
+                    sb.append('\u0003');
+                    open = false;
+                }
+                sb.append(text, from, span[0]);
+                if (word[k] >= 0 && !open) {
+                    sb.append('\u0002');
+                    open = true;
+                }
+                sb.append(text, span[0], span[1]);
+                from = span[1];
+            }
+            if (open) sb.append('\u0003');
+            if (best + width < count) sb.append("...");
+            else sb.append(text, from, text.length());
+            return sb.toString();
+        }
+
+        private int match(String token) {
+            for (int i = 0; i < words.size(); i++) {
+                if (prefixes.get(i) ? token.startsWith(words.get(i)) : token.equals(words.get(i))) return i;
+            }
+            return -1;
+        }
+
+        private int score(int[] word, int start, int width) {
+            java.util.BitSet distinct = new java.util.BitSet();
+            int hits = 0;
+            for (int k = start; k < start + width; k++) {
+                if (word[k] < 0) continue;
+                distinct.set(word[k]);
+                hits++;
+            }
+            return distinct.cardinality() * 1000 + hits;
+        }
+
+        // [start, end) of every token in s
+        private static List<int[]> tokens(String s) {
+            List<int[]> spans = new ArrayList<>();
+            int i = 0;
+            while (i < s.length()) {
+                int cp = s.codePointAt(i);
+                if (!isTokenChar(cp)) {
+                    i += Character.charCount(cp);
+                    continue;
+                }
+                int start = i;
+                while (i < s.length() && isTokenChar(cp = s.codePointAt(i))) i += Character.charCount(cp);
+                spans.add(new int[] {start, i});
+            }
+            return spans;
+        }
+
+        private static boolean isTokenChar(int cp) {
+            switch (Character.getType(cp)) {
+                case Character.NON_SPACING_MARK:
+                case Character.ENCLOSING_MARK:
+                case Character.COMBINING_SPACING_MARK:
+                case Character.LETTER_NUMBER:
+                case Character.OTHER_NUMBER:
+                case Character.PRIVATE_USE:
+                    return true;
+                default:
+                    return Character.isLetterOrDigit(cp);
+            }
+        }
+
+        private static String fold(String token) {
+            String decomposed = java.text.Normalizer.normalize(token.toLowerCase(Locale.ROOT), java.text.Normalizer.Form.NFD);
+            return decomposed.replaceAll("\\p{M}", "");
+        }
+    }
+
+    // ---------------- Backfill ----------------
+
+    private long[] backfillRange() {
+        try (ConnectionPool.Lease lease = pool.reader();
+             ResultSet rs = lease.prepare("SELECT next_id, last_id FROM search_backfill WHERE id = 1").executeQuery()) {
+            return rs.next() ? new long[] {rs.getLong(1), rs.getLong(2)} : null;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void backfill() {
+        long indexed = 0;
+        long start = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                int n = backfillChunk();
+                if (n < 0) break;
+                indexed += n;
+                Thread.sleep(BACKFILL_PAUSE_MS);
+            }
+            if (!closed) System.out.println("Search index backfill done: " + indexed + " messages in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            System.err.println("Search index backfill stopped: " + e.getMessage());
+        } finally {
+            backfilling = false;
+        }
+    }
+
+    // Indexes the next chunk in one transaction; returns rows indexed, or -1 when finished
+    private int backfillChunk() throws SQLException {
+        try (ConnectionPool.Lease lease = pool.writer()) {
+            Connection conn = lease.connection();
+            conn.setAutoCommit(false);
+            try {
+                long next, last;
+                try (ResultSet rs = lease.prepare("SELECT next_id, last_id FROM search_backfill WHERE id = 1").executeQuery()) {
+                    if (!rs.next()) { conn.commit(); return -1; }
+                    next = rs.getLong(1);
+                    last = rs.getLong(2);
+                }
+                if (next >= last) { conn.commit(); return -1; }
+                // by row count, not id range: shard ids start far above zero (InboxShard)
+                // bodies are compressed (MessageBodies), so the text is decoded here rather than in SQL
+                PreparedStatement select = lease.prepare(
+                    "SELECT inbox.id, subject, sender, receiver, inbox.body, b.codec, b.size, b.data " +
+                    "FROM inbox LEFT JOIN bodies b ON b.hash = inbox.body_hash WHERE inbox.id > ? AND inbox.id <= ? ORDER BY inbox.id LIMIT ?");
+                PreparedStatement insert = lease.prepare(
+                    "INSERT INTO inbox_fts (rowid, subject, body, owners) VALUES (?, ?, ?, 'r' || hex(?) || ' s' || hex(?))");
+                select.setLong(1, next);
+                select.setLong(2, last);
+                select.setInt(3, BACKFILL_CHUNK);
+                int n = 0, seen = 0;
+                long upTo = next;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        seen++;
+                        upTo = rs.getLong("id");
+                        byte[] data = rs.getBytes("data");
+                        insert.setLong(1, rs.getLong("id"));
+                        insert.setString(2, rs.getString("subject"));
+                        insert.setString(3, data == null ? rs.getString("body") : MessageBodies.decode(rs.getInt("codec"), rs.getInt("size"), data));
+                        insert.setString(4, rs.getString("receiver"));
+                        insert.setString(5, rs.getString("sender"));
+                        n += insert.executeUpdate();
+                    }
+                }
+                PreparedStatement progress = lease.prepare("UPDATE search_backfill SET next_id = ? WHERE id = 1");
+                progress.setLong(1, seen < BACKFILL_CHUNK ? last : upTo);
+                progress.executeUpdate();
+                conn.commit();
+                return n;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Issues and checks the auth tokens WebServer hands out at /api/login.
+ *
+ * {@link SessionStore} keeps sessions in this process (optionally persisted), so it needs sticky
+ * load balancing when several WebServer nodes run. {@link SignedTokenManager} issues HMAC-signed
+ * tokens that any node holding the keys can verify on its own. Pick one with
+ * -Dsession.mode=store|signed (default store).
+ */
+public interface SessionManager {
+
+    /** Starts a session for email and returns its token. */
+    String create(String email);
+
+    /** The email the token belongs to, or null if it is unknown, expired or revoked. */
+    String lookup(String token);
+
+    /** Whether lookup would accept the token, without counting as activity (open streams recheck theirs). */
+    default boolean valid(String token) {
+        return lookup(token) != null;
+    }
+
+    /** Ends the session (logout). Returns false if the token was not valid. */
+    boolean invalidate(String token);
+
+    String statsJson();
+
+    void close();
+
+    static SessionManager fromConfig(DatabaseCopy dbCopy) {
+        String mode = System.getProperty("session.mode", "store");
+        if ("signed".equalsIgnoreCase(mode)) return SignedTokenManager.fromConfig(dbCopy);
+        return new SessionStore();
+    }
+}
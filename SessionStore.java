@@ -0,0 +1,391 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Login sessions: token -> email, with an idle TTL ({@code session.idleTtlMs}, default 30 min)
+ * and an absolute TTL ({@code session.absoluteTtlMs}, default 24 h).
+ *
+ * {@link #lookup} is a single ConcurrentHashMap read plus a volatile write of the last-access
+ * time; it takes no locks. Expired sessions are also dropped in the background by a hashed
+ * timing wheel (one slot per {@code session.tickMs}), so memory is reclaimed without sweeping
+ * the whole map. A touch does not move a session in the wheel: when its slot comes round the
+ * real deadline is recomputed and the session is either expired or rescheduled.
+ *
+ * A user keeps at most {@code session.maxPerUser} sessions and the store at most
+ * {@code session.maxTotal}; past either cap the oldest session is evicted.
+ *
+ * With {@code -Dsession.file=...} sessions survive a restart: the file holds a binary snapshot
+ * and {@code <file>.log} an append-only log of logins and removals since that snapshot. Startup
+ * reads both, and the snapshot is rewritten (and the log truncated) every
+ * {@code session.snapshotMs}. Last-access times are only captured by snapshots, so after a
+ * crash a session may look idle for up to one snapshot interval longer than it really was.
+ */
+public class SessionStore implements SessionManager {
+    private static final long IDLE_TTL_MS = Long.getLong("session.idleTtlMs", 30 * 60_000L);
+    private static final long ABSOLUTE_TTL_MS = Long.getLong("session.absoluteTtlMs", 24 * 60 * 60_000L);
+    private static final int MAX_PER_USER = Integer.getInteger("session.maxPerUser", 10);
+    private static final int MAX_TOTAL = Integer.getInteger("session.maxTotal", 100_000);
+    private static final long TICK_MS = Long.getLong("session.tickMs", 1_000);
+    private static final long SNAPSHOT_MS = Long.getLong("session.snapshotMs", 60_000);
+    private static final int WHEEL_SLOTS = 512;
+
+    private static final int SNAPSHOT_MAGIC = 0x53455331; // "SES1"
+    private static final byte LOG_CREATE = 'C';
+    private static final byte LOG_REMOVE = 'R';
+
+    private final long idleTtlMs;
+    private final long absoluteTtlMs;
+    private final int maxPerUser;
+    private final int maxTotal;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // per-user tokens, oldest first; each deque is only touched inside compute() for its key
+    private final ConcurrentHashMap<String, ArrayDeque<Session>> byUser = new ConcurrentHashMap<>();
+    // every session in creation order, for the total cap; removed ones are skipped lazily
+    private final ConcurrentLinkedQueue<Session> creationOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger creationOrderSize = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicReferenceArray<ConcurrentLinkedQueue<Session>> wheel = new AtomicReferenceArray<>(WHEEL_SLOTS);
+    private volatile long processedTick;
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Object logLock = new Object();
+    private DataOutputStream log; // guarded by logLock
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private volatile boolean running = true;
+    private final Thread ticker;
+
+    public SessionStore() {
+        this(IDLE_TTL_MS, ABSOLUTE_TTL_MS, MAX_PER_USER, MAX_TOTAL, System.getProperty("session.file"));
+    }
+
+    public SessionStore(long idleTtlMs, long absoluteTtlMs, int maxPerUser, int maxTotal, String file) {
+        this.idleTtlMs = idleTtlMs;
+        this.absoluteTtlMs = absoluteTtlMs;
+        this.maxPerUser = maxPerUser;
+        this.maxTotal = maxTotal;
+        for (int i = 0; i < WHEEL_SLOTS; i++) wheel.set(i, new ConcurrentLinkedQueue<>());
+        processedTick = System.currentTimeMillis() / TICK_MS;
+
+        if (file != null && !file.isEmpty()) {
+            snapshotFile = Paths.get(file);
+            logFile = Paths.get(file + ".log");
+            restore();
+        } else {
+            snapshotFile = null;
+            logFile = null;
+        }
+
+        ticker = new Thread(this::tickLoop, "session-expiry");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /** Creates a session for email and returns its token. */
+    @Override
+    public String create(String email) {
+        String token = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        Session s = new Session(token, email, now, now);
+        add(s);
+        appendLog(LOG_CREATE, s);
+        created.increment();
+        return token;
+    }
+
+    /** The session's email, or null if the token is unknown or expired. Lock-free. */
+    @Override
+    public String lookup(String token) {
+        if (token == null) return null;
+        Session s = sessions.get(token);
+        if (s == null) return null;
+        long now = System.currentTimeMillis();
+        if (s.deadline(idleTtlMs, absoluteTtlMs) <= now) {
+            if (remove(s)) expired.increment();
+            return null;
+        }
+        s.lastAccess = now;
+        return s.email;
+    }
+
+    /** Like lookup, but leaves the last-access time alone. */
+    @Override
+    public boolean valid(String token) {
+        Session s = token == null ? null : sessions.get(token);
+        return s != null && s.deadline(idleTtlMs, absoluteTtlMs) > System.currentTimeMillis();
+    }
+
+    /** Ends a session (logout). Returns false if there was none. */
+    @Override
+    public boolean invalidate(String token) {
+        if (token == null) return false;
+        Session s = sessions.get(token);
+        return s != null && remove(s);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public String statsJson() {
+        return "{\"mode\":\"store\",\"active\":" + size.get() + ",\"users\":" + byUser.size() + ",\"created\":" + created.sum() +
+            ",\"expired\":" + expired.sum() + ",\"evicted\":" + evicted.sum() + "}";
+    }
+
+    /** Stops the expiry thread and, if persistent, writes a final snapshot. */
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+        if (snapshotFile != null) {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // ---------------- Membership ----------------
+
+    private void add(Session s) {
+        sessions.put(s.token, s);
+        size.incrementAndGet();
+        creationOrder.add(s);
+        creationOrderSize.incrementAndGet();
+        schedule(s);
+
+        List<Session> overUser = new ArrayList<>(1);
+        byUser.compute(s.email, (k, q) -> {
+            if (q == null) q = new ArrayDeque<>();
+            q.addLast(s);
+            while (q.size() > maxPerUser) overUser.add(q.pollFirst());
+            return q;
+        });
+        for (Session old : overUser) {
+            if (removeFromMap(old)) evicted.increment();
+        }
+        while (size.get() > maxTotal) {
+            Session oldest = creationOrder.poll();
+            if (oldest == null) break;
+            creationOrderSize.decrementAndGet();
+            if (remove(oldest)) evicted.increment();
+        }
+    }
+
+    private boolean remove(Session s) {
+        if (!removeFromMap(s)) return false;
+        byUser.computeIfPresent(s.email, (k, q) -> {
+            q.remove(s);
+            return q.isEmpty() ? null : q;
+        });
+        return true;
+    }
+
+    // ConcurrentHashMap.remove(key, value) succeeds exactly once, so counters and the log stay exact
+    private boolean removeFromMap(Session s) {
+        if (!sessions.remove(s.token, s)) return false;
+        size.decrementAndGet();
+        appendLog(LOG_REMOVE, s);
+        return true;
+    }
+
+    // ---------------- Timing wheel ----------------
+
+    private void schedule(Session s) {
+        long tick = Math.max(s.deadline(idleTtlMs, absoluteTtlMs) / TICK_MS, processedTick + 1);
+        wheel.get((int) (tick % WHEEL_SLOTS)).add(s);
+    }
+
+    private void tickLoop() {
+        long nextSnapshot = System.currentTimeMillis() + SNAPSHOT_MS;
+        while (running) {
+            try {
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e) {
+                if (!running) return;
+            }
+            try {
+                long now = System.currentTimeMillis();
+                long current = now / TICK_MS;
+                // if we fell behind by more than a rotation, one pass over every slot is enough
+                long from = Math.max(processedTick + 1, current - WHEEL_SLOTS + 1);
+                for (long t = from; t <= current; t++) {
+                    processedTick = t; // so anything rescheduled from this slot lands in a later one
+                    expireSlot((int) (t % WHEEL_SLOTS), now);
+                }
+                compactCreationOrder();
+
+                if (snapshotFile != null) {
+                    if (now >= nextSnapshot) {
+                        snapshot();
+                        nextSnapshot = now + SNAPSHOT_MS;
+                    } else {
+                        flushLog();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void expireSlot(int slot, long now) {
+        ConcurrentLinkedQueue<Session> due = wheel.getAndSet(slot, new ConcurrentLinkedQueue<>());
+        Session s;
+        while ((s = due.poll()) != null) {
+            if (sessions.get(s.token) != s) continue; // already removed
+            if (s.deadline(idleTtlMs, absoluteTtlMs) <= now) {
+                if (remove(s)) expired.increment();
+            } else {
+                schedule(s); // touched since it was scheduled, or due in a later rotation
+            }
+        }
+    }
+
+    // Removed sessions stay in creationOrder until polled; drop them once they dominate
+    private void compactCreationOrder() {
+        if (creationOrderSize.get() <= 2 * Math.max(size.get(), 1024)) return;
+        Iterator<Session> it = creationOrder.iterator();
+        while (it.hasNext()) {
+            Session s = it.next();
+            if (sessions.get(s.token) != s) {
+                it.remove();
+                creationOrderSize.decrementAndGet();
+            }
+        }
+    }
+
+    // ---------------- Persistence ----------------
+
+    private void appendLog(byte op, Session s) {
+        if (logFile == null) return;
+        synchronized (logLock) {
+            try {
+                if (log == null) {
+                    log = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+                }
+                log.writeByte(op);
+                log.writeUTF(s.token);
+                if (op == LOG_CREATE) {
+                    log.writeUTF(s.email);
+                    log.writeLong(s.createdAt);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushLog() throws IOException {
+        synchronized (logLock) {
+            if (log != null) log.flush();
+        }
+    }
+
+    // Writes all live sessions to a temp file, swaps it in and starts a fresh log. Mutations made
+    // while this runs are logged after the swap, and replaying them on top is idempotent.
+    private void snapshot() throws IOException {
+        synchronized (logLock) {
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                List<Session> live = new ArrayList<>(sessions.values());
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(live.size());
+                for (Session s : live) {
+                    out.writeUTF(s.token);
+                    out.writeUTF(s.email);
+                    out.writeLong(s.createdAt);
+                    out.writeLong(s.lastAccess);
+                }
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            Files.deleteIfExists(logFile);
+        }
+    }
+
+    private void restore() {
+        Map<String, Session> loaded = new LinkedHashMap<>();
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a session snapshot: " + snapshotFile);
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    Session s = new Session(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+                    loaded.put(s.token, s);
+                }
+            } catch (IOException e) {
+                System.out.println("Session snapshot unreadable, starting empty: " + e.getMessage());
+                loaded.clear();
+            }
+        }
+        if (Files.exists(logFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+                while (true) {
+                    int op = in.read();
+                    if (op < 0) break;
+                    String token = in.readUTF();
+                    if (op == LOG_CREATE) {
+                        String email = in.readUTF();
+                        long createdAt = in.readLong();
+                        loaded.put(token, new Session(token, email, createdAt, createdAt));
+                    } else {
+                        loaded.remove(token);
+                    }
+                }
+            } catch (EOFException e) {
+                // torn last record from a crash; everything before it is intact
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        List<Session> live = new ArrayList<>(loaded.values());
+        live.sort(Comparator.comparingLong(s -> s.createdAt));
+        for (Session s : live) {
+            if (s.deadline(idleTtlMs, absoluteTtlMs) > now) add(s);
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Restored " + size.get() + " sessions from " + snapshotFile);
+    }
+
+    private static final class Session {
+        final String token;
+        final String email;
+        final long createdAt;
+        volatile long lastAccess;
+
+        Session(String token, String email, long createdAt, long lastAccess) {
+            this.token = token;
+            this.email = email;
+            this.createdAt = createdAt;
+            this.lastAccess = lastAccess;
+        }
+
+        long deadline(long idleTtlMs, long absoluteTtlMs) {
+            return Math.min(lastAccess + idleTtlMs, createdAt + absoluteTtlMs);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * The original "saltHex:sha256Hex" format, where the hash is SHA-256 over saltHex + password.
+ * Kept so existing accounts can log in; they are rehashed to the current format on login.
+ */
+public class Sha256PasswordHasher implements PasswordHasher {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // MessageDigest is not thread-safe; one per thread avoids the provider lookup on every call
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Override
+    public String id() {
+        return "sha256";
+    }
+
+    @Override
+    public boolean recognizes(String stored) {
+        return stored != null && stored.indexOf('$') < 0 && stored.indexOf(':') > 0;
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        String saltHex = bytesToHex(salt);
+        return saltHex + ":" + bytesToHex(sha256((saltHex + password).getBytes()));
+    }
+
+    @Override
+    public boolean verify(String password, String stored) {
+        String[] parts = stored.split(":");
+        if (parts.length != 2) return false;
+        String saltHex = parts[0];
+        // getBytes() without a charset, as the hashes were originally produced
+        byte[] computed = bytesToHex(sha256((saltHex + password).getBytes())).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(computed, parts[1].getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static byte[] sha256(byte[] input) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md.digest(input);
+    }
+
+    // Table lookup instead of String.format("%02x") per byte
+    static String bytesToHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            out[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,263 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless session tokens: {@code <kid>.<payload>.<signature>}, where payload is base64url of
+ * "email\nexpiry-seconds\njti" and signature is base64url HMAC-SHA256 over "kid.payload" with
+ * the key named kid. Any WebServer node configured with the same keys verifies a token without
+ * asking anyone else, so nodes can sit behind a plain round-robin load balancer.
+ *
+ * Keys come from {@code -Dsession.keys=kid:base64secret,...} or {@code -Dsession.keysFile}
+ * (one "kid base64secret" per line, re-read when it changes). The first key signs new tokens;
+ * the others are only accepted. To rotate: add the new key second on every node, then move it
+ * first, then drop the old one once {@code session.tokenTtlMs} has passed.
+ *
+ * Logout revokes the token's jti in the shared revoked_tokens table. Each node polls that table
+ * every {@code session.revocationPollMs}, so a logout takes effect on other nodes within one
+ * poll interval. Tokens have only an absolute lifetime; there is no idle timeout.
+ */
+public class SignedTokenManager implements SessionManager {
+    private static final long TOKEN_TTL_MS = Long.getLong("session.tokenTtlMs", 8 * 60 * 60_000L);
+    private static final long POLL_MS = Long.getLong("session.revocationPollMs", 2_000);
+    private static final long PURGE_MS = 10 * 60_000L;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+
+    private final long ttlMs;
+    private final DatabaseCopy dbCopy; // null: revocations stay local to this process
+    private final Path keysFile;
+    private volatile KeySet keys;
+    private long keysFileModified;
+
+    private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<>(); // jti -> expiry millis
+    private long revokedSeq;
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile boolean running = true;
+    private final Thread poller;
+
+    public SignedTokenManager(List<Key> keys, long ttlMs, DatabaseCopy dbCopy, Path keysFile) {
+        if (keys.isEmpty()) throw new IllegalArgumentException("At least one signing key is required");
+        this.keys = new KeySet(keys);
+        this.ttlMs = ttlMs;
+        this.dbCopy = dbCopy;
+        this.keysFile = keysFile;
+        if (dbCopy != null) revokedSeq = dbCopy.revokedTokensSince(0, revoked);
+        if (dbCopy != null || keysFile != null) {
+            poller = new Thread(this::pollLoop, "token-revocations");
+            poller.setDaemon(true);
+            poller.start();
+        } else {
+            poller = null;
+        }
+    }
+
+    public static SignedTokenManager fromConfig(DatabaseCopy dbCopy) {
+        String file = System.getProperty("session.keysFile");
+        Path keysFile = file == null || file.isEmpty() ? null : Paths.get(file);
+        List<Key> keys;
+        try {
+            keys = keysFile != null ? parseKeys(Files.readAllLines(keysFile)) :
+                parseKeys(Arrays.asList(System.getProperty("session.keys", "").split(",")));
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot load session keys: " + e.getMessage(), e);
+        }
+        if (keys.isEmpty()) {
+            byte[] secret = new byte[32];
+            RANDOM.nextBytes(secret);
+            keys = Collections.singletonList(new Key("local", secret));
+            System.out.println("No session.keys configured: using a random key; tokens will not verify on other nodes or after a restart");
+        }
+        SignedTokenManager m = new SignedTokenManager(keys, TOKEN_TTL_MS, dbCopy, keysFile);
+        if (keysFile != null) m.keysFileModified = lastModified(keysFile);
+        return m;
+    }
+
+    // "kid:base64" or "kid base64" per entry; blank entries and # comments are skipped
+    static List<Key> parseKeys(List<String> entries) {
+        List<Key> keys = new ArrayList<>();
+        for (String entry : entries) {
+            String e = entry.trim();
+            if (e.isEmpty() || e.startsWith("#")) continue;
+            String[] parts = e.split("[:\\s]+", 2);
+            if (parts.length != 2 || parts[0].isEmpty() || parts[0].indexOf('.') >= 0) {
+                throw new IllegalArgumentException("Bad key entry (want kid:base64secret): " + parts[0]);
+            }
+            byte[] secret = Base64.getDecoder().decode(parts[1].trim());
+            if (secret.length < 16) throw new IllegalArgumentException("Key " + parts[0] + " is shorter than 128 bits");
+            keys.add(new Key(parts[0], secret));
+        }
+        return keys;
+    }
+
+    @Override
+    public String create(String email) {
+        Key key = keys.signing;
+        byte[] jti = new byte[12];
+        RANDOM.nextBytes(jti);
+        long exp = (System.currentTimeMillis() + ttlMs) / 1000;
+        String payload = B64.encodeToString((email + "\n" + exp + "\n" + B64.encodeToString(jti)).getBytes(StandardCharsets.UTF_8));
+        String signed = key.kid + "." + payload;
+        issued.increment();
+        return signed + "." + B64.encodeToString(key.sign(signed));
+    }
+
+    @Override
+    public String lookup(String token) {
+        Claims c = verify(token);
+        return c == null ? null : c.email;
+    }
+
+    @Override
+    public boolean invalidate(String token) {
+        Claims c = verify(token);
+        if (c == null) return false;
+        revoked.put(c.jti, c.expiresAt);
+        if (dbCopy != null) dbCopy.revokeToken(c.jti, c.expiresAt);
+        return true;
+    }
+
+    @Override
+    public String statsJson() {
+        KeySet k = keys;
+        return "{\"mode\":\"signed\",\"signingKey\":\"" + JsonWriter.escape(k.signing.kid) + "\",\"keys\":" + k.byKid.size() +
+            ",\"issued\":" + issued.sum() + ",\"verified\":" + verified.sum() + ",\"rejected\":" + rejected.sum() +
+            ",\"revoked\":" + revoked.size() + "}";
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (poller != null) poller.interrupt();
+    }
+
+    private Claims verify(String token) {
+        Claims c = parse(token);
+        if (c == null) rejected.increment(); else verified.increment();
+        return c;
+    }
+
+    private Claims parse(String token) {
+        if (token == null) return null;
+        int dot1 = token.indexOf('.');
+        int dot2 = token.lastIndexOf('.');
+        if (dot1 <= 0 || dot2 <= dot1 + 1 || dot2 == token.length() - 1) return null;
+        Key key = keys.byKid.get(token.substring(0, dot1));
+        if (key == null) return null;
+        try {
+            byte[] expected = key.sign(token.substring(0, dot2));
+            if (!MessageDigest.isEqual(expected, B64D.decode(token.substring(dot2 + 1)))) return null;
+            String[] fields = new String(B64D.decode(token.substring(dot1 + 1, dot2)), StandardCharsets.UTF_8).split("\n", 3);
+            if (fields.length != 3) return null;
+            long expiresAt = Long.parseLong(fields[1]) * 1000;
+            if (expiresAt <= System.currentTimeMillis()) return null;
+            if (revoked.containsKey(fields[2])) return null;
+            return new Claims(fields[0], expiresAt, fields[2]);
+        } catch (IllegalArgumentException e) { // bad base64 or number
+            return null;
+        }
+    }
+
+    private void pollLoop() {
+        long nextPurge = System.currentTimeMillis() + PURGE_MS;
+        while (running) {
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                if (!running) return;
+            }
+            try {
+                long now = System.currentTimeMillis();
+                if (dbCopy != null) revokedSeq = dbCopy.revokedTokensSince(revokedSeq, revoked);
+                revoked.values().removeIf(exp -> exp <= now); // expired tokens fail the expiry check anyway
+                if (dbCopy != null && now >= nextPurge) {
+                    dbCopy.purgeRevokedTokens(now);
+                    nextPurge = now + PURGE_MS;
+                }
+                reloadKeysIfChanged();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void reloadKeysIfChanged() throws Exception {
+        if (keysFile == null) return;
+        long modified = lastModified(keysFile);
+        if (modified == keysFileModified) return;
+        List<Key> loaded = parseKeys(Files.readAllLines(keysFile));
+        if (loaded.isEmpty()) {
+            System.out.println("Ignoring empty session keys file " + keysFile);
+        } else {
+            keys = new KeySet(loaded);
+            System.out.println("Reloaded session keys; signing with " + loaded.get(0).kid);
+        }
+        keysFileModified = modified;
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static final class Key {
+        final String kid;
+        private final SecretKeySpec spec;
+        // Mac is not thread-safe and init() is not free, so keep one initialised instance per thread
+        private final ThreadLocal<Mac> mac;
+
+        public Key(String kid, byte[] secret) {
+            this.kid = kid;
+            this.spec = new SecretKeySpec(secret, "HmacSHA256");
+            this.mac = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac m = Mac.getInstance("HmacSHA256");
+                    m.init(spec);
+                    return m;
+                } catch (Exception e) {
+                    throw new IllegalStateException("HmacSHA256 unavailable", e);
+                }
+            });
+        }
+
+        byte[] sign(String data) {
+            return mac.get().doFinal(data.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static final class KeySet {
+        final Key signing;
+        final Map<String, Key> byKid = new HashMap<>();
+
+        KeySet(List<Key> keys) {
+            signing = keys.get(0);
+            for (Key k : keys) byKid.put(k.kid, k);
+        }
+    }
+
+    private static final class Claims {
+        final String email;
+        final long expiresAt;
+        final String jti;
+
+        Claims(String email, long expiresAt, String jti) {
+            this.email = email;
+            this.expiresAt = expiresAt;
+            this.jti = jti;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The files under web/, held in memory for WebServer's StaticHandler.
+ *
+ * Everything is loaded at startup and a WatchService thread reloads files as they change, so a
+ * request never touches the disk for small files. Each file gets an ETag (content hash) and a
+ * Last-Modified date, and compressible types also keep a gzip variant when that is smaller.
+ * Files above {@code static.maxCachedBytes} (default 1 MB) keep only their metadata and are
+ * streamed from disk when requested.
+ */
+public class StaticAssets {
+    private static final long MAX_CACHED_BYTES = Long.getLong("static.maxCachedBytes", 1024 * 1024);
+    private static final int MIN_GZIP_BYTES = 256;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    static {
+        MIME_TYPES.put("html", "text/html; charset=utf-8");
+        MIME_TYPES.put("htm", "text/html; charset=utf-8");
+        MIME_TYPES.put("js", "application/javascript; charset=utf-8");
+        MIME_TYPES.put("mjs", "application/javascript; charset=utf-8");
+        MIME_TYPES.put("css", "text/css; charset=utf-8");
+        MIME_TYPES.put("json", "application/json; charset=utf-8");
+        MIME_TYPES.put("map", "application/json; charset=utf-8");
+        MIME_TYPES.put("txt", "text/plain; charset=utf-8");
+        MIME_TYPES.put("xml", "application/xml; charset=utf-8");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("ttf", "font/ttf");
+        MIME_TYPES.put("wasm", "application/wasm");
+        MIME_TYPES.put("pdf", "application/pdf");
+    }
+
+    private final Path root;
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>(); // "/index.html" -> asset
+
+    public StaticAssets(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        try (Stream<Path> files = Files.walk(this.root)) {
+            files.filter(Files::isRegularFile).forEach(this::reload);
+        }
+        startWatcher();
+        System.out.println("Static assets: " + assets.size() + " files from " + this.root);
+    }
+
+    /** The asset for a request path ("/" maps to /index.html), or null. */
+    public Asset get(String path) {
+        if (path.equals("/")) path = "/index.html";
+        return assets.get(path);
+    }
+
+    public static final class Asset {
+        final Path file;
+        final String contentType;
+        final long size;
+        final long lastModifiedMillis;
+        final String lastModified; // HTTP date
+        final String etag;
+        final byte[] bytes;        // null for large files, which are streamed from disk
+        final byte[] gzip;         // null unless compressible and worth it
+        final String gzipEtag;
+
+        Asset(Path file, String contentType, long size, long lastModifiedMillis, String etag, byte[] bytes, byte[] gzip) {
+            this.file = file;
+            this.contentType = contentType;
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(lastModifiedMillis));
+            this.etag = "\"" + etag + "\"";
+            this.bytes = bytes;
+            this.gzip = gzip;
+            // a strong ETag must differ between encodings of the same resource
+            this.gzipEtag = "\"" + etag + "-gz\"";
+        }
+
+        /** True if the client's If-None-Match / If-Modified-Since already match this version. */
+        boolean notModified(String ifNoneMatch, String ifModifiedSince, boolean gzipped) {
+            if (ifNoneMatch != null) {
+                String mine = gzipped ? gzipEtag : etag;
+                for (String tag : ifNoneMatch.split(",")) {
+                    String t = tag.trim();
+                    if (t.startsWith("W/")) t = t.substring(2);
+                    if (t.equals("*") || t.equals(mine)) return true;
+                }
+                return false; // If-None-Match takes precedence over If-Modified-Since
+            }
+            if (ifModifiedSince != null) {
+                try {
+                    long since = Instant.from(HTTP_DATE.parse(ifModifiedSince)).toEpochMilli();
+                    return lastModifiedMillis / 1000 <= since / 1000;
+                } catch (Exception e) {
+                    return false; // unparseable date: ignore the header
+                }
+            }
+            return false;
+        }
+    }
+
+    static String contentType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String ext = dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return MIME_TYPES.getOrDefault(ext, "application/octet-stream");
+    }
+
+    private static boolean compressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("json") ||
+            contentType.contains("xml") || contentType.equals("application/wasm");
+    }
+
+    private void reload(Path file) {
+        String key = "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+        try {
+            if (!Files.isRegularFile(file)) {
+                assets.remove(key);
+                return;
+            }
+            long size = Files.size(file);
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            String type = contentType(file.getFileName().toString());
+            if (size > MAX_CACHED_BYTES) {
+                assets.put(key, new Asset(file, type, size, modified, Long.toHexString(size) + "-" + Long.toHexString(modified), null, null));
+                return;
+            }
+            byte[] bytes = Files.readAllBytes(file);
+            byte[] gzip = null;
+            if (bytes.length >= MIN_GZIP_BYTES && compressible(type)) {
+                byte[] packed = gzip(bytes);
+                if (packed.length < bytes.length) gzip = packed;
+            }
+            assets.put(key, new Asset(file, type, bytes.length, modified, hash(bytes), bytes, gzip));
+        } catch (NoSuchFileException e) {
+            assets.remove(key);
+        } catch (IOException e) {
+            System.err.println("Could not load static file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out) {{ def.setLevel(java.util.zip.Deflater.BEST_COMPRESSION); }}) {
+            gz.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(bytes);
+            char[] out = new char[24];
+            for (int i = 0; i < 12; i++) {
+                out[2 * i] = HEX[(d[i] >> 4) & 0xF];
+                out[2 * i + 1] = HEX[d[i] & 0xF];
+            }
+            return new String(out);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---------------- File watching ----------------
+
+    private void startWatcher() {
+        WatchService watcher;
+        Map<WatchKey, Path> dirs = new HashMap<>();
+        try {
+            watcher = root.getFileSystem().newWatchService();
+            registerTree(watcher, root, dirs);
+        } catch (IOException e) {
+            System.err.println("Not watching " + root + " for changes: " + e.getMessage());
+            return;
+        }
+        Thread t = new Thread(() -> watchLoop(watcher, dirs), "static-watch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void registerTree(WatchService watcher, Path dir, Map<WatchKey, Path> dirs) throws IOException {
+        try (Stream<Path> tree = Files.walk(dir)) {
+            for (Path d : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator) {
+                WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                dirs.put(key, d);
+            }
+        }
+    }
+
+    private void watchLoop(WatchService watcher, Map<WatchKey, Path> dirs) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = dirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (dir == null) continue;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    reloadAll();
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                try {
+                    if (Files.isDirectory(changed)) {
+                        registerTree(watcher, changed, dirs);
+                        try (Stream<Path> files = Files.walk(changed)) {
+                            files.filter(Files::isRegularFile).forEach(this::reload);
+                        }
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        // could have been a directory: drop everything under it
+                        String prefix = "/" + root.relativize(changed).toString().replace(File.separatorChar, '/');
+                        assets.keySet().removeIf(k -> k.equals(prefix) || k.startsWith(prefix + "/"));
+                    } else {
+                        reload(changed);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Static reload failed for " + changed + ": " + e.getMessage());
+                }
+            }
+            if (!key.reset()) dirs.remove(key);
+        }
+    }
+
+    private void reloadAll() {
+        try (Stream<Path> files = Files.walk(root)) {
+            Set<String> seen = new HashSet<>();
+            files.filter(Files::isRegularFile).forEach(f -> {
+                seen.add("/" + root.relativize(f).toString().replace(File.separatorChar, '/'));
+                reload(f);
+            });
+            assets.keySet().retainAll(seen);
+        } catch (IOException e) {
+            System.err.println("Static reload failed: " + e.getMessage());
+        }
+    }
+}
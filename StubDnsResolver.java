@@ -0,0 +1,35 @@
+import java.util.*;
+import javax.naming.NameNotFoundException;
+
+/**
+ * Offline resolver for tests and benchmarks.
+ *
+ * -Ddns.stub.domains: comma-separated domains that resolve (with an MX record); "*" (the
+ * default) makes every domain resolve. -Ddns.stub.latencyMs adds a fixed delay per lookup to
+ * imitate a real DNS round trip.
+ */
+public class StubDnsResolver implements DnsResolver {
+    private final Set<String> domains;
+    private final boolean any;
+    private final long latencyMs;
+
+    public StubDnsResolver(Collection<String> domains, long latencyMs) {
+        this.domains = new HashSet<>();
+        for (String d : domains) this.domains.add(d.trim().toLowerCase(Locale.ROOT));
+        this.any = this.domains.contains("*");
+        this.latencyMs = latencyMs;
+    }
+
+    static StubDnsResolver fromConfig() {
+        String list = System.getProperty("dns.stub.domains", "*");
+        return new StubDnsResolver(Arrays.asList(list.split(",")), Long.getLong("dns.stub.latencyMs", 0));
+    }
+
+    @Override
+    public boolean hasRecord(String domain, String type, long timeoutMs) throws Exception {
+        if (latencyMs > 0) Thread.sleep(Math.min(latencyMs, timeoutMs));
+        if (latencyMs > timeoutMs) throw new java.util.concurrent.TimeoutException("stub lookup timed out");
+        if (!any && !domains.contains(domain.toLowerCase(Locale.ROOT))) throw new NameNotFoundException(domain);
+        return "MX".equals(type);
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of ML body suggestions keyed by normalized subject.
+ *
+ * Entries expire {@code ml.cacheTtlMs} after they were computed and the least recently used one
+ * is evicted once {@code ml.cacheSize} is reached. Concurrent misses for the same key are
+ * collapsed: the first caller runs the loader and everyone else waits for its result instead of
+ * starting another prediction. Failed loads are not cached.
+ *
+ * One instance ({@link #shared()}) is used by both WebServer's /api/ml and the CLI.
+ */
+public class SuggestionCache {
+    private static final int CACHE_SIZE = Integer.getInteger("ml.cacheSize", 1000);
+    private static final long CACHE_TTL_MS = Long.getLong("ml.cacheTtlMs", 10 * 60_000);
+
+    private static final SuggestionCache SHARED = new SuggestionCache(CACHE_SIZE, CACHE_TTL_MS);
+
+    /** Computes the value for a cache miss. */
+    public interface Loader {
+        String load(String subject) throws Exception;
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    // Access-ordered; guarded by "this"
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public static SuggestionCache shared() { return SHARED; }
+
+    public SuggestionCache(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    public String get(String subject, Loader loader) throws Exception {
+        String key = normalize(subject);
+        String cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.increment();
+            try {
+                return leader.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        misses.increment();
+        try {
+            String value = loader.load(subject);
+            store(key, value);
+            mine.complete(value);
+            return value;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /** Lower-cased, trimmed, inner whitespace collapsed: "  Re:  Schedule" and "re: schedule" share an entry. */
+    static String normalize(String subject) {
+        if (subject == null) return "";
+        return subject.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private synchronized String lookup(String key) {
+        Entry e = entries.get(key);
+        if (e == null) return null;
+        if (System.nanoTime() - e.createdAt > ttlNanos) {
+            entries.remove(key);
+            expirations.increment();
+            return null;
+        }
+        return e.value;
+    }
+
+    private synchronized void store(String key, String value) {
+        entries.put(key, new Entry(value, System.nanoTime()));
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized int size() { return entries.size(); }
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long coalesced() { return coalesced.sum(); }
+    public long evictions() { return evictions.sum(); }
+    public long expirations() { return expirations.sum(); }
+
+    public String statsJson() {
+        return "{\"size\":" + size() + ",\"hits\":" + hits() + ",\"misses\":" + misses() +
+            ",\"coalesced\":" + coalesced() + ",\"evictions\":" + evictions() + ",\"expirations\":" + expirations() + "}";
+    }
+
+    private static final class Entry {
+        final String value;
+        final long createdAt;
+
+        Entry(String value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Source of suggested email bodies for a subject, used by WebServer's /api/ml and the CLI.
+ *
+ * Implementations:
+ * - {@link RuleSuggestionProvider}: in-process keyword rules loaded from ml_models/email_rules.txt;
+ * - {@link PythonSuggestionProvider}: the external predict_email.py workers, for models that
+ *   need Python.
+ *
+ * {@link #configured()} picks one with -Dml.provider=rules|python (default rules). If the rule
+ * model cannot be loaded it falls back to Python.
+ */
+public interface SuggestionProvider {
+
+    /** Suggested body for subject; may throw if the backend is unavailable. */
+    String suggest(String subject) throws Exception;
+
+    String name();
+
+    /** The process-wide provider, created on first use. */
+    static SuggestionProvider configured() {
+        return Holder.INSTANCE;
+    }
+
+    final class Holder {
+        private static final SuggestionProvider INSTANCE = create(System.getProperty("ml.provider", "rules"));
+
+        private Holder() {}
+
+        private static SuggestionProvider create(String kind) {
+            if ("python".equalsIgnoreCase(kind)) return new PythonSuggestionProvider(PythonWorkerPool.shared());
+            try {
+                return RuleSuggestionProvider.load(RuleSuggestionProvider.MODEL_PATH);
+            } catch (Exception e) {
+                System.err.println("Rule model unavailable (" + e.getMessage() + "), falling back to Python predictor");
+                return new PythonSuggestionProvider(PythonWorkerPool.shared());
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestMailArchive {
+    static boolean passed = true;
+
+    public static void main(String[] args) throws Exception {
+        // A scratch archive directory, like the one the Archiver writes under archive.dir
+        File dir = new File(System.getProperty("test.archiveDir", "test-archive"));
+        if (dir.isDirectory()) for (File f : dir.listFiles()) f.delete();
+        MailArchive archive = new MailArchive(dir);
+
+        String legacyText = "Hi bob, written before bodies moved out of inbox";
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 200; i++) longText.append("The quarterly report is attached, line ").append(i).append(".\n");
+        String fanoutText = "Party on friday";
+        MessageBodies.Encoded legacy = MessageBodies.encode(legacyText);
+        MessageBodies.Encoded deflated = MessageBodies.encode(longText.toString());
+        MessageBodies.Encoded fanout = MessageBodies.encode(fanoutText);
+        check("long body is deflated", deflated.codec == MessageBodies.CODEC_DEFLATE);
+
+        String first;
+        try (MailArchive.SegmentWriter w = archive.newSegment()) {
+            first = w.name;
+            // a legacy body: encoded from the inbox.body column, as Archiver.append does
+            w.addBody(legacy.hash, legacy.codec, legacy.size, legacy.data);
+            w.addMail(1, 0, legacy.hash, "alice@example.com", "bob@example.com", "Café ✓", "Hi bob", "2024-01-01 10:00:00", null);
+            // two rows sharing one body, with the same timestamp: newest first means highest id first
+            w.addBody(deflated.hash, deflated.codec, deflated.size, deflated.data);
+            check("body is stored once per segment", w.hasBody(deflated.hash));
+            w.addMail(2, 0, deflated.hash, "alice@example.com", "bob@example.com", "Report", "The quarterly", "2024-01-02 09:00:00", null);
+            w.addMail(3, 0, deflated.hash, "alice@example.com", "bob@example.com", "Report again", "The quarterly", "2024-01-02 09:00:00", null);
+            // no body and no subject
+            w.addMail(4, 0, null, "carol@example.com", "bob@example.com", null, "", "2023-12-31 23:59:59", null);
+            // a fan-out: the first row is the sender's copy and carries the summary
+            w.addBody(fanout.hash, fanout.codec, fanout.size, fanout.data);
+            w.addList(10, "carol@example.com, dave@example.com", "", "erin@example.com");
+            w.addMail(10, 10, fanout.hash, "alice@example.com", "carol@example.com", "Party", fanoutText, "2024-01-03 08:00:00", "carol@example.com, dave@example.com");
+            w.addMail(11, 10, fanout.hash, "alice@example.com", "dave@example.com", "Party", fanoutText, "2024-01-03 08:00:00", "carol@example.com, dave@example.com");
+            w.addMail(12, 10, fanout.hash, "alice@example.com", "erin@example.com", "Party", fanoutText, "2024-01-03 08:00:00", "carol@example.com, dave@example.com");
+            w.finish();
+        }
+        try (MailArchive.SegmentWriter w = archive.newSegment()) {
+            w.addMail(99, 0, null, "x@example.com", "bob@example.com", "never finished", "", "2024-01-01 00:00:00", null);
+        }
+        check("an unfinished segment leaves no file", Objects.requireNonNull(dir.list()).length == 1);
+
+        // records and the key index, read back through a fresh archive (footer and memory map)
+        MailArchive reader = new MailArchive(dir);
+        check("bob's inbox, newest first", ids(reader.scan("bob@example.com", false, null, 0)).equals(List.of(3L, 2L, 1L, 4L)));
+        check("seek past (09:00:00, 3)", ids(reader.scan("bob@example.com", false, "2024-01-02 09:00:00", 3)).equals(List.of(2L, 1L, 4L)));
+        check("seek past (09:00:00, 2)", ids(reader.scan("bob@example.com", false, "2024-01-02 09:00:00", 2)).equals(List.of(1L, 4L)));
+        check("seek past the oldest", ids(reader.scan("bob@example.com", false, "2023-12-31 23:59:59", 4)).isEmpty());
+        check("alice's sent mail has one row per fan-out", ids(reader.scan("alice@example.com", true, null, 0)).equals(List.of(10L, 3L, 2L, 1L)));
+        check("a bcc recipient has their own row", ids(reader.scan("erin@example.com", false, null, 0)).equals(List.of(12L)));
+        check("unknown mailbox is empty", ids(reader.scan("nobody@example.com", false, null, 0)).isEmpty());
+
+        MailArchive.Mail m1 = reader.find(1);
+        check("legacy body", m1 != null && legacyText.equals(m1.body()));
+        check("non-ASCII subject", m1 != null && "Café ✓".equals(m1.subject) && "2024-01-01 10:00:00".equals(m1.time));
+        check("deflated body", longText.toString().equals(reader.find(3).body()));
+        MailArchive.Mail m4 = reader.find(4);
+        check("missing body and subject", m4 != null && "".equals(m4.body()) && m4.subject == null);
+        MailArchive.Mail m10 = reader.find(10), m11 = reader.find(11);
+        check("sender's copy keeps the summary", "carol@example.com, dave@example.com".equals(m10.summary) && m10.listId == 10);
+        check("recipient rows do not", m11.summary == null && m11.listId == 10 && fanoutText.equals(m11.body()));
+        check("recipient lists", Arrays.equals(m11.lists(), new String[] {"carol@example.com, dave@example.com", "", "erin@example.com"}));
+        check("single mail has no lists", m1.lists() == null);
+        check("unknown ids", reader.find(5) == null && reader.find(0) == null && reader.find(13) == null);
+        check("id index", Arrays.equals(reader.ids(first), new long[] {1, 2, 3, 4, 10, 11, 12}));
+        check("highest id below 11", reader.highestId(0, 11) == 10 && reader.highestId(5, 10) == 0);
+        check("footer counts", reader.statsJson().contains("\"segments\":1,\"messages\":7"));
+
+        // a segment cut short is skipped, the others still read
+        byte[] bytes = Files.readAllBytes(new File(dir, first).toPath());
+        File broken = new File(dir, "seg-000000000050.arc");
+        Files.write(broken.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        check("truncated segment skipped", new MailArchive(dir).statsJson().contains("\"segments\":1,\"messages\":7"));
+        broken.delete();
+
+        // a second segment merges into the same listing
+        String second;
+        try (MailArchive.SegmentWriter w = archive.newSegment()) {
+            second = w.name;
+            w.addMail(20, 0, null, "dave@example.com", "bob@example.com", "Lunch", "", "2024-01-01 12:00:00", null);
+            w.finish();
+        }
+        check("two segments merge", ids(reader.scan("bob@example.com", false, null, 0)).equals(List.of(3L, 2L, 20L, 1L, 4L)));
+
+        // one segment removed and another added between two listings: same count, new names
+        new File(dir, first).delete();
+        try (MailArchive.SegmentWriter w = archive.newSegment()) {
+            w.addMail(30, 0, null, "erin@example.com", "bob@example.com", "New", "", "2024-02-01 12:00:00", null);
+            w.finish();
+        }
+        check("relisted after remove and add", ids(reader.scan("bob@example.com", false, null, 0)).equals(List.of(30L, 20L))
+            && reader.find(1) == null && reader.segmentNames().size() == 2 && reader.segmentNames().get(0).equals(second));
+
+        System.out.println(passed ? "TEST PASSED" : "TEST FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    static List<Long> ids(MailArchive.Scan scan) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        for (MailArchive.Mail m; (m = scan.next()) != null; ) ids.add(m.id);
+        return ids;
+    }
+
+    static void check(String what, boolean ok) {
+        System.out.println(what + ": " + (ok ? "ok" : "FAILED"));
+        passed &= ok;
+    }
+}
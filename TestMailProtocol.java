@@ -0,0 +1,77 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class TestMailProtocol {
+    public static void main(String[] args) throws Exception {
+        // Start the receiver in-process on its own port, like TestWebApi does for the Web server
+        int port = Integer.getInteger("test.receiverPort", 5050);
+        DatabaseCopy db = new DatabaseCopy(new Database());
+        Thread server = new Thread(() -> {
+            try { new EmailReceiverServer(db, port).run(); } catch (Exception e) { e.printStackTrace(); }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(1000); // wait for server
+
+        // Frames whose declared length covers less than their fields need
+        Map<String, byte[]> shortFrames = new LinkedHashMap<>();
+        shortFrames.put("empty MAIL", frame(MailProtocol.MAIL, new byte[0]));
+        shortFrames.put("MAIL without fields", frame(MailProtocol.MAIL, new byte[] {0, 0, 0, 1}));
+        shortFrames.put("MAIL with cut string length", frame(MailProtocol.MAIL, new byte[] {0, 0, 0, 1, 0, 0}));
+        shortFrames.put("empty BATCH", frame(MailProtocol.BATCH, new byte[0]));
+        shortFrames.put("BATCH without count", frame(MailProtocol.BATCH, new byte[] {0, 0, 0, 1}));
+        shortFrames.put("empty FANOUT", frame(MailProtocol.FANOUT, new byte[0]));
+        shortFrames.put("FANOUT without lists", frame(MailProtocol.FANOUT, new byte[] {0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}));
+
+        boolean passed = true;
+        for (Map.Entry<String, byte[]> e : shortFrames.entrySet()) {
+            boolean closed = sendAndExpectClose(port, e.getValue());
+            boolean alive = receiverAlive(port);
+            System.out.println(e.getKey() + ": connection closed=" + closed + ", receiver alive=" + alive);
+            passed &= closed && alive;
+        }
+        System.out.println(passed ? "TEST PASSED" : "TEST FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    static byte[] frame(byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        return bytes.toByteArray();
+    }
+
+    // Negotiates version 2, sends the frame and reads until the server closes the connection
+    static boolean sendAndExpectClose(int port, byte[] frame) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            s.setSoTimeout(5000);
+            OutputStream out = s.getOutputStream();
+            out.write(MailProtocol.hello(2));
+            out.write(frame);
+            out.flush();
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[256];
+            while (in.read(buf) >= 0) {
+                // hello reply, then possibly an ERROR frame
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    // A fresh connection still gets the version reply, so the selector thread is running
+    static boolean receiverAlive(int port) {
+        try (Socket s = new Socket("localhost", port)) {
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(MailProtocol.hello(2));
+            byte[] reply = new DataInputStream(s.getInputStream()).readNBytes(MailProtocol.MAGIC.length + 1);
+            return reply.length == MailProtocol.MAGIC.length + 1 && MailProtocol.startsWithMagic(reply, reply.length);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.*;
+
+/**
+ * Compares token verification cost: SessionStore map lookup vs SignedTokenManager HMAC check.
+ *
+ * Usage: java TokenBenchmark [tokens] [lookups]
+ */
+public class TokenBenchmark {
+    public static void main(String[] args) {
+        int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        SessionStore store = new SessionStore(60 * 60_000L, 24 * 60 * 60_000L, 1, tokens, null);
+        byte[] secret = new byte[32];
+        new Random(42).nextBytes(secret);
+        SignedTokenManager signed = new SignedTokenManager(
+            Collections.singletonList(new SignedTokenManager.Key("bench", secret)), 60 * 60_000L, null, null);
+
+        String[] storeTokens = new String[tokens];
+        String[] signedTokens = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            String email = "user" + i + "@example.com";
+            storeTokens[i] = store.create(email);
+            signedTokens[i] = signed.create(email);
+        }
+
+        // two rounds so the second runs on warmed-up code
+        for (int round = 1; round <= 2; round++) {
+            System.out.printf(Locale.ROOT, "round %d: store %.1f ns/lookup, signed %.1f ns/lookup%n", round,
+                time(store, storeTokens, lookups), time(signed, signedTokens, lookups));
+        }
+        store.close();
+        signed.close();
+    }
+
+    private static double time(SessionManager sessions, String[] tokens, int lookups) {
+        int misses = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (sessions.lookup(tokens[i % tokens.length]) == null) misses++;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (misses > 0) System.out.println("unexpected misses: " + misses);
+        return (double) elapsed / lookups;
+    }
+}
@@ -6,31 +6,85 @@ import java.nio.file.Path;
 import java.util.*;
 
 public class WebServer {
-    private static final int PORT = 8080;
+    // -Dweb.port lets several nodes share one Users.db on localhost (use -Dsession.mode=signed)
+    private static final int PORT = Integer.getInteger("web.port", 8080);
 
-    // Simple in-memory session store: token -> email
-    private static final java.util.concurrent.ConcurrentMap<String,String> SESSIONS = new java.util.concurrent.ConcurrentHashMap<>();
+    // token -> email; in-process SessionStore or stateless signed tokens (-Dsession.mode)
+    private static SessionManager SESSIONS;
 
     public static void main(String[] args) throws Exception {
         Database db = new Database();
         DatabaseCopy dbCopy = new DatabaseCopy(db);
+        SESSIONS = SessionManager.fromConfig(dbCopy);
+        InboxStreams streams = new InboxStreams(dbCopy, SESSIONS);
 
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
-        server.createContext("/", new StaticHandler("web"));
+        server.createContext("/", timed("static", new StaticHandler("web")));
 
-        server.createContext("/api/register", new RegisterHandler(dbCopy));
-        server.createContext("/api/login", new LoginHandler(dbCopy));
-        server.createContext("/api/send", new SendHandler(dbCopy));
-        server.createContext("/api/inbox", new InboxHandler(dbCopy));
-        server.createContext("/api/sent", new SentHandler(dbCopy));
-        server.createContext("/api/ml", new MlHandler());
+        server.createContext("/api/register", timed("register", new RegisterHandler(dbCopy)));
+        server.createContext("/api/login", timed("login", new LoginHandler(dbCopy)));
+        server.createContext("/api/logout", timed("logout", new LogoutHandler(streams)));
+        server.createContext("/api/send", timed("send", new SendHandler(dbCopy)));
+        server.createContext("/api/send/stats", timed("send_stats", new SendStatsHandler(dbCopy)));
+        server.createContext("/api/inbox", timed("inbox", new InboxHandler(dbCopy)));
+        server.createContext("/api/inbox/stream", timed("inbox_stream", new InboxStreamHandler(streams)));
+        server.createContext("/api/inbox/stream/stats", timed("inbox_stream_stats", new StreamStatsHandler(streams)));
+        server.createContext("/api/sent", timed("sent", new SentHandler(dbCopy)));
+        server.createContext("/api/search", timed("search", new SearchHandler(dbCopy)));
+        server.createContext("/api/message/", timed("message", new MessageHandler(dbCopy)));
+        server.createContext("/api/ml", timed("ml", new MlHandler()));
+        server.createContext("/api/ml/stats", timed("ml_stats", new MlStatsHandler()));
+        server.createContext("/api/pool", timed("pool", new PoolStatsHandler(dbCopy)));
+        server.createContext("/api/cache/stats", timed("cache_stats", new MailboxCacheStatsHandler(dbCopy)));
+        server.createContext("/api/auth/stats", timed("auth_stats", new AuthStatsHandler(dbCopy)));
+        server.createContext("/api/sessions/stats", timed("sessions_stats", new SessionStatsHandler()));
+        server.createContext("/api/archive/stats", timed("archive_stats", new ArchiveStatsHandler(dbCopy)));
+        server.createContext("/api/metrics", new MetricsHandler());
 
-        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        // load the suggestion model (or pre-warm Python workers) before the first /api/ml call
+        System.out.println("ML suggestions: " + SuggestionProvider.configured().name());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(SESSIONS::close, "session-snapshot"));
+
+        // time between a request being read and a thread picking it up
+        server.setExecutor(Metrics.queueTimed(java.util.concurrent.Executors.newCachedThreadPool(),
+            Metrics.timer("http_queue_seconds", "Time requests wait for a handler thread")));
         server.start();
         System.out.println("Web UI started at http://localhost:" + PORT);
     }
 
     // ---------------- Handlers ----------------
+
+    // Latency and status class of every request to handler; streams count until handle returns
+    private static HttpHandler timed(String name, HttpHandler handler) {
+        Metrics.Timer latency = Metrics.timer("http_request_seconds", "Time spent in each WebServer handler", "handler", name);
+        Metrics.Counter[] statuses = new Metrics.Counter[6];
+        for (int i = 1; i < statuses.length; i++) {
+            statuses[i] = Metrics.counter("http_responses_total", "Responses by handler and status class", "handler", name, "code", i + "xx");
+        }
+        return ex -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(ex);
+            } finally {
+                latency.recordSince(start);
+                int code = ex.getResponseCode() / 100;
+                if (code >= 1 && code <= 5) statuses[code].inc();
+            }
+        };
+    }
+
+    // Prometheus text format, see Metrics
+    static class MetricsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            byte[] bytes = Metrics.prometheus().getBytes("UTF-8");
+            ex.getResponseHeaders().add("Content-Type","text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        }
+    }
     static class RegisterHandler implements HttpHandler {
         private DatabaseCopy dbCopy;
         RegisterHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
@@ -52,7 +106,12 @@ public class WebServer {
             String domain = email.substring(email.indexOf('@') + 1);
             if (!dbCopy.isEmailDomainValid(domain)) { sendResponse(ex,400,"{\"success\":false,\"message\":\"Email domain not found\"}"); return; }
 
-            boolean ok = dbCopy.register(email, password);
+            boolean ok;
+            try {
+                ok = dbCopy.register(email, password);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                sendResponse(ex,503,"{\"success\":false,\"message\":\"Server busy, please retry\"}"); return;
+            }
             if (ok) sendResponse(ex,200,"{\"success\":true}"); else sendResponse(ex,400,"{\"success\":false,\"message\":\"Registration failed (user exists or other error)\"}");
         }
     }
@@ -71,15 +130,32 @@ public class WebServer {
             String email = m.get("email");
             String password = m.get("password");
             if (email == null || password == null) { sendResponse(ex,400,"{\"success\":false}"); return; }
-            boolean ok = dbCopy.login(email, password);
+            boolean ok;
+            try {
+                ok = dbCopy.login(email, password);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                sendResponse(ex,503,"{\"success\":false,\"message\":\"Server busy, please retry\"}"); return;
+            }
             if (!ok) { sendResponse(ex,200,"{\"success\":false}"); return; }
             // generate token
-            String token = java.util.UUID.randomUUID().toString();
-            SESSIONS.put(token, email);
+            String token = SESSIONS.create(email);
             sendResponse(ex,200,"{\"success\":true,\"token\":\"" + token + "\"}");
         }
     }
 
+    static class LogoutHandler implements HttpHandler {
+        private InboxStreams streams;
+        LogoutHandler(InboxStreams streams) { this.streams = streams; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            String token = getTokenFromExchange(ex);
+            boolean ok = SESSIONS.invalidate(token);
+            if (ok) streams.closeToken(token); // a logged-out token stops receiving mail at once
+            sendResponse(ex,200,"{\"success\":" + ok + "}");
+        }
+    }
+
     static class SendHandler implements HttpHandler {
         private DatabaseCopy dbCopy;
         SendHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
@@ -87,21 +163,63 @@ public class WebServer {
             setCors(ex);
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
             String token = getTokenFromExchange(ex);
-            String authEmail = SESSIONS.get(token);
+            String authEmail = SESSIONS.lookup(token);
             if (authEmail == null) { sendResponse(ex,401,"{\"success\":false,\"message\":\"Unauthorized\"}"); return; }
             String body = readRequest(ex);
             Map<String,String> m = parseBody(body);
             String to = m.get("to");
+            String cc = m.get("cc");
+            String bcc = m.get("bcc");
             String subject = m.get("subject");
             String message = m.get("body");
-            if (to==null || subject==null || message==null) { sendResponse(ex,400,"{\"success\":false,\"message\":\"Missing fields\"}"); return; }
-            // validate recipient format
-            if (!dbCopy.isEmailFormatValid(to)) {
-                sendResponse(ex,400,"{\"success\":false,\"message\":\"Invalid recipient email format\"}");
-                return;
+            if ((to==null && cc==null && bcc==null) || subject==null || message==null) { sendResponse(ex,400,"{\"success\":false,\"message\":\"Missing fields\"}"); return; }
+            Recipients recipients;
+            try {
+                recipients = Recipients.parse(to, cc, bcc, dbCopy::isEmailFormatValid);
+            } catch (IllegalArgumentException e) {
+                sendResponse(ex,400,"{\"success\":false,\"message\":\"" + escapeJson(e.getMessage()) + "\"}"); return;
+            }
+            if (recipients.acceptedCount() == 0) {
+                sendResponse(ex,400,sendResult(recipients, false, "Invalid recipient email format", 0)); return;
             }
-            dbCopy.sendMail(authEmail, to, subject, message); // use authenticated email as sender
-            sendResponse(ex,200,"{\"success\":true}");
+            long start = System.nanoTime();
+            try {
+                dbCopy.sendMailAsync(authEmail, recipients, subject, message).get(); // use authenticated email as sender
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(ex,503,"{\"success\":false,\"message\":\"Interrupted\"}"); return;
+            } catch (java.util.concurrent.ExecutionException e) {
+                recipients.failed(); // not reached: sendMailAsync reports failures per recipient
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            boolean ok = recipients.count("failed") == 0;
+            sendResponse(ex, ok ? 200 : 503, sendResult(recipients, ok, null, elapsedMs));
+        }
+
+        // {"success":..,"stored":n,"rejected":n,"elapsedMs":n,"recipients":[{"address","kind","status","id"}]}
+        private static String sendResult(Recipients r, boolean ok, String message, long elapsedMs) throws IOException {
+            StringWriter sw = new StringWriter();
+            try (JsonWriter out = new JsonWriter(sw)) {
+                out.beginObject().name("success").value(ok);
+                if (message != null) out.name("message").value(message);
+                out.name("stored").value(r.count("stored"))
+                   .name("rejected").value(r.count("invalid") + r.count("duplicate"))
+                   .name("elapsedMs").value(elapsedMs)
+                   .name("recipients");
+                r.writeJson(out);
+                out.endObject();
+            }
+            return sw.toString();
+        }
+    }
+
+    static class SendStatsHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        SendStatsHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,dbCopy.getWriterStatsJson());
         }
     }
 
@@ -112,10 +230,51 @@ public class WebServer {
             setCors(ex);
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
             String token = getTokenFromExchange(ex);
-            String authEmail = SESSIONS.get(token);
+            String authEmail = SESSIONS.lookup(token);
             if (authEmail == null) { sendResponse(ex,401,"[]"); return; }
-            String json = dbCopy.getInboxJson(authEmail);
-            sendResponse(ex,200,json);
+            String query = ex.getRequestURI().getQuery();
+            String limitParam = queryParam(query, "limit");
+            String cursorParam = queryParam(query, "cursor");
+            int limit = 0; // legacy clients (no limit/cursor): whole mailbox as a bare array
+            PageCursor cursor = null;
+            if (limitParam != null || cursorParam != null) {
+                try {
+                    limit = PageCursor.clampLimit(limitParam);
+                    cursor = PageCursor.decode(cursorParam);
+                } catch (IllegalArgumentException e) {
+                    sendResponse(ex,400,"{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+                    return;
+                }
+            }
+            int pageLimit = limit;
+            PageCursor pageCursor = cursor;
+            long version = dbCopy.inboxVersion(authEmail);
+            sendMailbox(ex, dbCopy.mailboxEtag(version), os -> dbCopy.writeInbox(authEmail, pageLimit, pageCursor, version, os));
+        }
+    }
+
+    // Server-sent events for new inbox mail. EventSource cannot set headers, so the token may come as ?token=
+    static class InboxStreamHandler implements HttpHandler {
+        private InboxStreams streams;
+        InboxStreamHandler(InboxStreams streams) { this.streams = streams; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            String token = getTokenFromExchange(ex);
+            String authEmail = SESSIONS.lookup(token);
+            if (authEmail == null) { sendResponse(ex,401,"{\"success\":false,\"message\":\"Unauthorized\"}"); return; }
+            String last = ex.getRequestHeaders().getFirst("Last-Event-ID");
+            if (last == null) last = queryParam(ex.getRequestURI().getQuery(), "lastEventId");
+            long lastEventId = -1;
+            try {
+                if (last != null && !last.isEmpty()) lastEventId = Long.parseLong(last.trim());
+            } catch (NumberFormatException e) {
+                sendResponse(ex,400,"{\"error\":\"Bad Last-Event-ID\"}"); return;
+            }
+            int status = streams.open(ex, authEmail, token, lastEventId);
+            if (status == 429) sendResponse(ex,429,"{\"error\":\"Too many open streams\"}");
+            else if (status != 200) sendResponse(ex,status,"{\"error\":\"Server busy\"}");
+            // on 200 the exchange stays open and InboxStreams owns it
         }
     }
 
@@ -126,10 +285,77 @@ public class WebServer {
             setCors(ex);
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
             String token = getTokenFromExchange(ex);
-            String authEmail = SESSIONS.get(token);
+            String authEmail = SESSIONS.lookup(token);
             if (authEmail == null) { sendResponse(ex,401,"[]"); return; }
-            String json = dbCopy.getSentJson(authEmail);
-            sendResponse(ex,200,json);
+            String query = ex.getRequestURI().getQuery();
+            String limitParam = queryParam(query, "limit");
+            String cursorParam = queryParam(query, "cursor");
+            int limit = 0; // legacy clients (no limit/cursor): whole mailbox as a bare array
+            PageCursor cursor = null;
+            if (limitParam != null || cursorParam != null) {
+                try {
+                    limit = PageCursor.clampLimit(limitParam);
+                    cursor = PageCursor.decode(cursorParam);
+                } catch (IllegalArgumentException e) {
+                    sendResponse(ex,400,"{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+                    return;
+                }
+            }
+            int pageLimit = limit;
+            PageCursor pageCursor = cursor;
+            long version = dbCopy.sentVersion(authEmail);
+            sendMailbox(ex, dbCopy.mailboxEtag(version), os -> dbCopy.writeSent(authEmail, pageLimit, pageCursor, version, os));
+        }
+    }
+
+    // GET /api/message/{id}: one message with its full body; lists only carry a preview.
+    // Messages never change once stored, so the id is a sufficient ETag.
+    static class MessageHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        MessageHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            String authEmail = SESSIONS.lookup(getTokenFromExchange(ex));
+            if (authEmail == null) { sendResponse(ex,401,"{\"success\":false,\"message\":\"Unauthorized\"}"); return; }
+            long id;
+            try {
+                id = Long.parseLong(ex.getRequestURI().getPath().substring("/api/message/".length()));
+            } catch (NumberFormatException e) {
+                sendResponse(ex,400,"{\"error\":\"Bad message id\"}"); return;
+            }
+            String json = dbCopy.getMessageJson(authEmail, id);
+            // other users' messages look the same as missing ones
+            if (json == null) { sendResponse(ex,404,"{\"error\":\"Not found\"}"); return; }
+            byte[] bytes = json.getBytes("UTF-8");
+            sendMailbox(ex, "\"m" + id + "\"", os -> os.write(bytes));
+        }
+    }
+
+    // GET /api/search?q=words&limit=20&offset=0 over the caller's sent and received mail
+    static class SearchHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        SearchHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            String authEmail = SESSIONS.lookup(getTokenFromExchange(ex));
+            if (authEmail == null) { sendResponse(ex,401,"{\"success\":false,\"message\":\"Unauthorized\"}"); return; }
+            String query = ex.getRequestURI().getQuery();
+            String q = queryParam(query, "q");
+            if (q == null || q.trim().isEmpty()) { sendResponse(ex,400,"{\"error\":\"Missing q\"}"); return; }
+            int limit, offset;
+            try {
+                String l = queryParam(query, "limit");
+                limit = l == null ? 20 : PageCursor.clampLimit(l);
+                String o = queryParam(query, "offset");
+                offset = o == null ? 0 : Integer.parseInt(o);
+                if (offset < 0 || offset > 10_000) throw new IllegalArgumentException("offset must be 0..10000");
+            } catch (IllegalArgumentException e) {
+                sendResponse(ex,400,"{\"error\":\"" + escapeJson(e.getMessage()) + "\"}");
+                return;
+            }
+            sendJsonStream(ex,200, out -> dbCopy.streamSearch(authEmail, q, limit, offset, out));
         }
     }
 
@@ -141,24 +367,97 @@ public class WebServer {
             String subject = queryParam(query, "subject");
             if (subject == null) { sendResponse(ex,400,"{\"body\":\"\"}"); return; }
             String body = runMl(subject);
-            sendResponse(ex,200,"{\"body\":\"" + escapeJson(body) + "\"}");
+            sendCompressible(ex,200,"{\"body\":\"" + escapeJson(body) + "\"}");
+        }
+    }
+
+    // Suggestion cache hit/miss/eviction counters
+    static class MlStatsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,SuggestionCache.shared().statsJson());
+        }
+    }
+
+    // Password hashing throughput and queue depth
+    static class AuthStatsHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        AuthStatsHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,dbCopy.getAuthStatsJson());
+        }
+    }
+
+    // Active sessions (store mode) or issued/verified tokens (signed mode)
+    static class SessionStatsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,SESSIONS.statsJson());
+        }
+    }
+
+    // Open inbox streams and events delivered, rejected and dropped
+    static class StreamStatsHandler implements HttpHandler {
+        private InboxStreams streams;
+        StreamStatsHandler(InboxStreams streams) { this.streams = streams; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,streams.statsJson());
+        }
+    }
+
+    static class ArchiveStatsHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        ArchiveStatsHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,dbCopy.getArchiveStatsJson());
+        }
+    }
+
+    // Connection pool stats, used to size db.readers
+    static class PoolStatsHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        PoolStatsHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,dbCopy.getPoolStatsJson());
+        }
+    }
+
+    // Cached inbox/sent responses: hits, misses, bytes and mailbox versions held
+    static class MailboxCacheStatsHandler implements HttpHandler {
+        private DatabaseCopy dbCopy;
+        MailboxCacheStatsHandler(DatabaseCopy dbCopy) { this.dbCopy = dbCopy; }
+        public void handle(HttpExchange ex) throws IOException {
+            setCors(ex);
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            sendResponse(ex,200,dbCopy.getMailboxCacheStatsJson());
         }
     }
 
     // ---------------- Utilities ----------------
+    private static final Metrics.Timer ML_TIME = Metrics.timer("ml_seconds", "Time to produce a body suggestion, cached or not");
+
     private static String runMl(String subject) {
-        List<String> cmd = Arrays.asList("python", "ml_models/predict_email.py", subject);
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.redirectErrorStream(true);
+        long start = System.nanoTime();
         try {
-            Process p = pb.start();
-            boolean ok = p.waitFor(5, java.util.concurrent.TimeUnit.SECONDS);
-            if (!ok) { p.destroy(); return ""; }
-            try (InputStream is = p.getInputStream(); java.util.Scanner s = new java.util.Scanner(is).useDelimiter("\\A")) {
-                return s.hasNext() ? s.next().trim() : "";
-            }
+            return SuggestionCache.shared().get(subject, SuggestionProvider.configured()::suggest);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
         } catch (Exception e) {
+            System.err.println("ML prediction failed: " + e.getMessage());
             return "";
+        } finally {
+            ML_TIME.recordSince(start);
         }
     }
 
@@ -194,33 +493,173 @@ public class WebServer {
         try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
     }
 
+    // Body producer for sendJsonStream
+    interface JsonBody {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    // Same as sendResponse, but compressed when the client accepts it and the body is large enough
+    private static void sendCompressible(HttpExchange ex, int code, String response) throws IOException {
+        ex.getResponseHeaders().add("Content-Type","application/json; charset=utf-8");
+        try (OutputStream os = CompressedResponse.open(ex, code)) { os.write(response.getBytes("UTF-8")); }
+    }
+
+    // Streams a JSON body (chunked and compressed once it passes compress.minBytes); nothing is
+    // buffered beyond the writer's 8 KB. A failure after the headers went out can only truncate
+    // the body, so it is logged.
+    private static void sendJsonStream(HttpExchange ex, int code, JsonBody body) throws IOException {
+        ex.getResponseHeaders().add("Content-Type","application/json; charset=utf-8");
+        try (OutputStream os = CompressedResponse.open(ex, code)) {
+            JsonWriter out = new JsonWriter(os);
+            body.write(out);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Streaming response for " + ex.getRequestURI().getPath() + " aborted: " + e.getMessage());
+        }
+    }
+
+    // Mailbox body producer for sendMailbox
+    interface RawBody {
+        void write(OutputStream os) throws IOException;
+    }
+
+    // Answers 304 when the client already has this mailbox version (or message), else streams the (possibly
+    // cached) body through CompressedResponse. Bodies depend on the token, so caches must keep them private.
+    private static void sendMailbox(HttpExchange ex, String etag, RawBody body) throws IOException {
+        ex.getResponseHeaders().add("ETag", etag);
+        ex.getResponseHeaders().add("Cache-Control", "private, no-cache");
+        if (etagMatches(ex.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+        ex.getResponseHeaders().add("Content-Type","application/json; charset=utf-8");
+        try (OutputStream os = CompressedResponse.open(ex, 200)) {
+            body.write(os);
+        } catch (IOException e) {
+            System.err.println("Streaming response for " + ex.getRequestURI().getPath() + " aborted: " + e.getMessage());
+        }
+    }
+
+    // Weak comparison, as If-None-Match requires
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        String mine = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.startsWith("W/")) t = t.substring(2);
+            if (t.equals("*") || t.equals(mine)) return true;
+        }
+        return false;
+    }
+
+    // Flat JSON object or form-encoded fields. Arrays of strings (and repeated form keys, e.g.
+    // to=a&to=b) become one comma-separated value, which is how recipient lists arrive.
     private static Map<String,String> parseBody(String body) {
         Map<String,String> m = new HashMap<>();
         if (body == null || body.isEmpty()) return m;
-        // try form-encoded
-        if (body.contains("=") && body.contains("&")) {
-            String[] parts = body.split("&");
-            for (String p: parts) {
-                String[] kv = p.split("=",2);
-                if (kv.length==2) m.put(urlDecode(kv[0]), urlDecode(kv[1]));
+        String trimmed = body.trim();
+        if (trimmed.startsWith("{")) {
+            try {
+                new FlatJson(trimmed, m).object();
+            } catch (IllegalArgumentException e) {
+                m.clear(); // malformed: treated like missing fields
             }
             return m;
         }
-        // crude JSON parse for simple flat objects {"k":"v"}
-        body = body.trim();
-        if (body.startsWith("{")) {
-            for (String pair : body.substring(1, body.length()-1).split(",")) {
-                String[] kv = pair.split(":",2);
-                if (kv.length==2) {
-                    String key = kv[0].trim().replaceAll("^\"|\"$", "");
-                    String val = kv[1].trim().replaceAll("^\"|\"$", "");
-                    m.put(key, val);
-                }
+        if (body.contains("=")) {
+            for (String p : body.split("&")) {
+                String[] kv = p.split("=",2);
+                if (kv.length==2) m.merge(urlDecode(kv[0]), urlDecode(kv[1]), (a, b) -> a + "," + b);
             }
         }
         return m;
     }
 
+    // Just enough JSON for request bodies: one object of strings, numbers, booleans, nulls and arrays of those
+    private static final class FlatJson {
+        private final String s;
+        private final Map<String,String> into;
+        private int i;
+
+        FlatJson(String s, Map<String,String> into) { this.s = s; this.into = into; }
+
+        void object() {
+            expect('{');
+            if (peek() == '}') { i++; return; }
+            do {
+                String key = string();
+                expect(':');
+                String value;
+                if (peek() == '[') {
+                    i++;
+                    List<String> items = new ArrayList<>();
+                    if (peek() != ']') {
+                        do { String v = scalar(); if (v != null) items.add(v); } while (comma());
+                    }
+                    expect(']');
+                    value = String.join(",", items);
+                } else {
+                    value = scalar();
+                }
+                if (value != null) into.put(key, value);
+            } while (comma());
+            expect('}');
+        }
+
+        private String scalar() {
+            char c = peek();
+            if (c == '"') return string();
+            int start = i;
+            while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) i++;
+            String word = s.substring(start, i);
+            if (word.isEmpty()) throw new IllegalArgumentException("Value expected at " + start);
+            return word.equals("null") ? null : word;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (i >= s.length()) throw new IllegalArgumentException("Unterminated string");
+                char c = s.charAt(i++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') { sb.append(c); continue; }
+                if (i >= s.length()) throw new IllegalArgumentException("Unterminated escape");
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (i + 4 > s.length()) throw new IllegalArgumentException("Bad \\u escape");
+                        sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default: sb.append(e); // \" \\ \/
+                }
+            }
+        }
+
+        private boolean comma() {
+            if (peek() != ',') return false;
+            i++;
+            return true;
+        }
+
+        private void expect(char c) {
+            if (peek() != c) throw new IllegalArgumentException("Expected '" + c + "' at " + i);
+            i++;
+        }
+
+        private char peek() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+            return i < s.length() ? s.charAt(i) : 0;
+        }
+    }
+
     private static String urlDecode(String s) {
         try { return java.net.URLDecoder.decode(s, "UTF-8"); } catch (Exception e) { return s; }
     }
@@ -235,38 +674,90 @@ public class WebServer {
     }
 
     private static String escapeJson(String s) {
-        if (s==null) return "";
-        return s.replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n");
+        return JsonWriter.escape(s);
     }
 
     // Simple static file handler
+    // Serves web/ from the in-memory StaticAssets cache with conditional GET and gzip
     static class StaticHandler implements HttpHandler {
-        private Path root;
-        StaticHandler(String rootDir) { this.root = java.nio.file.Paths.get(rootDir); }
+        private final StaticAssets assets;
+        StaticHandler(String rootDir) throws IOException { this.assets = new StaticAssets(java.nio.file.Paths.get(rootDir)); }
         public void handle(HttpExchange ex) throws IOException {
-            String path = ex.getRequestURI().getPath();
-            if (path.equals("/")) path = "/index.html";
-            Path file = root.resolve(path.substring(1)).normalize();
-            if (!file.startsWith(root) || !Files.exists(file)) {
-                String notFound = "<h1>404 Not Found</h1>";
+            String method = ex.getRequestMethod();
+            boolean head = method.equalsIgnoreCase("HEAD");
+            if (!head && !method.equalsIgnoreCase("GET")) { sendResponse(ex,405,"{\"error\":\"Method not allowed\"}"); return; }
+            StaticAssets.Asset asset = assets.get(ex.getRequestURI().getPath());
+            if (asset == null) {
+                byte[] notFound = "<h1>404 Not Found</h1>".getBytes("UTF-8");
                 ex.getResponseHeaders().add("Content-Type","text/html; charset=utf-8");
-                ex.sendResponseHeaders(404, notFound.getBytes().length);
-                try (OutputStream os = ex.getResponseBody()) { os.write(notFound.getBytes()); }
+                ex.sendResponseHeaders(404, head ? -1 : notFound.length);
+                try (OutputStream os = ex.getResponseBody()) { if (!head) os.write(notFound); }
                 return;
             }
-            String contentType = guessContentType(file);
-            byte[] bytes = Files.readAllBytes(file);
-            ex.getResponseHeaders().add("Content-Type", contentType);
-            ex.sendResponseHeaders(200, bytes.length);
-            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+
+            boolean gzip = asset.gzip != null && acceptsEncoding(ex, "gzip");
+            Headers h = ex.getResponseHeaders();
+            h.add("ETag", gzip ? asset.gzipEtag : asset.etag);
+            h.add("Last-Modified", asset.lastModified);
+            h.add("Cache-Control", "no-cache"); // file names are not versioned: always revalidate
+            if (asset.gzip != null) h.add("Vary", "Accept-Encoding");
+            Headers req = ex.getRequestHeaders();
+            if (asset.notModified(req.getFirst("If-None-Match"), req.getFirst("If-Modified-Since"), gzip)) {
+                ex.sendResponseHeaders(304, -1);
+                ex.close();
+                return;
+            }
+
+            h.add("Content-Type", asset.contentType);
+            if (gzip) h.add("Content-Encoding", "gzip");
+            byte[] body = gzip ? asset.gzip : asset.bytes;
+            long length = body != null ? body.length : asset.size;
+            if (head) {
+                h.add("Content-Length", Long.toString(length));
+                ex.sendResponseHeaders(200, -1);
+                ex.close();
+                return;
+            }
+            ex.sendResponseHeaders(200, length);
+            try (OutputStream os = ex.getResponseBody()) {
+                if (body != null) {
+                    os.write(body);
+                } else {
+                    // large file: hand the channel to the response in chunks instead of reading it into the heap
+                    try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(asset.file, java.nio.file.StandardOpenOption.READ)) {
+                        java.nio.channels.WritableByteChannel out = java.nio.channels.Channels.newChannel(os);
+                        long pos = 0;
+                        while (pos < length) {
+                            long n = ch.transferTo(pos, length - pos, out);
+                            if (n <= 0) break; // file shrank since it was indexed
+                            pos += n;
+                        }
+                    }
+                }
+            }
         }
-        private String guessContentType(Path f) {
-            String name = f.getFileName().toString().toLowerCase();
-            if (name.endsWith(".html")) return "text/html; charset=utf-8";
-            if (name.endsWith(".js")) return "application/javascript; charset=utf-8";
-            if (name.endsWith(".css")) return "text/css; charset=utf-8";
-            if (name.endsWith(".png")) return "image/png";
-            return "application/octet-stream";
+    }
+
+    // True if the Accept-Encoding header allows coding: listed (or covered by *) with q > 0
+    static boolean acceptsEncoding(HttpExchange ex, String coding) {
+        List<String> values = ex.getRequestHeaders().get("Accept-Encoding");
+        if (values == null) return false;
+        Boolean wildcard = null;
+        for (String value : values) {
+            for (String part : value.split(",")) {
+                String[] params = part.trim().split(";");
+                String name = params[0].trim();
+                boolean allowed = true;
+                for (int i = 1; i < params.length; i++) {
+                    String p = params[i].replace(" ", "");
+                    if (p.startsWith("q=")) {
+                        try { allowed = Double.parseDouble(p.substring(2)) > 0; } catch (NumberFormatException e) { allowed = false; }
+                    }
+                }
+                if (name.equalsIgnoreCase(coding)) return allowed; // an explicit entry wins over *
+                if (name.equals("*")) wildcard = allowed;
+            }
         }
+        return wildcard != null && wildcard;
     }
 }
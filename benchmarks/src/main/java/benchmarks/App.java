@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handles to the server's classes. They live in the unnamed package, which code in a named
+ * package cannot import, so they are found by name and their (often private) methods are
+ * looked up once, in @Setup; invoking a MethodHandle held in a field costs about as much as a
+ * direct call.
+ */
+final class App {
+    private App() {}
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server class " + name + " is not on the class path", e);
+        }
+    }
+
+    static MethodHandle staticMethod(String owner, String name, Class<?> returns, Class<?>... params) {
+        try {
+            Class<?> c = type(owner);
+            return lookup(c).findStatic(c, name, MethodType.methodType(returns, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No " + owner + "." + name, e);
+        }
+    }
+
+    static MethodHandle method(String owner, String name, Class<?> returns, Class<?>... params) {
+        try {
+            Class<?> c = type(owner);
+            return lookup(c).findVirtual(c, name, MethodType.methodType(returns, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No " + owner + "." + name, e);
+        }
+    }
+
+    static Object construct(String owner, Class<?>[] params, Object... args) {
+        try {
+            Class<?> c = type(owner);
+            return lookup(c).findConstructor(c, MethodType.methodType(void.class, params)).invokeWithArguments(args);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot create " + owner, e);
+        }
+    }
+
+    // both sides are in the unnamed module, which opens everything, so private members are reachable
+    private static MethodHandles.Lookup lookup(Class<?> c) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+    }
+}
@@ -0,0 +1,25 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of target/benchmarks.jar: the JMH command line, with results written as JSON to
+ * jmh-result.json unless -rf/-rff say otherwise, so runs on different commits can be compared
+ * (e.g. with jmh.morethan.io or any JSON diff).
+ *
+ *   java -jar benchmarks/target/benchmarks.jar                         all benchmarks
+ *   java -jar benchmarks/target/benchmarks.jar Parsing -rff abc123.json
+ *   java -jar benchmarks/target/benchmarks.jar Storage -p rows=10000
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> a = new ArrayList<>(Arrays.asList(args));
+        if (!a.contains("-rf")) a.addAll(Arrays.asList("-rf", "json"));
+        if (!a.contains("-rff")) a.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        org.openjdk.jmh.Main.main(a.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Hex encoding of a SHA-256 digest, as the legacy password format stores it. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+    final byte[] digest = new byte[32];
+    MethodHandle bytesToHex;
+
+    @Setup
+    public void setUp() {
+        new java.util.Random(42).nextBytes(digest);
+        bytesToHex = App.staticMethod("Sha256PasswordHasher", "bytesToHex", String.class, byte[].class);
+    }
+
+    @Benchmark
+    public String bytesToHex() throws Throwable {
+        return (String) bytesToHex.invokeExact(digest);
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Request body parsing and JSON string escaping in WebServer. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+    // a compose request as the web UI sends it
+    static final String FORM = "to=bob%40example.com&to=carol%40example.com&cc=dave%40example.com" +
+        "&subject=Quarterly+numbers+%26+next+steps&body=Hi+all%2C%0A%0Athe+report+is+attached.+" +
+        "Please+review+before+Friday.%0A%0AThanks%2C%0AAlice";
+    static final String JSON = "{\"to\":[\"bob@example.com\",\"carol@example.com\"],\"cc\":\"dave@example.com\"," +
+        "\"subject\":\"Quarterly numbers & next steps\",\"body\":\"Hi all,\\n\\nthe report is attached. " +
+        "Please review before Friday.\\n\\nThanks,\\nAlice\",\"draft\":false}";
+
+    // mailbox text without and with characters that need escaping
+    static final String PLAIN = "Meeting moved to Thursday afternoon, same room as last time. See you there";
+    static final String ESCAPES = "He said \"ship it\"\n\tC:\\builds\\nightly été ☃ \u0001 end";
+
+    MethodHandle parseBody;
+    MethodHandle escapeJson;
+
+    @Setup
+    public void setUp() {
+        parseBody = App.staticMethod("WebServer", "parseBody", Map.class, String.class);
+        escapeJson = App.staticMethod("WebServer", "escapeJson", String.class, String.class);
+    }
+
+    @Benchmark
+    public Object parseBodyForm() throws Throwable {
+        return (Map<?, ?>) parseBody.invokeExact(FORM);
+    }
+
+    @Benchmark
+    public Object parseBodyJson() throws Throwable {
+        return (Map<?, ?>) parseBody.invokeExact(JSON);
+    }
+
+    @Benchmark
+    public String escapeJsonPlain() throws Throwable {
+        return (String) escapeJson.invokeExact(PLAIN);
+    }
+
+    @Benchmark
+    public String escapeJsonEscapes() throws Throwable {
+        return (String) escapeJson.invokeExact(ESCAPES);
+    }
+}
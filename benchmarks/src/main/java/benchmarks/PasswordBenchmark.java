@@ -0,0 +1,37 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Password verification for each stored format; PBKDF2 at auth.pbkdf2.iterations (100000 by default, as in PasswordService). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordBenchmark {
+    static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"sha256", "pbkdf2"})
+    public String format;
+
+    String stored;
+    MethodHandle verify; // bound to the hasher
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object hasher = format.equals("sha256")
+            ? App.construct("Sha256PasswordHasher", new Class<?>[0])
+            : App.construct("Pbkdf2PasswordHasher", new Class<?>[] {int.class}, Integer.getInteger("auth.pbkdf2.iterations", 100_000));
+        MethodHandle hash = App.method("PasswordHasher", "hash", String.class, String.class);
+        stored = (String) hash.invoke(hasher, PASSWORD);
+        verify = App.method("PasswordHasher", "verify", boolean.class, String.class, String.class).bindTo(hasher);
+    }
+
+    @Benchmark
+    public boolean verifyPassword() throws Throwable {
+        return (boolean) verify.invokeExact(PASSWORD, stored);
+    }
+}
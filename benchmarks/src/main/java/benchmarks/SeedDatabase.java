@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the database named by -Ddb.file with rows messages between USERS users, through the
+ * server's own group-commit path, so bodies, indexes and search entries look as in production.
+ * Run by StorageBenchmark in a JVM of its own: Database reads db.file once per JVM.
+ *
+ * Usage: java -Ddb.file=... benchmarks.SeedDatabase &lt;rows&gt;
+ */
+public final class SeedDatabase {
+    static final int USERS = 1000;
+    static final int WINDOW = 20_000; // stores in flight
+
+    static final String[] WORDS = {"budget", "roadmap", "release", "invoice", "meeting", "travel", "review", "deadline",
+        "launch", "report", "hiring", "offsite", "security", "backup", "upgrade", "contract"};
+
+    private SeedDatabase() {}
+
+    public static void main(String[] args) throws Throwable {
+        int rows = Integer.parseInt(args[0]);
+        Object db = App.construct("Database", new Class<?>[0]);
+        MethodHandle store = App.method("Database", "storeEmailAsync", CompletableFuture.class,
+            String.class, String.class, String.class, String.class).bindTo(db);
+        Random random = new Random(rows);
+        Deque<CompletableFuture<?>> inFlight = new ArrayDeque<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            if (inFlight.size() == WINDOW) inFlight.removeFirst().join();
+            inFlight.addLast((CompletableFuture<?>) store.invoke(user(random.nextInt(USERS)), user(random.nextInt(USERS)),
+                "Subject " + i % 5000, body(random)));
+        }
+        while (!inFlight.isEmpty()) inFlight.removeFirst().join();
+        App.method("Database", "close", void.class).invoke(db);
+        System.out.println("Seeded " + rows + " messages in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s");
+    }
+
+    static String user(int n) {
+        return "user" + n + "@example.com";
+    }
+
+    // ~300 characters; a few thousand distinct texts, so bodies deduplicate as real mail partly does
+    static String body(Random random) {
+        StringBuilder sb = new StringBuilder("Hi,\n\n");
+        for (int i = 0; i < 6; i++) sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        sb.append("\n\nThe notes from the meeting are below. Please check the numbers and reply before the end of the week ")
+          .append("so we can send the final version to the whole team on Monday morning.\n\nThanks,\nThe sender");
+        return sb.toString();
+    }
+}
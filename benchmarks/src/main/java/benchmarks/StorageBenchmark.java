@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Database.storeEmail and getInboxJson against a database seeded with {@code rows} messages
+ * spread over {@value SeedDatabase#USERS} users, so an inbox holds rows / 1000 of them.
+ *
+ * Seeded files are kept in -Dbench.dir (default: the temp directory) and reused by later runs;
+ * seeding 1M rows takes a few minutes. Every fork opens its own copy through -Ddb.file, never
+ * the Users.db of the working directory, because storeEmail adds rows. storeEmail is measured
+ * through storeEmailAsync(...).join(), which is all Database.storeEmail does besides printing a
+ * line per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Ddns.resolver=stub", "-Ddb.externalPollMs=0"})
+public class StorageBenchmark {
+    @Param({"10000", "1000000"})
+    public int rows;
+
+    Object database;
+    MethodHandle storeEmailAsync;
+    MethodHandle getInboxJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File dir = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "simple-email-bench");
+        File seeded = new File(dir, "inbox-" + rows + ".db");
+        if (!seeded.isFile()) seed(seeded);
+        File copy = new File(dir, "run-" + rows + "-" + ProcessHandle.current().pid() + ".db");
+        Files.copy(seeded.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (String suffix : new String[] {"", "-wal", "-shm"}) new File(copy.getPath() + suffix).deleteOnExit();
+
+        // before anything touches Database, which reads db.file once
+        System.setProperty("db.file", copy.getPath());
+        database = App.construct("Database", new Class<?>[0]);
+        storeEmailAsync = App.method("Database", "storeEmailAsync", CompletableFuture.class,
+            String.class, String.class, String.class, String.class).bindTo(database);
+        getInboxJson = App.method("Database", "getInboxJson", String.class, String.class).bindTo(database);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        App.method("Database", "close", void.class).invoke(database);
+    }
+
+    // In a JVM of its own, under a temporary name so an interrupted run is never reused
+    private void seed(File target) throws Exception {
+        target.getParentFile().mkdirs();
+        File building = new File(target.getPath() + ".building");
+        for (String suffix : new String[] {"", "-wal", "-shm"}) new File(building.getPath() + suffix).delete();
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = Arrays.asList(java, "-Ddb.file=" + building.getPath(), "-Ddb.externalPollMs=0",
+            "-cp", System.getProperty("java.class.path"), SeedDatabase.class.getName(), String.valueOf(rows));
+        Process p = new ProcessBuilder(command).inheritIO().start();
+        if (p.waitFor() != 0) throw new IllegalStateException("Seeding " + target + " failed");
+        if (!building.renameTo(target)) throw new IllegalStateException("Cannot rename " + building + " to " + target);
+    }
+
+    @Benchmark
+    public Object storeEmail() throws Throwable {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return ((CompletableFuture<?>) storeEmailAsync.invokeExact(SeedDatabase.user(r.nextInt(SeedDatabase.USERS)),
+            SeedDatabase.user(r.nextInt(SeedDatabase.USERS)), "Benchmark", "Stored by StorageBenchmark")).join();
+    }
+
+    @Benchmark
+    public String getInboxJson() throws Throwable {
+        return (String) getInboxJson.invokeExact(SeedDatabase.user(ThreadLocalRandom.current().nextInt(SeedDatabase.USERS)));
+    }
+}
@@ -1,21 +1,52 @@
 #!/usr/bin/env python3
+import json
 import sys
 import time
 
 # Very small placeholder predictor: returns a message based on subject keywords
 # Usage: python predict_email.py "Subject text"
+#        python predict_email.py --serve
+#
+# --serve keeps the process alive for PythonWorkerPool: after loading it prints "ready",
+# then for every request line (a JSON string holding the subject) it writes the body as
+# "<byte length>\n<utf-8 bytes>".
 
-if len(sys.argv) < 2:
-    print("")
-    sys.exit(0)
 
-subject = sys.argv[1].lower()
-# Simulate some processing delay
-time.sleep(0.5)
+def predict(subject):
+    subject = subject.lower()
+    if 'meeting' in subject or 'schedule' in subject:
+        return "Hi,\n\nI'd like to schedule a meeting to discuss this further. Please let me know your availability.\n\nBest regards,"
+    elif 'greeting' in subject or 'hello' in subject:
+        return "Hello,\n\nI hope you're doing well. Just wanted to reach out and say hi.\n\nRegards,"
+    else:
+        return "Hi,\n\nThanks for reaching out. I'll get back to you soon with more details.\n\nThanks,"
 
-if 'meeting' in subject or 'schedule' in subject:
-    print("Hi,\n\nI'd like to schedule a meeting to discuss this further. Please let me know your availability.\n\nBest regards,")
-elif 'greeting' in subject or 'hello' in subject:
-    print("Hello,\n\nI hope you're doing well. Just wanted to reach out and say hi.\n\nRegards,")
-else:
-    print("Hi,\n\nThanks for reaching out. I'll get back to you soon with more details.\n\nThanks,")
+
+def serve():
+    # Simulate model loading, paid once per worker process
+    time.sleep(0.5)
+    out = sys.stdout.buffer
+    out.write(b"ready\n")
+    out.flush()
+    for line in sys.stdin.buffer:
+        line = line.strip()
+        if not line:
+            continue
+        body = predict(json.loads(line.decode('utf-8'))).encode('utf-8')
+        out.write(b"%d\n" % len(body))
+        out.write(body)
+        out.flush()
+
+
+if __name__ == '__main__':
+    if len(sys.argv) < 2:
+        print("")
+        sys.exit(0)
+
+    if sys.argv[1] == '--serve':
+        serve()
+        sys.exit(0)
+
+    # Simulate some processing delay
+    time.sleep(0.5)
+    print(predict(sys.argv[1]))
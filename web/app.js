@@ -45,7 +45,7 @@ function onLogin(){
   fetch('/api/inbox', {headers:{'X-Auth-Token': token}}).then(r=>{ if (r.status==200) { r.json().then(arr => { if (arr.length>0) { /* cannot infer email */ } }); }}).catch(()=>{});
 }})();
 
-document.getElementById('btnLogout').onclick = () => { currentUser=null; localStorage.removeItem('token'); document.getElementById('auth').style.display='block'; document.getElementById('main').style.display='none'; document.getElementById('btnLogin').disabled = false; document.getElementById('btnReg').disabled = false; document.getElementById('headerUser').innerText = 'Not signed in'; document.getElementById('btnLogout').classList.add('hidden'); showToast('Logged out'); };
+document.getElementById('btnLogout').onclick = () => { const t = localStorage.getItem('token'); if (t) fetch('/api/logout', {method:'POST', headers:{'X-Auth-Token': t}}).catch(()=>{}); closeInboxStream(); inboxLastId = 0; currentUser=null; localStorage.removeItem('token'); document.getElementById('auth').style.display='block'; document.getElementById('main').style.display='none'; document.getElementById('btnLogin').disabled = false; document.getElementById('btnReg').disabled = false; document.getElementById('headerUser').innerText = 'Not signed in'; document.getElementById('btnLogout').classList.add('hidden'); showToast('Logged out'); };
 
 document.getElementById('btnMl').onclick = async () => {
   const subject = document.getElementById('subject').value;
@@ -58,40 +58,127 @@ document.getElementById('btnMl').onclick = async () => {
 };
 
 document.getElementById('btnSend').onclick = async () => {
-  const to = document.getElementById('to').value.trim();
+  // comma/semicolon/space separated lists; the server reports an outcome per address
+  const list = id => document.getElementById(id).value.split(/[,;\s]+/).filter(a => a);
+  const to = list('to'), cc = list('cc'), bcc = list('bcc');
   const subject = document.getElementById('subject').value;
   const body = document.getElementById('body').value;
   if (!currentUser) { showToast('Login first'); return; }
   const emailRegex = /^[A-Za-z0-9._%+\-]+@[A-Za-z0-9.-]+\.[A-Za-z]{2,}$/;
-  if (!emailRegex.test(to)) { showToast('Invalid recipient email'); return; }
+  const bad = to.concat(cc, bcc).filter(a => !emailRegex.test(a));
+  if (to.length + cc.length + bcc.length === 0 || bad.length) { showToast('Invalid recipient email' + (bad.length ? ': ' + bad[0] : '')); return; }
   const token = localStorage.getItem('token');
   showSpinner();
-  const res = await fetch('/api/send', {method:'POST', headers:{'Content-Type':'application/json','X-Auth-Token': token}, body: JSON.stringify({to, subject, body})});
+  const res = await fetch('/api/send', {method:'POST', headers:{'Content-Type':'application/json','X-Auth-Token': token}, body: JSON.stringify({to, cc, bcc, subject, body})});
   hideSpinner();
   const j = await res.json();
-  if (j.success) { showToast('Sent'); loadInbox(); loadSent(); } else showToast(j.message || 'Failed to send');
+  if (j.success) { showToast(j.rejected ? `Sent to ${j.stored}, ${j.rejected} skipped` : 'Sent'); loadInbox(); loadSent(); } else showToast(j.message || 'Failed to send');
 };
 
-async function loadInbox(){
+// Mailbox lists are fetched a page at a time; `next` is the opaque cursor for the following page
+const PAGE_SIZE = 50;
+const pages = { inbox: { next: null, count: 0 }, sent: { next: null, count: 0 } };
+
+async function fetchPage(kind, cursor){
   const token = localStorage.getItem('token');
-  const res = await fetch('/api/inbox', {headers:{'X-Auth-Token': token}});
-  const arr = await res.json();
-  document.getElementById('inboxCount').innerText = arr.length;
-  const div = document.getElementById('inboxList'); div.innerHTML='';
-  arr.forEach(m => {
-    const el = document.createElement('div'); el.className='mail'; el.innerHTML = `<b>From:</b> ${m.from}<br><b>Subject:</b> ${m.subject}<pre>${m.body}</pre><small>${m.time}</small>`;
-    div.appendChild(el);
+  let url = '/api/' + kind + '?limit=' + PAGE_SIZE;
+  if (cursor) url += '&cursor=' + encodeURIComponent(cursor);
+  const res = await fetch(url, {headers:{'X-Auth-Token': token}});
+  return res.json();
+}
+
+function renderPage(kind, page, append){
+  const state = pages[kind];
+  const div = document.getElementById(kind + 'List');
+  if (!append) { div.innerHTML=''; state.count = 0; }
+  page.messages.forEach(m => {
+    div.appendChild(mailElement(kind, m));
+    if (kind === 'inbox' && m.id > inboxLastId) inboxLastId = m.id;
   });
+  state.count += page.messages.length;
+  state.next = page.next;
+  document.getElementById(kind + 'Count').innerText = state.count + (state.next ? '+' : '');
+  if (state.next) {
+    const more = document.createElement('button'); more.className='more'; more.innerText='Load more';
+    more.onclick = async () => { more.remove(); renderPage(kind, await fetchPage(kind, state.next), true); };
+    div.appendChild(more);
+  }
 }
 
-async function loadSent(){
+function mailElement(kind, m){
+  const peerLabel = kind === 'inbox' ? 'From' : 'To';
+  const peer = kind === 'inbox' ? m.from : m.to;
+  const el = document.createElement('div'); el.className='mail'; el.innerHTML = `<b>${peerLabel}:</b> ${peer}<br><b>Subject:</b> ${m.subject}<pre></pre><small>${m.time}</small>`;
+  // lists carry a preview; the full body is fetched on click
+  const pre = el.querySelector('pre'); pre.textContent = m.preview;
+  el.onclick = async () => {
+    if (el.dataset.loaded) return;
+    const r = await fetch('/api/message/' + m.id, {headers:{'X-Auth-Token': localStorage.getItem('token')}});
+    if (!r.ok) { showToast('Could not load message'); return; }
+    pre.textContent = (await r.json()).body; el.dataset.loaded = '1';
+  };
+  return el;
+}
+
+// New mail arrives over /api/inbox/stream (server-sent events); the browser reconnects on its own
+// and sends Last-Event-ID, so nothing is missed across short disconnects
+let inboxStream = null;
+let inboxLastId = 0;
+
+function openInboxStream(){
+  closeInboxStream();
   const token = localStorage.getItem('token');
-  const res = await fetch('/api/sent', {headers:{'X-Auth-Token': token}});
-  const arr = await res.json();
-  document.getElementById('sentCount').innerText = arr.length;
-  const div = document.getElementById('sentList'); div.innerHTML='';
-  arr.forEach(m => {
-    const el = document.createElement('div'); el.className='mail'; el.innerHTML = `<b>To:</b> ${m.to}<br><b>Subject:</b> ${m.subject}<pre>${m.body}</pre><small>${m.time}</small>`;
+  if (!token || !window.EventSource) return;
+  inboxStream = new EventSource('/api/inbox/stream?token=' + encodeURIComponent(token) + '&lastEventId=' + inboxLastId);
+  inboxStream.addEventListener('mail', e => {
+    const m = JSON.parse(e.data);
+    if (m.id <= inboxLastId) return;
+    inboxLastId = m.id;
+    const div = document.getElementById('inboxList');
+    div.insertBefore(mailElement('inbox', m), div.firstChild);
+    pages.inbox.count += 1;
+    document.getElementById('inboxCount').innerText = pages.inbox.count + (pages.inbox.next ? '+' : '');
+    showToast('New mail from ' + m.from);
+  });
+}
+
+function closeInboxStream(){
+  if (inboxStream) { inboxStream.close(); inboxStream = null; }
+}
+
+async function loadInbox(){
+  renderPage('inbox', await fetchPage('inbox', null), false);
+  if (!inboxStream) openInboxStream();
+}
+
+async function loadSent(){
+  renderPage('sent', await fetchPage('sent', null), false);
+}
+
+// Search results carry snippets with matches between \u0002 and \u0003; escape first, then highlight
+function escapeHtml(s){ return String(s).replace(/[&<>"']/g, c => ({'&':'&amp;','<':'&lt;','>':'&gt;','"':'&quot;',"'":'&#39;'}[c])); }
+function highlight(s){ return escapeHtml(s).replace(/\u0002/g, '<mark>').replace(/\u0003/g, '</mark>'); }
+
+async function runSearch(offset){
+  const q = document.getElementById('searchQuery').value.trim();
+  const div = document.getElementById('searchList');
+  if (!q) { div.innerHTML = ''; return; }
+  const r = await fetch('/api/search?q=' + encodeURIComponent(q) + '&limit=20&offset=' + offset, {headers:{'X-Auth-Token': localStorage.getItem('token')}});
+  if (!r.ok) { showToast('Search failed'); return; }
+  const j = await r.json();
+  if (offset === 0) div.innerHTML = j.results.length ? '' : '<small class="muted">No matches</small>';
+  j.results.forEach(m => {
+    const el = document.createElement('div'); el.className='mail';
+    el.innerHTML = `<b>${m.sent ? 'To' : 'From'}:</b> ${escapeHtml(m.sent ? m.to : m.from)}<br><b>Subject:</b> ${highlight(m.subjectSnippet)}<pre>${highlight(m.snippet)}</pre><small>${escapeHtml(m.time)}</small>`;
     div.appendChild(el);
   });
-}
\ No newline at end of file
+  if (!j.complete && offset === 0) showToast('Search index is still catching up on older mail');
+  if (j.next !== null) {
+    const more = document.createElement('button'); more.innerText = 'More results';
+    more.onclick = () => { more.remove(); runSearch(j.next); };
+    div.appendChild(more);
+  }
+}
+
+document.getElementById('btnSearch').onclick = () => runSearch(0);
+document.getElementById('searchQuery').addEventListener('keydown', e => { if (e.key === 'Enter') runSearch(0); });